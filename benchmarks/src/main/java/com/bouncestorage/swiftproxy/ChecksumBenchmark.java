@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of the upload checksum stage: a body is read through
+ * {@link ChecksumInputStream} with the buffer size a servlet container
+ * would typically use.  {@code none} reads the same stream without a
+ * checksum and is the baseline.  Throughput in bytes per second is the
+ * score multiplied by {@code size}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChecksumBenchmark {
+    @Param({"none", "crc32c", "xxhash64", "md5"})
+    public String algorithm;
+
+    @Param({"16777216"})
+    public int size;
+
+    @Param({"8192", "65536"})
+    public int bufferSize;
+
+    private byte[] data;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = new byte[size];
+        new Random(0).nextBytes(data);
+        buffer = new byte[bufferSize];
+    }
+
+    @Benchmark
+    public void read(Blackhole bh) throws IOException {
+        InputStream in = new ByteArrayInputStream(data);
+        if (!"none".equals(algorithm)) {
+            in = new ChecksumInputStream(in, ChecksumAlgorithm.fromName(algorithm), null, bh::consume);
+        }
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            bh.consume(n);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Crawls a container of {@code objects} entries through a blob store that
+ * sleeps {@code latency} milliseconds on every listing, with and without
+ * pages listed ahead of the consumer.  Each entry costs the consumer
+ * {@code work} tokens of CPU, so that listing and consuming have something
+ * to overlap; with {@code prefetch} 0 every page waits for the one before
+ * to be drained.  Each operation is one full crawl.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CrawlBenchmark {
+    private static final String CONTAINER = "bench";
+
+    @Param({"10000"})
+    public int objects;
+
+    @Param({"20"})
+    public int latency;
+
+    @Param({"20000"})
+    public int work;
+
+    @Param({"0", "1", "2"})
+    public int prefetch;
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class);
+        BlobStore delegate = context.getBlobStore();
+        delegate.createContainerInLocation(null, CONTAINER);
+        for (int i = 0; i < objects; i++) {
+            delegate.putBlob(CONTAINER, delegate.blobBuilder(String.format("%08d", i)).payload("").build());
+        }
+        blobStore = (BlobStore) Proxy.newProxyInstance(BlobStore.class.getClassLoader(),
+                new Class<?>[] {BlobStore.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("list")) {
+                        Thread.sleep(latency);
+                    }
+                    try {
+                        return method.invoke(delegate, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        context.close();
+    }
+
+    @Benchmark
+    public void crawl(Blackhole bh) {
+        for (StorageMetadata metadata : Utils.crawlBlobStore(blobStore, CONTAINER, new ListContainerOptions(),
+                Long.MAX_VALUE, null, executor, prefetch)) {
+            Blackhole.consumeCPU(work);
+            bh.consume(metadata);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares plain uploads and downloads against the dedup layer on a set of
+ * near-identical objects: a random base image and variants of it with a few
+ * bytes inserted at random offsets, which shifts everything after them.
+ * Each operation moves one object of {@code size} bytes, so throughput in
+ * bytes per second is the score multiplied by {@code size}.  The dedup
+ * ratio reached by the PUT benchmarks is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DedupBenchmark {
+    private static final String CONTAINER = "bench";
+    private static final int VARIANTS = 16;
+
+    @Param({"16777216"})
+    public int size;
+
+    @Param({"8"})
+    public int edits;
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private DedupStore dedup;
+    private byte[][] variants;
+    private DedupStore.Recipe[] recipes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        context = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, CONTAINER);
+
+        Properties properties = new Properties();
+        properties.setProperty(SwiftProxy.PROPERTY_DEDUP_CONTAINERS, CONTAINER);
+        dedup = new DedupStore(properties);
+
+        Random random = new Random(42);
+        byte[] base = new byte[size];
+        random.nextBytes(base);
+        variants = new byte[VARIANTS][];
+        recipes = new DedupStore.Recipe[VARIANTS];
+        for (int i = 0; i < VARIANTS; i++) {
+            variants[i] = mutate(base, random);
+            recipes[i] = dedup.write(blobStore, "bench", new ByteArrayInputStream(variants[i]));
+            blobStore.putBlob(CONTAINER, blobStore.blobBuilder("raw-" + i).payload(variants[i]).build());
+        }
+    }
+
+    private byte[] mutate(byte[] base, Random random) {
+        byte[] out = base.clone();
+        for (int i = 0; i < edits; i++) {
+            int at = random.nextInt(out.length);
+            byte[] inserted = new byte[1 + random.nextInt(64)];
+            random.nextBytes(inserted);
+            byte[] grown = new byte[out.length + inserted.length];
+            System.arraycopy(out, 0, grown, 0, at);
+            System.arraycopy(inserted, 0, grown, at, inserted.length);
+            System.arraycopy(out, at, grown, at + inserted.length, out.length - at);
+            out = grown;
+        }
+        return out;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println("\ndedup stats: " + dedup.getStats());
+        dedup.shutdown();
+        context.close();
+    }
+
+    private int nextVariant() {
+        next = (next + 1) % VARIANTS;
+        return next;
+    }
+
+    @Benchmark
+    public String putRaw() {
+        int i = nextVariant();
+        return blobStore.putBlob(CONTAINER, blobStore.blobBuilder("put-raw-" + i).payload(variants[i]).build());
+    }
+
+    @Benchmark
+    public String putDedup() throws IOException {
+        int i = nextVariant();
+        DedupStore.Recipe recipe = dedup.write(blobStore, "bench", new ByteArrayInputStream(variants[i]));
+        byte[] body = recipe.toBytes();
+        return blobStore.putBlob(CONTAINER, blobStore.blobBuilder("put-dedup-" + i)
+                .userMetadata(Collections.singletonMap(DedupStore.DEDUP_METADATA, recipe.getMetadata()))
+                .payload(body)
+                .build());
+    }
+
+    @Benchmark
+    public void getRaw(Blackhole bh) throws IOException {
+        Blob blob = blobStore.getBlob(CONTAINER, "raw-" + nextVariant());
+        try (InputStream is = blob.getPayload().openStream()) {
+            drain(is, bh);
+        }
+    }
+
+    @Benchmark
+    public void getDedup(Blackhole bh) throws IOException {
+        DedupStore.Recipe recipe = recipes[nextVariant()];
+        try (InputStream is = dedup.read(blobStore, recipe, 0, recipe.getLength() - 1)) {
+            drain(is, bh);
+        }
+    }
+
+    private static void drain(InputStream is, Blackhole bh) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            bh.consume(n);
+        }
+    }
+}
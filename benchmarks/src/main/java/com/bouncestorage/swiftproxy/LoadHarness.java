@@ -0,0 +1,395 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import org.jclouds.Constants;
+
+/**
+ * Drives an embedded SwiftProxy over HTTP with a weighted mix of requests
+ * and reports throughput, latency quantiles and error rates per operation
+ * as JSON, so that runs before and after a change can be compared.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.bouncestorage.swiftproxy.LoadHarness \
+ *     --concurrency=64 --duration=60 --mix=small-get=60,small-put=20,list=20
+ * </pre>
+ *
+ * Every client thread keeps its own keep-alive connection.  Latency is the
+ * time from sending a request until its response body has been read.
+ */
+public final class LoadHarness {
+    private static final String CONTAINER = "load";
+    private static final String SEGMENT_CONTAINER = "load-segments";
+    private static final Map<String, String> DEFAULTS = ImmutableMap.<String, String>builder()
+            .put("provider", "transient")
+            .put("basedir", "")
+            .put("concurrency", "64")
+            .put("warmup", "10")
+            .put("duration", "60")
+            .put("mix", "small-get=40,small-put=15,large-get=5,large-put=2,range-get=10,slo-get=5,dlo-get=5," +
+                    "list=10,bulk-delete=8")
+            .put("objects", "1000")
+            .put("small-size", "4096")
+            .put("large-size", "16777216")
+            .put("segments", "16")
+            .put("range-size", "1048576")
+            .put("bulk-size", "100")
+            .put("output", "load-result.json")
+            .build();
+
+    private final Map<String, String> options;
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final Stats total = new Stats();
+    private final String[] weighted;
+    private final int objects;
+    private final byte[] small;
+    private final byte[] large;
+    private final int rangeSize;
+    private final int bulkSize;
+    private final AtomicLong sequence = new AtomicLong();
+    private String storageUrl;
+    private String token;
+    private volatile boolean recording;
+
+    private static final class Stats {
+        private final Metrics.Histogram latency =
+                Metrics.Histogram.exponential(TimeUnit.MICROSECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(60), 1.02);
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+    }
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+        List<String> picks = new ArrayList<>();
+        for (String entry : options.get("mix").split(",")) {
+            String[] kv = entry.split("=", 2);
+            int weight = Integer.parseInt(kv[1]);
+            stats.put(kv[0], new Stats());
+            picks.addAll(Collections.nCopies(weight, kv[0]));
+        }
+        weighted = picks.toArray(new String[picks.size()]);
+        objects = Integer.parseInt(options.get("objects"));
+        small = random(Integer.parseInt(options.get("small-size")), 1);
+        large = random(Integer.parseInt(options.get("large-size")), 2);
+        rangeSize = Integer.parseInt(options.get("range-size"));
+        bulkSize = Integer.parseInt(options.get("bulk-size"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("usage: LoadHarness [--option=value]...; options and defaults: " + DEFAULTS);
+                System.exit(1);
+            }
+            String[] kv = arg.substring(2).split("=", 2);
+            if (!DEFAULTS.containsKey(kv[0])) {
+                throw new IllegalArgumentException("unknown option: " + kv[0]);
+            }
+            options.put(kv[0], kv[1]);
+        }
+        // one idle connection per client thread is kept for reuse
+        System.setProperty("http.maxConnections", options.get("concurrency"));
+        System.setProperty("http.keepAlive", "true");
+
+        SwiftProxy proxy = SwiftProxy.Builder.builder().overrides(proxyProperties(options)).build();
+        proxy.start();
+        try {
+            new LoadHarness(options).run(proxy);
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    private static Properties proxyProperties(Map<String, String> options) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(SwiftProxy.PROPERTY_ENDPOINT, "http://127.0.0.1:0");
+        properties.setProperty(Constants.PROPERTY_PROVIDER, options.get("provider"));
+        properties.setProperty(Constants.PROPERTY_IDENTITY, "load:tester");
+        properties.setProperty(Constants.PROPERTY_CREDENTIAL, "testing");
+        if (options.get("provider").equals("filesystem")) {
+            String basedir = options.get("basedir");
+            if (basedir.isEmpty()) {
+                basedir = Files.createTempDirectory("swiftproxy-load-").toString();
+            }
+            properties.setProperty("jclouds.filesystem.basedir", basedir);
+        }
+        return properties;
+    }
+
+    private void run(SwiftProxy proxy) throws Exception {
+        authenticate(proxy.getEndpoint().toString());
+        prepare();
+
+        int concurrency = Integer.parseInt(options.get("concurrency"));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration")));
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        long end = start + warmup + duration;
+        for (int i = 0; i < concurrency; i++) {
+            clients.execute(() -> {
+                while (System.nanoTime() < end) {
+                    execute(weighted[ThreadLocalRandom.current().nextInt(weighted.length)]);
+                }
+            });
+        }
+        TimeUnit.NANOSECONDS.sleep(warmup);
+        recording = true;
+        long measureStart = System.nanoTime();
+        clients.shutdown();
+        clients.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+
+        Map<String, Object> result = report(seconds);
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        mapper.writeValue(new File(options.get("output")), result);
+        System.out.println(mapper.writeValueAsString(result));
+    }
+
+    private void execute(String operation) {
+        Stats s = stats.get(operation);
+        byte[] bulkBody = null;
+        if (operation.equals("bulk-delete")) {
+            // the objects to delete are uploaded outside of the timed request
+            try {
+                bulkBody = uploadBulk();
+            } catch (IOException | RuntimeException e) {
+                if (recording) {
+                    s.errors.increment();
+                    total.errors.increment();
+                }
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            long bytes = perform(operation, bulkBody);
+            if (recording) {
+                long elapsed = System.nanoTime() - start;
+                s.latency.record(elapsed);
+                s.bytes.add(bytes);
+                total.latency.record(elapsed);
+                total.bytes.add(bytes);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (recording) {
+                long elapsed = System.nanoTime() - start;
+                s.latency.record(elapsed);
+                s.errors.increment();
+                total.latency.record(elapsed);
+                total.errors.increment();
+            }
+        }
+    }
+
+    /** Performs one operation and returns the payload bytes moved. */
+    private long perform(String operation, byte[] bulkBody) throws IOException {
+        Random random = ThreadLocalRandom.current();
+        switch (operation) {
+            case "small-get":
+                return send("GET", "/" + CONTAINER + "/small-" + random.nextInt(objects), null, null);
+            case "small-put":
+                return send("PUT", "/" + CONTAINER + "/put-small-" + random.nextInt(objects), null, small);
+            case "large-get":
+                return send("GET", "/" + CONTAINER + "/large", null, null);
+            case "large-put":
+                // a few names only, so that in-memory providers do not grow
+                return send("PUT", "/" + CONTAINER + "/put-large-" + random.nextInt(4), null, large);
+            case "range-get":
+                long offset = (long) (random.nextDouble() * Math.max(1, large.length - rangeSize));
+                return send("GET", "/" + CONTAINER + "/large",
+                        ImmutableMap.of("Range", "bytes=" + offset + "-" + (offset + rangeSize - 1)), null);
+            case "slo-get":
+                return send("GET", "/" + CONTAINER + "/slo", null, null);
+            case "dlo-get":
+                return send("GET", "/" + CONTAINER + "/dlo", null, null);
+            case "list":
+                return send("GET", "/" + CONTAINER + "?format=json&limit=1000", null, null);
+            case "bulk-delete":
+                return send("POST", "?bulk-delete",
+                        ImmutableMap.of("Content-Type", "text/plain", "Accept", "application/json"), bulkBody);
+            default:
+                throw new IllegalArgumentException("unknown operation: " + operation);
+        }
+    }
+
+    private byte[] uploadBulk() throws IOException {
+        long batch = sequence.incrementAndGet();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < bulkSize; i++) {
+            String name = "bulk-" + batch + "-" + i;
+            send("PUT", "/" + CONTAINER + "/" + name, null, new byte[1]);
+            names.add(CONTAINER + "/" + name);
+        }
+        return Joiner.on('\n').join(names).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void authenticate(String endpoint) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(endpoint + "/auth/v1.0").openConnection();
+        conn.setRequestProperty("X-Auth-User", "load:tester");
+        conn.setRequestProperty("X-Auth-Key", "testing");
+        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("authentication failed: " + conn.getResponseCode());
+        }
+        storageUrl = conn.getHeaderField("X-Storage-Url");
+        token = conn.getHeaderField("X-Auth-Token");
+        drain(conn.getInputStream());
+    }
+
+    private void prepare() throws IOException {
+        send("PUT", "/" + CONTAINER, null, null);
+        send("PUT", "/" + SEGMENT_CONTAINER, null, null);
+        for (int i = 0; i < objects; i++) {
+            send("PUT", "/" + CONTAINER + "/small-" + i, null, small);
+        }
+        send("PUT", "/" + CONTAINER + "/large", null, large);
+
+        // the large object again, as the segments of an SLO and of a DLO
+        int segments = Integer.parseInt(options.get("segments"));
+        int segmentSize = (large.length + segments - 1) / segments;
+        List<Map<String, Object>> manifest = new ArrayList<>();
+        for (int i = 0; i < segments; i++) {
+            byte[] segment = Arrays.copyOfRange(large, i * segmentSize,
+                    Math.min(large.length, (i + 1) * segmentSize));
+            String name = String.format("dlo/%05d", i);
+            send("PUT", "/" + SEGMENT_CONTAINER + "/" + name, null, segment);
+            manifest.add(ImmutableMap.of(
+                    "path", "/" + SEGMENT_CONTAINER + "/" + name,
+                    "etag", Hashing.md5().hashBytes(segment).toString(),
+                    "size_bytes", segment.length));
+        }
+        send("PUT", "/" + CONTAINER + "/slo?multipart-manifest=put", null,
+                new ObjectMapper().writeValueAsBytes(manifest));
+        send("PUT", "/" + CONTAINER + "/dlo", ImmutableMap.of("X-Object-Manifest", SEGMENT_CONTAINER + "/dlo/"),
+                new byte[0]);
+    }
+
+    /**
+     * Sends a request relative to the storage URL and reads the whole
+     * response, so that the connection goes back to the keep-alive cache.
+     * Returns the bytes sent and received; fails on an error status.
+     */
+    private long send(String method, String path, Map<String, String> headers, byte[] body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(storageUrl + path).openConnection();
+        conn.setRequestMethod(method);
+        conn.setRequestProperty("X-Auth-Token", token);
+        if (headers != null) {
+            headers.forEach(conn::setRequestProperty);
+        }
+        long bytes = 0;
+        if (body != null) {
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body);
+            }
+            bytes += body.length;
+        } else if (method.equals("PUT")) {
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(0);
+            conn.getOutputStream().close();
+        }
+        int status = conn.getResponseCode();
+        if (status >= 400) {
+            InputStream error = conn.getErrorStream();
+            if (error != null) {
+                drain(error);
+            }
+            throw new IOException(method + " " + path + ": " + status);
+        }
+        InputStream in = conn.getInputStream();
+        return bytes + (in == null ? 0 : drain(in));
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        try (InputStream is = in) {
+            return ByteStreams.copy(is, ByteStreams.nullOutputStream());
+        }
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private Map<String, Object> report(double seconds) {
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            operations.put(entry.getKey(), summary(s.latency, s.latency.getCount(), s.errors.sum(),
+                    s.bytes.sum(), seconds));
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("options", options);
+        result.put("seconds", seconds);
+        result.put("operations", operations);
+        // every operation is also recorded into the total histogram, so the
+        // overall percentiles cover the whole mix rather than averaging the
+        // per-operation ones
+        result.put("total", summary(total.latency, total.latency.getCount(), total.errors.sum(),
+                total.bytes.sum(), seconds));
+        return result;
+    }
+
+    private static Map<String, Object> summary(Metrics.Histogram latency, long count, long errors, long bytes,
+                                               double seconds) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", count);
+        summary.put("errors", errors);
+        summary.put("error_rate", count == 0 ? 0 : (double) errors / count);
+        summary.put("throughput", count / seconds);
+        summary.put("bytes_per_second", bytes / seconds);
+        summary.put("mean_ms", count == 0 ? 0 : latency.getSumSeconds() * 1000 / count);
+        summary.put("p50_ms", latency.getQuantileSeconds(0.5) * 1000);
+        summary.put("p99_ms", latency.getQuantileSeconds(0.99) * 1000);
+        summary.put("p999_ms", latency.getQuantileSeconds(0.999) * 1000);
+        return summary;
+    }
+}
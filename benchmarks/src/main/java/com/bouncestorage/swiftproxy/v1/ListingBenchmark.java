@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy.v1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+import com.bouncestorage.swiftproxy.PlainTextMessageBodyWriter;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures serializing a full page of a container listing in each format
+ * the container resource streams, and the plain text writer used for
+ * collected listings.  The score is the time to write {@code count}
+ * entries to a sink; the returned byte count keeps the work alive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ListingBenchmark {
+    @State(Scope.Benchmark)
+    public static class Listing {
+        @Param({"10000"})
+        public int count;
+
+        private List<ContainerResource.ObjectEntry> entries;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            entries = new ArrayList<>(count);
+            Date lastModified = new Date();
+            for (int i = 0; i < count; i++) {
+                entries.add(new ContainerResource.ObjectEntry(String.format("photos/2015/%08d.jpg", i),
+                        Hashing.md5().hashInt(i).toString(), 1024L * i, "image/jpeg", lastModified));
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Format {
+        @Param({"json", "xml", "plain"})
+        public String format;
+    }
+
+    @Benchmark
+    public long objectListingOutput(Listing listing, Format format) throws IOException {
+        CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+        new ObjectListingOutput("bench", listing.entries.iterator(),
+                BounceResourceConfig.getMediaType(format.format)).write(out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long plainTextMessageBodyWriter(Listing listing) throws IOException {
+        CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+        new PlainTextMessageBodyWriter().writeTo(listing.entries, List.class, List.class, null,
+                MediaType.TEXT_PLAIN_TYPE, null, out);
+        return out.getCount();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy.v1;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Response;
+
+import com.google.common.hash.Hashing;
+
+import org.glassfish.grizzly.utils.Pair;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.GetOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per-request work of {@link ObjectResource} that does not
+ * depend on the backend: parsing a Range header, extracting object
+ * metadata from request headers, building the response headers of a GET
+ * and parsing an SLO manifest.  Run with {@code -prof gc} to see the
+ * allocations of each operation next to its time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ObjectResourceBenchmark {
+    private static final String CONTAINER = "bench";
+
+    @State(Scope.Benchmark)
+    public static class Ranges {
+        @Param({"bytes=0-1023", "bytes=0-99,1000-1999,-500"})
+        public String range;
+
+        private final ObjectResource resource = new ObjectResource();
+        private List<Pair<Long, Long>> ranges;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            ranges = resource.parseRange(range);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Headers {
+        @Param({"8"})
+        public int metadataCount;
+
+        private final ObjectResource resource = new ObjectResource();
+        private BlobStoreContext context;
+        private List<String> headerNames;
+        private Map<String, String> headers;
+        private BlobMetadata metadata;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            // what a typical client sends along with the object metadata
+            headers = new HashMap<>();
+            headers.put("Host", "127.0.0.1:8080");
+            headers.put("User-Agent", "python-swiftclient-3.0.0");
+            headers.put("Accept", "*/*");
+            headers.put("X-Auth-Token", "AUTH_tk0123456789abcdef0123456789abcdef");
+            headers.put("Content-Type", "application/octet-stream");
+            headers.put("Content-Length", "1048576");
+            Map<String, String> userMetadata = new HashMap<>();
+            for (int i = 0; i < metadataCount; i++) {
+                headers.put("X-Object-Meta-Key" + i, "value-" + i);
+                userMetadata.put("key" + i, "value-" + i);
+            }
+            headerNames = new ArrayList<>(headers.keySet());
+
+            context = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class);
+            BlobStore blobStore = context.getBlobStore();
+            blobStore.createContainerInLocation(null, CONTAINER);
+            blobStore.putBlob(CONTAINER, blobStore.blobBuilder("object")
+                    .payload(new byte[1024])
+                    .contentType("application/octet-stream")
+                    .userMetadata(userMetadata)
+                    .build());
+            metadata = blobStore.blobMetadata(CONTAINER, "object");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            context.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Manifest {
+        @Param({"1000"})
+        public int segments;
+
+        private final ObjectResource resource = new ObjectResource();
+        private byte[] manifest;
+        private List<ObjectResource.ManifestEntry> entries;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < segments; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                String etag = Hashing.md5().hashInt(i).toString();
+                sb.append("{\"path\":\"/segments/segment-").append(i).append("\",\"etag\":\"").append(etag)
+                        .append("\",\"size_bytes\":1048576}");
+            }
+            manifest = sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+            entries = Arrays.asList(ObjectResource.readSLOManifest(new ByteArrayInputStream(manifest)));
+        }
+    }
+
+    @Benchmark
+    public List<Pair<Long, Long>> parseRange(Ranges state) {
+        return state.resource.parseRange(state.range);
+    }
+
+    @Benchmark
+    public GetOptions addRanges(Ranges state) {
+        return ObjectResource.addRanges(new GetOptions(), state.ranges);
+    }
+
+    @Benchmark
+    public Map<String, String> getUserMetadata(Headers state) {
+        return ObjectResource.getUserMetadata(state.headerNames, state.headers::get);
+    }
+
+    @Benchmark
+    public Response addObjectHeaders(Headers state) {
+        return state.resource.addObjectHeaders(Response.ok(), state.metadata, Optional.empty()).build();
+    }
+
+    @Benchmark
+    public Object[] readSLOManifest(Manifest state) throws IOException {
+        return ObjectResource.readSLOManifest(new ByteArrayInputStream(state.manifest));
+    }
+
+    @Benchmark
+    public Pair<Long, String> getManifestTotalSizeAndETag(Manifest state) {
+        return state.resource.getManifestTotalSizeAndETag(state.entries);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy.v1;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+
+import org.glassfish.grizzly.utils.Pair;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the streams that sit between the backend and a GET response:
+ * {@code HttpRangeInputStream} serving two ranges that together cover the
+ * object, and {@code ManifestObjectInputStream} concatenating the segments
+ * of an SLO from the transient provider.  Each operation reads one object
+ * of {@code size} bytes, so throughput in bytes per second is the score
+ * multiplied by {@code size}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ObjectStreamBenchmark {
+    private static final String CONTAINER = "segments";
+
+    @Param({"16777216"})
+    public int size;
+
+    @Param({"16"})
+    public int segments;
+
+    @Param({"65536"})
+    public int bufferSize;
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private ObjectResource resource;
+    private byte[] data;
+    private byte[] buffer;
+    private List<Pair<Long, Long>> ranges;
+    private List<ObjectResource.ManifestEntry> entries;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        context = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, CONTAINER);
+        resource = new ObjectResource();
+        data = new byte[size];
+        new Random(0).nextBytes(data);
+        buffer = new byte[bufferSize];
+        ranges = ImmutableList.of(new Pair<Long, Long>(0L, size / 2L - 1), new Pair<Long, Long>(size / 2L, null));
+
+        StringBuilder manifest = new StringBuilder("[");
+        int segmentSize = size / segments;
+        for (int i = 0; i < segments; i++) {
+            byte[] segment = Arrays.copyOfRange(data, i * segmentSize, (i + 1) * segmentSize);
+            blobStore.putBlob(CONTAINER, blobStore.blobBuilder("segment-" + i).payload(segment).build());
+            if (i > 0) {
+                manifest.append(',');
+            }
+            manifest.append("{\"path\":\"/").append(CONTAINER).append("/segment-").append(i)
+                    .append("\",\"etag\":\"").append(Hashing.md5().hashBytes(segment))
+                    .append("\",\"size_bytes\":").append(segmentSize).append('}');
+        }
+        manifest.append(']');
+        entries = Arrays.asList(ObjectResource.readSLOManifest(
+                new ByteArrayInputStream(manifest.toString().getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public void httpRangeInputStream(Blackhole bh) throws IOException {
+        try (InputStream in = resource.new HttpRangeInputStream(new ByteArrayInputStream(data), size, ranges)) {
+            drain(in, bh);
+        }
+    }
+
+    @Benchmark
+    public void manifestObjectInputStream(Blackhole bh) throws IOException {
+        try (InputStream in = resource.new ManifestObjectInputStream(blobStore, entries)) {
+            drain(in, bh);
+        }
+    }
+
+    private void drain(InputStream in, Blackhole bh) throws IOException {
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            bh.consume(n);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Throwables.propagate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.Module;
+
+import org.jclouds.Constants;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.concurrent.config.ExecutorServiceModule;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reuses jclouds contexts across authentications.  Building a context sets
+ * up a Guice injector and an HTTP client, so contexts are kept per
+ * (provider, identity, credential) and only built on the first
+ * authentication, or after the context was evicted for being idle or to
+ * keep the pool under its size.  Evicted contexts are closed after a grace
+ * period that lets the requests still using them finish.  All contexts
+ * share one pool of user threads instead of starting their own.
+ */
+public final class BlobStoreContextPool {
+    // time given to requests still using an evicted context
+    private static final long CLOSE_DELAY_SECONDS = 60;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Properties properties;
+    private final ExecutorService userExecutor;
+    private final ScheduledExecutorService closer;
+    private final Cache<Key, BlobStoreContext> contexts;
+    private final AtomicLong built = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    public BlobStoreContextPool(Properties properties) {
+        this.properties = requireNonNull(properties);
+        int threads = Integer.parseInt(properties.getProperty(Constants.PROPERTY_USER_THREADS, "50"));
+        userExecutor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("jclouds-user-%d").setDaemon(true).build());
+        closer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("context-closer-%d").setDaemon(true).build());
+        contexts = CacheBuilder.newBuilder()
+                .maximumSize(Long.parseLong(properties.getProperty(SwiftProxy.PROPERTY_CONTEXT_POOL_SIZE, "1000")))
+                .expireAfterAccess(Long.parseLong(properties.getProperty(
+                        SwiftProxy.PROPERTY_CONTEXT_POOL_IDLE_TIMEOUT, "3600")), TimeUnit.SECONDS)
+                .removalListener(this::evicted)
+                .build();
+    }
+
+    /**
+     * Returns a supplier of the context for these credentials, which builds
+     * it again if it has been evicted since.  Keep the supplier rather than
+     * the context, which may be closed once evicted.
+     */
+    public Supplier<BlobStoreContext> get(String provider, String identity, String credential) {
+        Key key = new Key(provider, identity, credential);
+        Supplier<BlobStoreContext> supplier = () -> {
+            try {
+                return contexts.get(key, () -> build(provider, identity, credential));
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                throw propagate(e.getCause());
+            }
+        };
+        if (contexts.getIfPresent(key) != null) {
+            reused.incrementAndGet();
+        }
+        // build eagerly, so that bad properties fail the authentication
+        supplier.get();
+        return supplier;
+    }
+
+    private BlobStoreContext build(String provider, String identity, String credential) {
+        logger.debug("building a {} context for {}", provider, identity);
+        BlobStoreContext context = ContextBuilder
+                .newBuilder(provider)
+                .overrides(properties)
+                .credentials(identity, credential)
+                .modules(ImmutableSet.<Module>of(new SLF4JLoggingModule(),
+                        new ExecutorServiceModule(userExecutor)))
+                .build(BlobStoreContext.class);
+        built.incrementAndGet();
+        return context;
+    }
+
+    private void evicted(RemovalNotification<Key, BlobStoreContext> notification) {
+        BlobStoreContext context = notification.getValue();
+        if (context == null || closer.isShutdown()) {
+            return;
+        }
+        logger.debug("closing the {} context for {} ({})", notification.getKey().provider,
+                notification.getKey().identity, notification.getCause());
+        closer.schedule(() -> close(context), CLOSE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void close(BlobStoreContext context) {
+        try {
+            context.close();
+            closed.incrementAndGet();
+        } catch (RuntimeException e) {
+            logger.warn("failed to close a context", e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("contexts", contexts.size());
+        stats.put("built", built.get());
+        stats.put("reused", reused.get());
+        stats.put("closed", closed.get());
+        return stats;
+    }
+
+    void shutdown() {
+        closer.shutdownNow();
+        contexts.asMap().values().forEach(this::close);
+        contexts.invalidateAll();
+        userExecutor.shutdownNow();
+    }
+
+    private static final class Key {
+        private final String provider;
+        private final String identity;
+        // the pool does not need the credential itself, only to tell them apart
+        private final String credentialHash;
+
+        Key(String provider, String identity, String credential) {
+            this.provider = requireNonNull(provider);
+            this.identity = requireNonNull(identity);
+            this.credentialHash = Hashing.sha256().hashString(
+                    credential == null ? "" : credential, StandardCharsets.UTF_8).toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return provider.equals(other.provider) && identity.equals(other.identity) &&
+                    credentialHash.equals(other.credentialHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(provider, identity, credentialHash);
+        }
+    }
+}
@@ -73,6 +73,9 @@ public abstract class BlobStoreResource {
     }
 
     private void debugWrite(Object root, MediaType format) {
+        if (!logger.isDebugEnabled()) {
+            return;
+        }
 
         MessageBodyWriter messageBodyWriter =
                 workers.getMessageBodyWriter(root.getClass(), root.getClass(),
@@ -89,7 +92,7 @@ public abstract class BlobStoreResource {
             throw propagate(e);
         }
 
-        logger.info("{}", baos);
+        logger.debug("{}", baos);
     }
 
     protected final Response.ResponseBuilder output(Object root, Object value, MediaType
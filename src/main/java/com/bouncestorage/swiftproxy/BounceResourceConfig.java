@@ -21,27 +21,41 @@ import static com.google.common.base.Throwables.propagate;
 import java.net.URI;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import javax.ws.rs.core.MediaType;
 
+import com.bouncestorage.swiftproxy.v1.ArchiveExtractor;
+import com.bouncestorage.swiftproxy.v1.BlobDeleter;
+import com.bouncestorage.swiftproxy.v1.BulkResponder;
+import com.bouncestorage.swiftproxy.v1.ContainerPurger;
 import com.bouncestorage.swiftproxy.v1.InfoResource;
+import com.bouncestorage.swiftproxy.v1.ListingIndex;
+import com.bouncestorage.swiftproxy.v1.ObjectExpirer;
+import com.bouncestorage.swiftproxy.v1.ObjectTracker;
+import com.bouncestorage.swiftproxy.v1.SLOMaterializer;
+import com.bouncestorage.swiftproxy.v1.TempUrlKeys;
+import com.bouncestorage.swiftproxy.v1.UsageTracker;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
-import com.google.inject.Module;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.apache.commons.lang3.RandomStringUtils;
 
 import org.glassfish.jersey.server.ResourceConfig;
 
 import org.jclouds.Constants;
-import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
-import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,12 +71,37 @@ public final class BounceResourceConfig extends ResourceConfig {
     private final Properties properties;
     private URI endPoint;
     private BlobStoreLocator locator;
+    private final ObjectTracker objectTracker;
+    private final SLOMaterializer sloMaterializer;
+    private final WriteBehindJournal writeBehindJournal;
+    private final FrameCompression frameCompression;
+    private final DedupStore dedupStore;
+    private final BlobDeleter blobDeleter;
+    private final BulkResponder bulkResponder;
+    private final ArchiveExtractor archiveExtractor;
+    private final ContainerPurger containerPurger;
+    private final ObjectExpirer objectExpirer;
+    private final ListingIndex listingIndex;
+    private final UsageTracker usageTracker;
+    private final ExecutorService crawlExecutor;
+    private final int crawlParallelism;
+    private final int crawlPrefetch;
+    private final BlobStoreContextPool contextPool;
+    private final StatelessTokens statelessTokens;
+    private final TempUrlKeys tempUrlKeys;
+    private final Metrics metrics = new Metrics();
+    private final RequestTracer tracer;
     private Cache<String, String> tokensToIdentities = CacheBuilder.newBuilder()
             .expireAfterWrite(InfoResource.CONFIG.tempauth.token_life, TimeUnit.SECONDS)
             .build();
     private Cache<String, AuthenticatedBlobStore> identitiesToBlobStore = CacheBuilder.newBuilder()
             .expireAfterWrite(InfoResource.CONFIG.tempauth.token_life, TimeUnit.SECONDS)
             .build();
+    // identity -> internal token for requests authorized by a temp url,
+    // renewed well before the token itself expires
+    private Cache<String, String> tempUrlTokens = CacheBuilder.newBuilder()
+            .expireAfterWrite(InfoResource.CONFIG.tempauth.token_life / 2, TimeUnit.SECONDS)
+            .build();
 
     public interface AuthenticatedBlobStore {
         BlobStore get(String container, String key);
@@ -80,27 +119,85 @@ public final class BounceResourceConfig extends ResourceConfig {
         }
         this.properties = properties;
         this.locator = locator;
+        Properties config = properties == null ? new Properties() : properties;
+        // getBlobStoreForIdentity needs these, and the services below may
+        // call it from their constructors
+        contextPool = new BlobStoreContextPool(config);
+        statelessTokens = new StatelessTokens(config);
+        // only looks the other services up when objects change; the services
+        // that change objects as soon as they start, by replaying or resuming
+        // work, are created after the ones it looks up
+        objectTracker = new ObjectTracker(this);
+        frameCompression = new FrameCompression(config);
+        dedupStore = new DedupStore(config);
+        sloMaterializer = new SLOMaterializer(config, frameCompression, dedupStore);
+        listingIndex = new ListingIndex(config, this::getBlobStoreForIdentity, this::isEncoded);
+        usageTracker = new UsageTracker(config, this::getBlobStoreForIdentity, this::isEncoded,
+                this::isReservedContainer);
+        tempUrlKeys = new TempUrlKeys(config, this::getBlobStoreForIdentity);
+        blobDeleter = new BlobDeleter(config, objectTracker, this::isReservedContainer);
+        objectExpirer = new ObjectExpirer(config, blobDeleter, this::getBlobStoreForIdentity);
+        writeBehindJournal = new WriteBehindJournal(config, this::getBlobStoreForIdentity, objectTracker);
+        bulkResponder = new BulkResponder(config);
+        archiveExtractor = new ArchiveExtractor(config, frameCompression, dedupStore, objectTracker,
+                this::isReservedContainer);
+        containerPurger = new ContainerPurger(config, blobDeleter, objectTracker,
+                this::getBlobStoreForIdentity);
+        crawlExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("crawler-%d").setDaemon(true).build());
+        crawlParallelism = Integer.parseInt(config.getProperty(SwiftProxy.PROPERTY_CRAWL_PARALLELISM, "8"));
+        crawlPrefetch = Integer.parseInt(config.getProperty(SwiftProxy.PROPERTY_CRAWL_PREFETCH, "2"));
+        registerGauges();
+        register(new RequestMetricsListener(metrics));
+        tracer = new RequestTracer(config);
+        register(tracer);
         packages(getClass().getPackage().getName());
     }
 
+    private void registerGauges() {
+        metrics.gauge("slo_materializer_queue_depth", sloMaterializer::getQueueDepth);
+        metrics.gauge("purge_jobs", () -> containerPurger.getJobs().size());
+        metrics.gauge("expirer_pending", objectExpirer::getPendingCount);
+        metrics.gauges("write_behind", writeBehindJournal::getStats);
+        metrics.gauges("dedup", dedupStore::getStats);
+        metrics.gauges("listing_index", listingIndex::getStats);
+        metrics.gauges("usage", usageTracker::getStats);
+        metrics.gauges("context_pool", contextPool::getStats);
+        metrics.gauge("traces_dropped", () -> tracer.getDropped());
+    }
+
     public String authenticate(String identity, String credential) {
         AuthenticatedBlobStore blobStore = tryAuthenticate(identity, credential);
         if (blobStore != null) {
-            String token = "AUTH_tk" + RandomStringUtils.randomAlphanumeric(32);
-            tokensToIdentities.put(token, identity);
-            identitiesToBlobStore.put(identity, blobStore);
+            String token;
+            if (statelessTokens.isEnabled()) {
+                token = statelessTokens.issue(identity, credential,
+                        System.currentTimeMillis() / 1000 + InfoResource.CONFIG.tempauth.token_life);
+            } else {
+                token = "AUTH_tk" + RandomStringUtils.randomAlphanumeric(32);
+                tokensToIdentities.put(token, identity);
+            }
+            attach(identity, blobStore);
             return token;
         }
 
         return null;
     }
 
+    private void attach(String identity, AuthenticatedBlobStore blobStore) {
+        identitiesToBlobStore.put(identity, blobStore);
+        writeBehindJournal.attach(identity);
+        containerPurger.attach(identity);
+        usageTracker.attach(identity);
+    }
+
     private AuthenticatedBlobStore tryAuthenticate(String identity, String credential) {
         if (locator != null) {
             Map.Entry<String, BlobStore> entry = locator.locateBlobStore(identity, null, null);
             if (entry != null && entry.getKey().equals(credential)) {
                 logger.debug("blob store for {} found", identity);
-                return (container, key) -> locator.locateBlobStore(identity, container, key).getValue();
+                return (container, key) ->
+                        metrics.instrument(locator.locateBlobStore(identity, container, key).getValue());
             } else {
                 logger.debug("blob store for {} not found", identity);
             }
@@ -118,13 +215,8 @@ public final class BounceResourceConfig extends ResourceConfig {
             }
 
             try {
-                BlobStoreContext context = ContextBuilder
-                        .newBuilder(provider)
-                        .overrides(properties)
-                        .credentials(identity, credential)
-                        .modules(ImmutableSet.<Module>of(new SLF4JLoggingModule()))
-                        .build(BlobStoreContext.class);
-                return (container, key) -> context.getBlobStore();
+                Supplier<BlobStoreContext> context = contextPool.get(provider, identity, credential);
+                return (container, key) -> metrics.instrument(context.get().getBlobStore());
             } catch (Throwable e) {
                 throw propagate(e);
             }
@@ -133,7 +225,81 @@ public final class BounceResourceConfig extends ResourceConfig {
         return null;
     }
 
+    /**
+     * Returns the blob store of an identity for work that runs outside of a
+     * request, e.g. journal replay after a restart.  This only succeeds if a
+     * locator is set, the identity authenticated recently, or it is the
+     * identity configured in the properties.
+     */
+    AuthenticatedBlobStore getBlobStoreForIdentity(String identity) {
+        if (locator != null) {
+            if (locator.locateBlobStore(identity, null, null) == null) {
+                return null;
+            }
+            return (container, key) ->
+                    metrics.instrument(locator.locateBlobStore(identity, container, key).getValue());
+        }
+
+        AuthenticatedBlobStore blobStore = identitiesToBlobStore.getIfPresent(identity);
+        if (blobStore == null && properties != null &&
+                identity.equals(properties.getProperty(Constants.PROPERTY_IDENTITY))) {
+            blobStore = tryAuthenticate(identity, properties.getProperty(Constants.PROPERTY_CREDENTIAL));
+            if (blobStore != null) {
+                identitiesToBlobStore.put(identity, blobStore);
+            }
+        }
+        return blobStore;
+    }
+
+    /**
+     * Returns a token of this node for an identity whose temp url was just
+     * verified, or null if there is no blob store for it.
+     */
+    public String getTempUrlToken(String identity) {
+        String token = tempUrlTokens.getIfPresent(identity);
+        if (token != null) {
+            return token;
+        }
+        AuthenticatedBlobStore blobStore = getBlobStoreForIdentity(identity);
+        if (blobStore == null) {
+            return null;
+        }
+        if (identitiesToBlobStore.getIfPresent(identity) == null) {
+            attach(identity, blobStore);
+        }
+        token = "AUTH_tk" + RandomStringUtils.randomAlphanumeric(32);
+        tokensToIdentities.put(token, identity);
+        tempUrlTokens.put(identity, token);
+        return token;
+    }
+
+    public String getIdentity(String authToken) {
+        if (authToken == null) {
+            return null;
+        }
+        if (statelessTokens.isEnabled() && StatelessTokens.isStateless(authToken)) {
+            StatelessTokens.Claims claims = statelessTokens.verify(authToken);
+            return claims == null ? null : claims.getIdentity();
+        }
+        return tokensToIdentities.getIfPresent(authToken);
+    }
+
     public AuthenticatedBlobStore getBlobStore(String authToken) {
+        if (statelessTokens.isEnabled() && StatelessTokens.isStateless(authToken)) {
+            StatelessTokens.Claims claims = statelessTokens.verify(authToken);
+            if (claims == null) {
+                return null;
+            }
+            AuthenticatedBlobStore blobStore = identitiesToBlobStore.getIfPresent(claims.getIdentity());
+            if (blobStore == null) {
+                // issued by another node, or before this one restarted
+                blobStore = tryAuthenticate(claims.getIdentity(), claims.getCredential());
+                if (blobStore != null) {
+                    attach(claims.getIdentity(), blobStore);
+                }
+            }
+            return blobStore;
+        }
         String identity = tokensToIdentities.getIfPresent(authToken);
         return identitiesToBlobStore.getIfPresent(identity);
     }
@@ -156,5 +322,123 @@ public final class BounceResourceConfig extends ResourceConfig {
 
     public void setBlobStoreLocator(BlobStoreLocator newLocator) {
         locator = newLocator;
+        writeBehindJournal.retryParked();
+    }
+
+    public ObjectTracker getObjectTracker() {
+        return objectTracker;
+    }
+
+    public SLOMaterializer getSLOMaterializer() {
+        return sloMaterializer;
+    }
+
+    public WriteBehindJournal getWriteBehindJournal() {
+        return writeBehindJournal;
+    }
+
+    public FrameCompression getFrameCompression() {
+        return frameCompression;
+    }
+
+    public DedupStore getDedupStore() {
+        return dedupStore;
+    }
+
+    /**
+     * Returns whether objects of a container may be stored compressed or
+     * deduplicated, in which case their stored size and ETag are not the
+     * ones clients see.
+     */
+    public boolean isEncoded(String container) {
+        return frameCompression.shouldCompress(container) || dedupStore.shouldDedup(container);
+    }
+
+    /**
+     * Returns whether a container holds the proxy's own data: deduplicated
+     * chunks, materialized large objects or temp URL keys.  Clients can
+     * neither see nor change these containers.
+     */
+    public boolean isReservedContainer(String container) {
+        return container.equals(dedupStore.getChunkContainer()) ||
+                container.equals(sloMaterializer.getMaterializedContainer()) ||
+                container.equals(TempUrlKeys.METADATA_CONTAINER);
+    }
+
+    public BlobDeleter getBlobDeleter() {
+        return blobDeleter;
+    }
+
+    public BulkResponder getBulkResponder() {
+        return bulkResponder;
+    }
+
+    public ArchiveExtractor getArchiveExtractor() {
+        return archiveExtractor;
+    }
+
+    public ContainerPurger getContainerPurger() {
+        return containerPurger;
+    }
+
+    public ObjectExpirer getObjectExpirer() {
+        return objectExpirer;
+    }
+
+    public ListingIndex getListingIndex() {
+        return listingIndex;
+    }
+
+    public UsageTracker getUsageTracker() {
+        return usageTracker;
+    }
+
+    public BlobStoreContextPool getContextPool() {
+        return contextPool;
+    }
+
+    public TempUrlKeys getTempUrlKeys() {
+        return tempUrlKeys;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Crawls a container with up to {@code swiftproxy.crawl.parallelism}
+     * concurrent listings; see {@link Utils#crawlBlobStoreParallel}.
+     */
+    public Stream<StorageMetadata> crawlBlobStore(BlobStore blobStore, String container,
+                                                  ListContainerOptions options, boolean ordered) {
+        return Utils.crawlBlobStoreParallel(blobStore, container, options, crawlExecutor,
+                crawlParallelism, ordered);
+    }
+
+    /**
+     * Crawls a container one page after another, listing up to
+     * {@code swiftproxy.crawl.prefetch} pages ahead of the consumer.
+     */
+    public Iterable<StorageMetadata> crawlBlobStore(BlobStore blobStore, String container,
+                                                    ListContainerOptions options, long limit,
+                                                    @Nullable String endMarker) {
+        return Utils.crawlBlobStore(blobStore, container, options, limit, endMarker,
+                crawlExecutor, crawlPrefetch);
+    }
+
+    void shutdown() {
+        sloMaterializer.shutdown();
+        writeBehindJournal.shutdown();
+        dedupStore.shutdown();
+        blobDeleter.shutdown();
+        bulkResponder.shutdown();
+        archiveExtractor.shutdown();
+        containerPurger.shutdown();
+        objectExpirer.shutdown();
+        listingIndex.shutdown();
+        usageTracker.shutdown();
+        crawlExecutor.shutdownNow();
+        contextPool.shutdown();
+        tracer.shutdown();
     }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+import java.util.Locale;
+import java.util.function.Supplier;
+import java.util.zip.Checksum;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Checksums that clients can ask the proxy to compute over object bodies.
+ * Values are rendered as lowercase hex of the big-endian checksum.
+ */
+public enum ChecksumAlgorithm {
+    CRC32C {
+        @Override
+        public Digest newDigest() {
+            if (JDK_CRC32C != null) {
+                // java.util.zip.CRC32C is intrinsified on CPUs with CRC32 instructions
+                Checksum checksum = JDK_CRC32C.get();
+                return new Digest() {
+                    @Override
+                    public void update(byte[] b, int off, int len) {
+                        checksum.update(b, off, len);
+                    }
+
+                    @Override
+                    public String getValue() {
+                        return String.format("%08x", checksum.getValue());
+                    }
+                };
+            }
+            return hasherDigest(Hashing.crc32c().newHasher(), true);
+        }
+    },
+    XXHASH64 {
+        @Override
+        public Digest newDigest() {
+            XXHash64 hash = new XXHash64();
+            return new Digest() {
+                @Override
+                public void update(byte[] b, int off, int len) {
+                    hash.update(b, off, len);
+                }
+
+                @Override
+                public String getValue() {
+                    return String.format("%016x", hash.getValue());
+                }
+            };
+        }
+    },
+    MD5 {
+        @Override
+        public Digest newDigest() {
+            return hasherDigest(Hashing.md5().newHasher(), false);
+        }
+    };
+
+    private static final Supplier<Checksum> JDK_CRC32C = findJdkCrc32c();
+
+    public abstract Digest newDigest();
+
+    public String getName() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /** Returns the algorithm called {@code name}, or null if there is none. */
+    public static ChecksumAlgorithm fromName(String name) {
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm.getName().equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    private static Supplier<Checksum> findJdkCrc32c() {
+        try {
+            Class<? extends Checksum> klass = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class);
+            return () -> {
+                try {
+                    return klass.getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        } catch (ClassNotFoundException e) {
+            // Java 8, fall back to Guava
+            return null;
+        }
+    }
+
+    private static Digest hasherDigest(Hasher hasher, boolean crc) {
+        return new Digest() {
+            @Override
+            public void update(byte[] b, int off, int len) {
+                hasher.putBytes(b, off, len);
+            }
+
+            @Override
+            public String getValue() {
+                // HashCode.toString() renders a CRC in little-endian byte order
+                return crc ? String.format("%08x", hasher.hash().asInt()) : hasher.hash().toString();
+            }
+        };
+    }
+
+    /** An in-progress checksum computation. */
+    public interface Digest {
+        void update(byte[] b, int off, int len);
+
+        String getValue();
+    }
+}
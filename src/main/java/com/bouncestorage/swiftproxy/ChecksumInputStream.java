@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Computes a checksum of everything read through it.  When the underlying
+ * stream is exhausted the value is compared against the expected one, if
+ * any, and a mismatch fails the read so that consumers such as an upload in
+ * progress are aborted instead of committing the body.  With an expected
+ * value the last byte is held back until the end of the underlying stream
+ * has been seen and checked, since a consumer that stops at the content
+ * length never reads end of stream and would otherwise commit a corrupt
+ * body.  Otherwise the value is handed to the listener before end of stream
+ * is returned, which lets callers record it in metadata that is written
+ * after the body; such a caller has to read the whole stream before it
+ * writes anything, e.g. by spooling it.
+ */
+public final class ChecksumInputStream extends FilterInputStream {
+    private final ChecksumAlgorithm algorithm;
+    private final ChecksumAlgorithm.Digest digest;
+    private final String expected;
+    private final Consumer<String> listener;
+    private String value;
+    private boolean mismatch;
+    // the byte held back while the end of the stream is not known, or -1
+    private int held = -1;
+
+    public ChecksumInputStream(InputStream in, ChecksumAlgorithm algorithm, String expected,
+                               Consumer<String> listener) {
+        super(requireNonNull(in));
+        this.algorithm = requireNonNull(algorithm);
+        this.digest = algorithm.newDigest();
+        this.expected = expected;
+        this.listener = requireNonNull(listener);
+    }
+
+    public ChecksumAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /** Returns the checksum, or null if the stream has not been read to the end. */
+    public String getValue() {
+        return value;
+    }
+
+    public boolean isMismatch() {
+        return mismatch;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (mismatch) {
+            throw mismatchException();
+        }
+        if (expected != null) {
+            return readHoldingBack(b, off, len);
+        }
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            digest.update(b, off, n);
+        } else if (n == -1 && value == null) {
+            finish();
+        }
+        return n;
+    }
+
+    /**
+     * Returns the held back byte followed by what is read after it, keeping
+     * the last byte read back in turn, so that the final byte is only
+     * returned once the checksum of the whole stream has been verified.
+     */
+    private int readHoldingBack(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (held == -1) {
+            if (value != null) {
+                return -1;
+            }
+            held = in.read();
+            if (held == -1) {
+                finish();
+                return -1;
+            }
+            update(held);
+        }
+        b[off] = (byte) held;
+        if (len == 1) {
+            int next = in.read();
+            if (next == -1) {
+                held = -1;
+                finish();
+            } else {
+                update(next);
+                held = next;
+            }
+            return 1;
+        }
+        int n = in.read(b, off + 1, len - 1);
+        if (n == -1) {
+            held = -1;
+            finish();
+            return 1;
+        }
+        digest.update(b, off + 1, n);
+        // the last byte read becomes the held one
+        held = b[off + n] & 0xff;
+        return n;
+    }
+
+    private void update(int c) {
+        digest.update(new byte[]{(byte) c}, 0, 1);
+    }
+
+    private void finish() throws IOException {
+        value = digest.getValue();
+        if (expected != null && !expected.equalsIgnoreCase(value)) {
+            mismatch = true;
+            throw mismatchException();
+        }
+        listener.accept(value);
+    }
+
+    private IOException mismatchException() {
+        return new IOException(String.format("%s mismatch: expected %s, got %s",
+                algorithm.getName(), expected, value));
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // every byte has to pass through the digest
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (r == -1) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
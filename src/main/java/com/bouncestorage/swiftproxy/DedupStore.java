@@ -0,0 +1,502 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deduplicating storage for object bodies.  Uploads are split with
+ * content-defined chunking so that an insertion only changes the chunks
+ * around it, each chunk is stored once in the chunk container under its
+ * SHA-256, and the object itself is replaced by a recipe listing its chunks.
+ * A fingerprint index remembers which chunks were already uploaded by each
+ * identity so that they can be skipped without a backend round trip.
+ */
+public final class DedupStore {
+    public static final String DEDUP_METADATA = "x-swiftproxy-dedup";
+    private static final String DEFAULT_CONTAINER = "swiftproxy-chunks";
+    private static final int DEFAULT_AVERAGE_CHUNK_SIZE = 64 * 1024;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // the table must never change, or existing chunks stop being found
+        Random random = new Random(0x5377696674L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Set<String> containers;
+    private final String chunkContainer;
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+    private final long smallMask;
+    private final long largeMask;
+    private final int prefetch;
+    private final ExecutorService executor;
+    private final Semaphore uploadPermits;
+    private final Set<String> fingerprints = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<String> preparedIdentities = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final AtomicLong logicalBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong chunksWritten = new AtomicLong();
+    private final AtomicLong chunksSkipped = new AtomicLong();
+    private final File indexFile;
+    private Writer indexWriter;
+
+    public DedupStore(Properties properties) {
+        containers = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(
+                properties.getProperty(SwiftProxy.PROPERTY_DEDUP_CONTAINERS, "")));
+        chunkContainer = properties.getProperty(SwiftProxy.PROPERTY_DEDUP_CHUNK_CONTAINER, DEFAULT_CONTAINER);
+        averageSize = Integer.highestOneBit(Integer.parseInt(properties.getProperty(
+                SwiftProxy.PROPERTY_DEDUP_CHUNK_SIZE, String.valueOf(DEFAULT_AVERAGE_CHUNK_SIZE))));
+        minSize = averageSize / 4;
+        maxSize = averageSize * 4;
+        // normalized chunking: a harder cut condition below the average
+        // size and an easier one above it narrows the chunk size spread
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        smallMask = -1L << (64 - bits - 1);
+        largeMask = -1L << (64 - bits + 1);
+        int threads = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_DEDUP_THREADS, "8"));
+        prefetch = threads;
+        uploadPermits = new Semaphore(threads * 2);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("dedup-%d").setDaemon(true).build());
+
+        String index = properties.getProperty(SwiftProxy.PROPERTY_DEDUP_INDEX);
+        indexFile = index == null ? null : new File(index);
+        if (indexFile != null) {
+            loadIndex();
+        }
+    }
+
+    public boolean shouldDedup(String container) {
+        return containers.contains("*") || containers.contains(container);
+    }
+
+    public String getChunkContainer() {
+        return chunkContainer;
+    }
+
+    /**
+     * Chunks {@code in}, uploads the chunks that are not known yet and
+     * returns the recipe.  The caller is responsible for storing the recipe.
+     */
+    public Recipe write(BlobStore blobStore, String identity, InputStream in) throws IOException {
+        if (preparedIdentities.add(identity)) {
+            blobStore.createContainerInLocation(null, chunkContainer);
+        }
+
+        Hasher md5 = Hashing.md5().newHasher();
+        List<Chunk> chunks = new ArrayList<>();
+        List<Future<?>> uploads = new ArrayList<>();
+        byte[] buffer = new byte[maxSize];
+        int filled = 0;
+        long length = 0;
+        boolean eof = false;
+        try {
+            while (true) {
+                if (!eof && filled < maxSize) {
+                    int n = ByteStreams.read(in, buffer, filled, maxSize - filled);
+                    eof = filled + n < maxSize;
+                    filled += n;
+                }
+                if (filled == 0) {
+                    break;
+                }
+
+                int cut = cut(buffer, filled);
+                byte[] data = Arrays.copyOf(buffer, cut);
+                System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+                filled -= cut;
+                md5.putBytes(data);
+                length += cut;
+
+                Chunk chunk = new Chunk(Hashing.sha256().hashBytes(data).toString(), cut);
+                chunks.add(chunk);
+                String fingerprint = identity + " " + chunk.hash;
+                if (fingerprints.contains(fingerprint)) {
+                    chunksSkipped.incrementAndGet();
+                    continue;
+                }
+                uploadPermits.acquireUninterruptibly();
+                // done() also runs when the upload is cancelled before it
+                // started, which a finally block in the task would miss
+                FutureTask<Void> upload = new FutureTask<Void>(() -> {
+                    Blob blob = blobStore.blobBuilder(chunk.hash)
+                            .payload(data)
+                            .contentLength(data.length)
+                            .build();
+                    blobStore.putBlob(chunkContainer, blob);
+                    if (fingerprints.add(fingerprint)) {
+                        chunksWritten.incrementAndGet();
+                        storedBytes.addAndGet(data.length);
+                        persist(fingerprint);
+                    }
+                    return null;
+                }) {
+                    @Override
+                    protected void done() {
+                        uploadPermits.release();
+                    }
+                };
+                try {
+                    executor.execute(upload);
+                } catch (RuntimeException e) {
+                    uploadPermits.release();
+                    throw e;
+                }
+                uploads.add(upload);
+            }
+
+            for (Future<?> upload : uploads) {
+                upload.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to upload chunk", e.getCause());
+        } finally {
+            uploads.forEach(f -> f.cancel(true));
+        }
+
+        logicalBytes.addAndGet(length);
+        logger.debug("stored {} bytes in {} chunks", length, chunks.size());
+        return new Recipe(length, md5.hash().toString(), chunks);
+    }
+
+    /** Returns the length of the next chunk in {@code buffer[0, filled)}. */
+    private int cut(byte[] buffer, int filled) {
+        if (filled <= minSize) {
+            return filled;
+        }
+        int normal = Math.min(averageSize, filled);
+        long fp = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + GEAR[buffer[i] & 0xff];
+            if ((fp & smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < filled; i++) {
+            fp = (fp << 1) + GEAR[buffer[i] & 0xff];
+            if ((fp & largeMask) == 0) {
+                return i + 1;
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Opens the bytes {@code first} through {@code last}, inclusive, of the
+     * object described by {@code recipe}, fetching chunks ahead of the
+     * reader in parallel.
+     */
+    public InputStream read(BlobStore blobStore, Recipe recipe, long first, long last) {
+        List<Chunk> chunks = recipe.chunks;
+        int start = 0;
+        long offset = 0;
+        while (start < chunks.size() && offset + chunks.get(start).length <= first) {
+            offset += chunks.get(start).length;
+            start++;
+        }
+        long skip = first - offset;
+        int end = start;
+        while (end < chunks.size() && offset <= last) {
+            offset += chunks.get(end).length;
+            end++;
+        }
+        return new ChunkInputStream(blobStore, chunks.subList(start, end), skip, last - first + 1);
+    }
+
+    public Map<String, Object> getStats() {
+        long logical = logicalBytes.get();
+        long stored = storedBytes.get();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("logical_bytes", logical);
+        stats.put("stored_bytes", stored);
+        stats.put("dedup_ratio", stored == 0 ? 0.0 : (double) logical / stored);
+        stats.put("chunks_written", chunksWritten.get());
+        stats.put("chunks_skipped", chunksSkipped.get());
+        stats.put("fingerprints", fingerprints.size());
+        return stats;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        synchronized (this) {
+            if (indexWriter != null) {
+                try {
+                    indexWriter.close();
+                } catch (IOException e) {
+                    logger.warn("failed to close fingerprint index", e);
+                }
+                indexWriter = null;
+            }
+        }
+    }
+
+    private void loadIndex() {
+        if (indexFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        fingerprints.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("failed to load fingerprint index " + indexFile, e);
+            }
+            logger.info("loaded {} chunk fingerprints", fingerprints.size());
+        }
+        try {
+            indexWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(indexFile, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to open fingerprint index " + indexFile, e);
+        }
+    }
+
+    private synchronized void persist(String fingerprint) throws IOException {
+        if (indexWriter != null) {
+            indexWriter.write(fingerprint);
+            indexWriter.write('\n');
+            indexWriter.flush();
+        }
+    }
+
+    /** A chunk of a deduplicated object. */
+    public static final class Chunk {
+        private final String hash;
+        private final int length;
+
+        Chunk(String hash, int length) {
+            this.hash = requireNonNull(hash);
+            this.length = length;
+        }
+    }
+
+    /**
+     * The chunks making up a deduplicated object.  The recipe is stored as
+     * the object's body, one {@code <sha256> <length>} line per chunk, while
+     * the original length and ETag are kept in {@link #DEDUP_METADATA}.
+     */
+    public static final class Recipe {
+        private final long length;
+        private final String etag;
+        private final List<Chunk> chunks;
+
+        Recipe(long length, String etag, List<Chunk> chunks) {
+            this.length = length;
+            this.etag = requireNonNull(etag);
+            this.chunks = requireNonNull(chunks);
+        }
+
+        public static Recipe parse(String metadata, InputStream in) throws IOException {
+            String[] tokens = metadata.split(" ");
+            if (tokens.length != 2) {
+                throw new IllegalArgumentException("unknown dedup format: " + metadata);
+            }
+            List<Chunk> chunks = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space == -1) {
+                        throw new IOException("corrupt recipe line: " + line);
+                    }
+                    chunks.add(new Chunk(line.substring(0, space), Integer.parseInt(line.substring(space + 1))));
+                }
+            }
+            return new Recipe(Long.parseLong(tokens[0]), tokens[1], chunks);
+        }
+
+        /** Parses only the metadata, for requests that do not need the chunks. */
+        public static Recipe parse(String metadata) {
+            String[] tokens = metadata.split(" ");
+            if (tokens.length != 2) {
+                throw new IllegalArgumentException("unknown dedup format: " + metadata);
+            }
+            return new Recipe(Long.parseLong(tokens[0]), tokens[1], Collections.emptyList());
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public String getMetadata() {
+            return length + " " + etag;
+        }
+
+        public byte[] toBytes() {
+            StringBuilder sb = new StringBuilder();
+            for (Chunk chunk : chunks) {
+                sb.append(chunk.hash).append(' ').append(chunk.length).append('\n');
+            }
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads a list of chunks in order while keeping up to {@code prefetch}
+     * chunk downloads in flight.
+     */
+    private final class ChunkInputStream extends InputStream {
+        private final BlobStore blobStore;
+        private final List<Chunk> chunks;
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        private int next;
+        private long skip;
+        private long remaining;
+        private byte[] current;
+        private int pos;
+
+        ChunkInputStream(BlobStore blobStore, List<Chunk> chunks, long skip, long length) {
+            this.blobStore = requireNonNull(blobStore);
+            this.chunks = requireNonNull(chunks);
+            this.skip = skip;
+            this.remaining = length;
+            fill();
+        }
+
+        private void fill() {
+            while (next < chunks.size() && pending.size() < prefetch) {
+                Chunk chunk = chunks.get(next++);
+                pending.add(executor.submit(() -> fetch(chunk)));
+            }
+        }
+
+        private byte[] fetch(Chunk chunk) throws IOException {
+            Blob blob = blobStore.getBlob(chunkContainer, chunk.hash);
+            if (blob == null) {
+                throw new IOException("missing chunk " + chunk.hash);
+            }
+            try (InputStream is = blob.getPayload().openStream()) {
+                byte[] data = ByteStreams.toByteArray(is);
+                if (data.length != chunk.length) {
+                    throw new IOException("chunk " + chunk.hash + " has " + data.length + " bytes, expected " +
+                            chunk.length);
+                }
+                return data;
+            }
+        }
+
+        private boolean nextChunk() throws IOException {
+            Future<byte[]> f = pending.poll();
+            if (f == null) {
+                return false;
+            }
+            try {
+                current = f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            pos = (int) Math.min(skip, current.length);
+            skip -= pos;
+            fill();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            while (current == null || pos == current.length) {
+                if (!nextChunk()) {
+                    throw new IOException("recipe is shorter than the object");
+                }
+            }
+            int n = (int) Math.min(Math.min(len, current.length - pos), remaining);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            pending.forEach(f -> f.cancel(true));
+            pending.clear();
+        }
+    }
+}
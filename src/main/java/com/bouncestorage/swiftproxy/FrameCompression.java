@@ -0,0 +1,393 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.options.GetOptions;
+
+/**
+ * Transparent per-container compression.  Object bodies are cut into frames
+ * of a fixed uncompressed size which are deflated independently, so that a
+ * range of the original object can be served by fetching and inflating only
+ * the frames covering it.  Each stored frame is prefixed with its type and
+ * stored length, and the offsets of all frames are appended to the blob as a
+ * seek index.  The original size and ETag are kept in the user metadata.
+ */
+public final class FrameCompression {
+    public static final String COMPRESSION_METADATA = "x-swiftproxy-compression";
+    private static final String ALGORITHM = "deflate";
+    private static final int DEFAULT_FRAME_SIZE = 256 * 1024;
+    private static final int FRAME_RAW = 0;
+    private static final int FRAME_DEFLATE = 1;
+    private static final int FRAME_HEADER_SIZE = 5;
+
+    private final Set<String> containers;
+    private final int frameSize;
+    private final int level;
+    private final Cache<String, long[]> indexes = CacheBuilder.newBuilder()
+            .maximumSize(1024)
+            .build();
+
+    public FrameCompression(Properties properties) {
+        containers = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(
+                properties.getProperty(SwiftProxy.PROPERTY_COMPRESSION_CONTAINERS, "")));
+        frameSize = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_COMPRESSION_FRAME_SIZE,
+                String.valueOf(DEFAULT_FRAME_SIZE)));
+        level = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_COMPRESSION_LEVEL,
+                String.valueOf(Deflater.DEFAULT_COMPRESSION)));
+    }
+
+    public boolean shouldCompress(String container) {
+        return containers.contains("*") || containers.contains(container);
+    }
+
+    /**
+     * Compresses {@code in} into {@code file}.  If the first frame does not
+     * compress, nothing is written and the returned result carries a stream
+     * of the unmodified body so that it can be stored raw.
+     */
+    public Spooled spool(InputStream in, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            return compress(in, out);
+        }
+    }
+
+    /**
+     * Compresses a body that is already in memory, without going through
+     * the disk.  The compressed body is returned by {@link Spooled#getBytes}.
+     */
+    public Spooled compress(byte[] body, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        Spooled spooled = compress(new ByteArrayInputStream(body, 0, length), out);
+        return spooled.isCompressed() ? new Spooled(spooled.getInfo(), out.toByteArray()) : spooled;
+    }
+
+    private Spooled compress(InputStream in, OutputStream sink) throws IOException {
+        byte[] frame = new byte[frameSize];
+        byte[] compressed = new byte[frameSize];
+        Deflater deflater = new Deflater(level);
+        try {
+            int n = ByteStreams.read(in, frame, 0, frameSize);
+            if (n == 0 || deflate(deflater, frame, n, compressed) < 0) {
+                return new Spooled(new SequenceInputStream(new ByteArrayInputStream(frame, 0, n), in));
+            }
+
+            Hasher md5 = Hashing.md5().newHasher();
+            List<Long> offsets = new ArrayList<>();
+            long length = 0;
+            long offset = 0;
+            DataOutputStream out = new DataOutputStream(sink);
+            while (n > 0) {
+                md5.putBytes(frame, 0, n);
+                length += n;
+                offsets.add(offset);
+                int clen = deflate(deflater, frame, n, compressed);
+                if (clen < 0) {
+                    out.writeByte(FRAME_RAW);
+                    out.writeInt(n);
+                    out.write(frame, 0, n);
+                    offset += FRAME_HEADER_SIZE + n;
+                } else {
+                    out.writeByte(FRAME_DEFLATE);
+                    out.writeInt(clen);
+                    out.write(compressed, 0, clen);
+                    offset += FRAME_HEADER_SIZE + clen;
+                }
+                n = ByteStreams.read(in, frame, 0, frameSize);
+            }
+
+            out.writeInt(offsets.size());
+            for (long o : offsets) {
+                out.writeLong(o);
+            }
+            out.flush();
+            // the frames, then the index: its count and one offset per frame
+            return new Spooled(new Info(frameSize, length, md5.hash().toString(), offset, null),
+                    offset + 4 + 8L * offsets.size());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Deflates a frame, returning the compressed length or -1 if the frame
+     * does not shrink by at least a tenth.
+     */
+    private static int deflate(Deflater deflater, byte[] frame, int n, byte[] out) {
+        int limit = n - n / 10;
+        deflater.reset();
+        deflater.setInput(frame, 0, n);
+        deflater.finish();
+        int total = 0;
+        while (!deflater.finished() && total < limit) {
+            total += deflater.deflate(out, total, limit - total);
+        }
+        return deflater.finished() ? total : -1;
+    }
+
+    /** Decodes a full compressed blob body. */
+    public InputStream decode(InputStream in, Info info) {
+        return new FrameInputStream(in, info.frameSize, 0, info.length);
+    }
+
+    /** Opens the original bytes {@code first} through {@code last}, inclusive. */
+    public InputStream openRange(BlobStore blobStore, String container, String object, Info info,
+                                 long first, long last) throws IOException {
+        long[] index = getIndex(blobStore, container, object, info);
+        int firstFrame = (int) (first / info.frameSize);
+        int lastFrame = (int) (last / info.frameSize);
+        long start = index[firstFrame];
+        long end = lastFrame + 1 < index.length ? index[lastFrame + 1] - 1 : info.indexOffset - 1;
+
+        Blob blob = blobStore.getBlob(container, object, new GetOptions().range(start, end));
+        if (blob == null) {
+            throw new IOException("compressed object disappeared: " + container + "/" + object);
+        }
+        return new FrameInputStream(blob.getPayload().openStream(), info.frameSize,
+                first - (long) firstFrame * info.frameSize, last - first + 1);
+    }
+
+    private long[] getIndex(BlobStore blobStore, String container, String object, Info info)
+            throws IOException {
+        String key = container + "/" + object + "/" + info.backendETag;
+        long[] index = indexes.getIfPresent(key);
+        if (index != null) {
+            return index;
+        }
+
+        Blob blob = blobStore.getBlob(container, object, new GetOptions().startAt(info.indexOffset));
+        if (blob == null) {
+            throw new IOException("compressed object disappeared: " + container + "/" + object);
+        }
+        try (DataInputStream in = new DataInputStream(blob.getPayload().openStream())) {
+            index = new long[in.readInt()];
+            for (int i = 0; i < index.length; i++) {
+                index[i] = in.readLong();
+            }
+        }
+        if (info.backendETag != null) {
+            indexes.put(key, index);
+        }
+        return index;
+    }
+
+    /** The result of {@link #spool} or {@link #compress}. */
+    public static final class Spooled {
+        private final Info info;
+        private final long storedLength;
+        private final byte[] bytes;
+        private final InputStream raw;
+
+        Spooled(Info info, long storedLength) {
+            this.info = requireNonNull(info);
+            this.storedLength = storedLength;
+            this.bytes = null;
+            this.raw = null;
+        }
+
+        Spooled(Info info, byte[] bytes) {
+            this.info = requireNonNull(info);
+            this.storedLength = bytes.length;
+            this.bytes = bytes;
+            this.raw = null;
+        }
+
+        Spooled(InputStream raw) {
+            this.info = null;
+            this.storedLength = -1;
+            this.bytes = null;
+            this.raw = requireNonNull(raw);
+        }
+
+        public boolean isCompressed() {
+            return info != null;
+        }
+
+        public Info getInfo() {
+            return info;
+        }
+
+        public long getStoredLength() {
+            return storedLength;
+        }
+
+        /** Returns the compressed body if it was compressed in memory. */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public InputStream getRawStream() {
+            return raw;
+        }
+    }
+
+    /** Describes a compressed blob, as recorded in {@link #COMPRESSION_METADATA}. */
+    public static final class Info {
+        private final int frameSize;
+        private final long length;
+        private final String etag;
+        private final long indexOffset;
+        private final String backendETag;
+
+        Info(int frameSize, long length, String etag, long indexOffset, String backendETag) {
+            this.frameSize = frameSize;
+            this.length = length;
+            this.etag = requireNonNull(etag);
+            this.indexOffset = indexOffset;
+            this.backendETag = backendETag;
+        }
+
+        public static Info parse(String value, String backendETag) {
+            String[] tokens = value.split(" ");
+            if (tokens.length != 5 || !ALGORITHM.equals(tokens[0])) {
+                throw new IllegalArgumentException("unknown compression format: " + value);
+            }
+            return new Info(Integer.parseInt(tokens[1]), Long.parseLong(tokens[2]), tokens[3],
+                    Long.parseLong(tokens[4]), backendETag);
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        @Override
+        public String toString() {
+            return ALGORITHM + " " + frameSize + " " + length + " " + etag + " " + indexOffset;
+        }
+    }
+
+    /**
+     * Inflates a sequence of frames, skipping the first {@code skip} bytes
+     * and stopping after {@code length} bytes so that the seek index trailer
+     * and any partial frame are never returned.
+     */
+    private static final class FrameInputStream extends InputStream {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater();
+        private final byte[] stored;
+        private final byte[] frame;
+        private long skip;
+        private long remaining;
+        private int pos;
+        private int count;
+
+        FrameInputStream(InputStream in, int frameSize, long skip, long length) {
+            this.in = new DataInputStream(requireNonNull(in));
+            this.stored = new byte[frameSize];
+            this.frame = new byte[frameSize];
+            this.skip = skip;
+            this.remaining = length;
+        }
+
+        private void nextFrame() throws IOException {
+            int type = in.read();
+            if (type == -1) {
+                throw new EOFException("truncated compressed object");
+            }
+            int n = in.readInt();
+            if (n < 0 || n > stored.length) {
+                throw new IOException("corrupt frame length " + n);
+            }
+            if (type == FRAME_RAW) {
+                in.readFully(frame, 0, n);
+                count = n;
+            } else if (type == FRAME_DEFLATE) {
+                in.readFully(stored, 0, n);
+                inflater.reset();
+                inflater.setInput(stored, 0, n);
+                count = 0;
+                try {
+                    while (!inflater.finished() && count < frame.length) {
+                        int inflated = inflater.inflate(frame, count, frame.length - count);
+                        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            throw new IOException("truncated frame");
+                        }
+                        count += inflated;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException(e);
+                }
+            } else {
+                throw new IOException("unknown frame type " + type);
+            }
+            pos = (int) Math.min(skip, count);
+            skip -= pos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            while (pos == count) {
+                nextFrame();
+            }
+            int n = (int) Math.min(Math.min(len, count - pos), remaining);
+            System.arraycopy(frame, pos, b, off, n);
+            pos += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Longs;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.ConnectionProbe;
+import org.jclouds.blobstore.BlobStore;
+
+/**
+ * Counters and latency histograms of the proxy, rendered in the Prometheus
+ * text format by {@code /metrics}.  Recording only touches
+ * {@link LongAdder}s, so it never blocks request threads; label sets are
+ * created on first use and live as long as the proxy.
+ */
+public final class Metrics {
+    // upper bounds of the latency buckets, in seconds
+    private static final double[] BUCKETS = {
+        0.0001, 0.0002, 0.0005, 0.001, 0.002, 0.005, 0.01, 0.02, 0.05,
+        0.1, 0.2, 0.5, 1, 2, 5, 10, 20, 60,
+    };
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    // BlobStore methods that do not call the backend
+    private static final Set<String> LOCAL_OPERATIONS = ImmutableSet.of(
+            "blobBuilder",
+            "getContext",
+            "getMaximumMultipartPartSize",
+            "getMaximumNumberOfParts",
+            "getMinimumMultipartPartSize"
+    );
+
+    private final ConcurrentMap<String, Histogram> requests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> backend = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> backendErrors = new ConcurrentHashMap<>();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<Map<String, Object>>> stats = new ConcurrentHashMap<>();
+
+    /** A histogram with fixed buckets; recording is lock-free. */
+    public static final class Histogram {
+        // inclusive upper bounds, in nanoseconds; the last bucket is unbounded
+        private final long[] bounds;
+        private final LongAdder[] counts;
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            this(BUCKET_NANOS);
+        }
+
+        private Histogram(long[] bounds) {
+            this.bounds = bounds;
+            counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Returns a histogram whose bucket bounds grow by {@code factor} from
+         * {@code minNanos} to at least {@code maxNanos}, so that quantiles
+         * are estimated within that relative error.
+         */
+        public static Histogram exponential(long minNanos, long maxNanos, double factor) {
+            checkArgument(minNanos > 0 && maxNanos > minNanos && factor > 1);
+            List<Long> bounds = new ArrayList<>();
+            for (double bound = minNanos; bounds.isEmpty() || bounds.get(bounds.size() - 1) < maxNanos;
+                    bound *= factor) {
+                long rounded = (long) Math.ceil(bound);
+                if (bounds.isEmpty() || rounded > bounds.get(bounds.size() - 1)) {
+                    bounds.add(rounded);
+                }
+            }
+            return new Histogram(Longs.toArray(bounds));
+        }
+
+        public void record(long nanos) {
+            int i = Arrays.binarySearch(bounds, nanos);
+            counts[i >= 0 ? i : -i - 1].increment();
+            sumNanos.add(nanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder c : counts) {
+                count += c.sum();
+            }
+            return count;
+        }
+
+        public double getSumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+
+        /**
+         * Estimates a quantile, between 0 and 1, by interpolating within the
+         * bucket it falls in.  Values beyond the last bound are reported as
+         * the last bound.
+         */
+        public double getQuantileSeconds(double quantile) {
+            long[] snapshot = snapshot();
+            long count = 0;
+            for (long c : snapshot) {
+                count += c;
+            }
+            if (count == 0) {
+                return 0;
+            }
+            double rank = quantile * count;
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                if (cumulative + snapshot[i] >= rank && snapshot[i] > 0) {
+                    long lower = i == 0 ? 0 : bounds[i - 1];
+                    double fraction = (rank - cumulative) / snapshot[i];
+                    return (lower + fraction * (bounds[i] - lower)) / 1e9;
+                }
+                cumulative += snapshot[i];
+            }
+            return bounds[bounds.length - 1] / 1e9;
+        }
+
+        private long[] snapshot() {
+            long[] snapshot = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                snapshot[i] = counts[i].sum();
+            }
+            return snapshot;
+        }
+    }
+
+    void inFlight(int delta) {
+        inFlight.add(delta);
+    }
+
+    long getInFlight() {
+        return inFlight.sum();
+    }
+
+    void recordRequest(String resource, String handler, String method, int status, long nanos) {
+        String labels = "resource=\"" + resource + "\",handler=\"" + handler + "\",method=\"" + method +
+                "\",status=\"" + status + "\"";
+        requests.computeIfAbsent(labels, k -> new Histogram()).record(nanos);
+    }
+
+    void recordBackend(String operation, long nanos, boolean failed) {
+        String labels = "operation=\"" + operation + "\"";
+        backend.computeIfAbsent(labels, k -> new Histogram()).record(nanos);
+        if (failed) {
+            backendErrors.computeIfAbsent(labels, k -> new LongAdder()).increment();
+        }
+    }
+
+    /** Exports a value, read at every scrape, as gauge {@code swiftproxy_<name>}. */
+    public void gauge(String name, Supplier<? extends Number> value) {
+        gauges.put(name, requireNonNull(value));
+    }
+
+    /**
+     * Exports the numeric entries of a service's {@code getStats()} as gauges
+     * {@code swiftproxy_<prefix>_<key>}; booleans become 0 or 1.
+     */
+    public void gauges(String prefix, Supplier<Map<String, Object>> values) {
+        stats.put(prefix, requireNonNull(values));
+    }
+
+    /**
+     * Wraps a blob store so that every backend call is timed, and added to
+     * the {@link Trace} of the request being served.
+     */
+    public BlobStore instrument(BlobStore blobStore) {
+        requireNonNull(blobStore);
+        return (BlobStore) Proxy.newProxyInstance(BlobStore.class.getClassLoader(),
+                new Class<?>[] {BlobStore.class}, (proxy, method, args) -> invoke(blobStore, method, args));
+    }
+
+    private Object invoke(BlobStore blobStore, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class || LOCAL_OPERATIONS.contains(method.getName())) {
+            try {
+                return method.invoke(blobStore, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object result = method.invoke(blobStore, args);
+            failed = false;
+            return result;
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            long duration = System.nanoTime() - start;
+            recordBackend(method.getName(), duration, failed);
+            Trace trace = Trace.current();
+            if (trace != null) {
+                trace.span(method.getName(), start, duration, failed);
+            }
+        }
+    }
+
+    /** Counts the bytes read from and written to client connections. */
+    public ConnectionProbe getConnectionProbe() {
+        return new ConnectionProbe.Adapter() {
+            @Override
+            public void onReadEvent(Connection connection, Buffer data, int size) {
+                bytesIn.add(size);
+            }
+
+            @Override
+            public void onWriteEvent(Connection connection, Buffer data, long size) {
+                bytesOut.add(size);
+            }
+        };
+    }
+
+    /** Renders every metric in the Prometheus text exposition format. */
+    public String render() {
+        StringBuilder sb = new StringBuilder();
+        writeHistograms(sb, "swiftproxy_request_duration_seconds",
+                "Time to serve a request, by resource method and status.", requests);
+        writeHistograms(sb, "swiftproxy_backend_duration_seconds",
+                "Time spent in blob store calls, by operation.", backend);
+
+        sb.append("# HELP swiftproxy_backend_errors_total Blob store calls that threw.\n");
+        sb.append("# TYPE swiftproxy_backend_errors_total counter\n");
+        new TreeMap<>(backendErrors).forEach((labels, count) ->
+                sb.append("swiftproxy_backend_errors_total{").append(labels).append("} ")
+                        .append(count.sum()).append('\n'));
+
+        sb.append("# HELP swiftproxy_requests_in_flight Requests being served.\n");
+        sb.append("# TYPE swiftproxy_requests_in_flight gauge\n");
+        sb.append("swiftproxy_requests_in_flight ").append(inFlight.sum()).append('\n');
+
+        sb.append("# HELP swiftproxy_client_bytes_total Bytes exchanged with clients, headers included.\n");
+        sb.append("# TYPE swiftproxy_client_bytes_total counter\n");
+        sb.append("swiftproxy_client_bytes_total{direction=\"in\"} ").append(bytesIn.sum()).append('\n');
+        sb.append("swiftproxy_client_bytes_total{direction=\"out\"} ").append(bytesOut.sum()).append('\n');
+
+        Map<String, Number> values = new TreeMap<>();
+        gauges.forEach((name, value) -> values.put(name, value.get()));
+        stats.forEach((prefix, supplier) -> supplier.get().forEach((key, value) -> {
+            if (value instanceof Number) {
+                values.put(prefix + "_" + key, (Number) value);
+            } else if (value instanceof Boolean) {
+                values.put(prefix + "_" + key, (Boolean) value ? 1 : 0);
+            }
+        }));
+        values.forEach((name, value) -> {
+            sb.append("# TYPE swiftproxy_").append(name).append(" gauge\n");
+            sb.append("swiftproxy_").append(name).append(' ').append(value).append('\n');
+        });
+        return sb.toString();
+    }
+
+    private static void writeHistograms(StringBuilder sb, String name, String help,
+                                        Map<String, Histogram> histograms) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        new TreeMap<>(histograms).forEach((labels, histogram) -> {
+            long[] counts = histogram.snapshot();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = i < histogram.bounds.length ?
+                        BigDecimal.valueOf(histogram.bounds[i], 9).stripTrailingZeros().toPlainString() : "+Inf";
+                sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSumSeconds())
+                    .append('\n');
+            sb.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        });
+    }
+}
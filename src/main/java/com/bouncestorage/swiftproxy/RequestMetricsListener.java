@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy;
+
+import static java.util.Objects.requireNonNull;
+
+import java.lang.reflect.Method;
+
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.model.ResourceMethod;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * Times every request from the moment Jersey sees it until its response
+ * has been written, labelled with the resource method that served it.
+ */
+final class RequestMetricsListener implements ApplicationEventListener {
+    private final Metrics metrics;
+
+    RequestMetricsListener(Metrics metrics) {
+        this.metrics = requireNonNull(metrics);
+    }
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent event) {
+        long start = System.nanoTime();
+        metrics.inFlight(1);
+        return e -> {
+            if (e.getType() != RequestEvent.Type.FINISHED) {
+                return;
+            }
+            metrics.inFlight(-1);
+            String resource = "none";
+            String handler = "none";
+            ResourceMethod matched = e.getUriInfo().getMatchedResourceMethod();
+            if (matched != null) {
+                Method method = matched.getInvocable().getHandlingMethod();
+                resource = method.getDeclaringClass().getSimpleName();
+                handler = method.getName();
+            }
+            ContainerResponse response = e.getContainerResponse();
+            int status = response != null ? response.getStatus() : 500;
+            metrics.recordRequest(resource, handler, e.getContainerRequest().getMethod(), status,
+                    System.nanoTime() - start);
+        };
+    }
+}
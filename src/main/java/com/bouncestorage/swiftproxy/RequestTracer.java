@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.model.ResourceMethod;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Gives every request a transaction id, returned in {@code X-Trans-Id} and
+ * logged through the {@value #MDC_KEY} MDC key, and exports the backend
+ * calls of a sample of requests.  Traces are written either as JSON log
+ * lines to the {@code com.bouncestorage.swiftproxy.trace} logger or, as
+ * OTLP/JSON, one export request per line, to a file that an OpenTelemetry
+ * collector can tail.
+ */
+final class RequestTracer implements ApplicationEventListener {
+    static final String MDC_KEY = "transId";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String TRACE_FILE = "swiftproxy-traces.jsonl";
+    // the most X-Trans-Id-Extra characters appended to the id, as in Swift
+    private static final int MAX_EXTRA = 32;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Logger traceLogger = LoggerFactory.getLogger("com.bouncestorage.swiftproxy.trace");
+    private final double sampleRate;
+    private final Path traceFile;
+    private final ExecutorService exporter;
+    private final AtomicLong dropped = new AtomicLong();
+
+    RequestTracer(Properties properties) {
+        sampleRate = Double.parseDouble(properties.getProperty(SwiftProxy.PROPERTY_TRACE_SAMPLE_RATE, "0"));
+        String export = properties.getProperty(SwiftProxy.PROPERTY_TRACE_EXPORT, "log");
+        switch (export) {
+            case "log":
+                traceFile = null;
+                break;
+            case "otlp":
+                String dir = properties.getProperty(SwiftProxy.PROPERTY_TRACE_DIRECTORY);
+                try {
+                    Path directory = dir == null ? Files.createTempDirectory("swiftproxy-traces-") : Paths.get(dir);
+                    Files.createDirectories(directory);
+                    traceFile = directory.resolve(TRACE_FILE);
+                } catch (IOException e) {
+                    throw new IllegalStateException("cannot create the trace directory", e);
+                }
+                logger.info("writing traces to {}", traceFile);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown trace export: " + export);
+        }
+        // exports never hold up requests: when the exporter falls behind,
+        // traces are dropped
+        exporter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1000),
+                new ThreadFactoryBuilder().setNameFormat("trace-exporter").setDaemon(true).build(),
+                (task, executor) -> dropped.incrementAndGet());
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    void shutdown() {
+        exporter.shutdown();
+    }
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent event) {
+        boolean sampled = sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+        Trace trace = new Trace(sampled, extra(event.getContainerRequest()));
+        trace.bind();
+        MDC.put(MDC_KEY, trace.getTransId());
+        return e -> {
+            switch (e.getType()) {
+                case RESP_FILTERS_START:
+                    e.getContainerResponse().getHeaders().putSingle("X-Trans-Id", trace.getTransId());
+                    e.getContainerResponse().getHeaders().putSingle("X-Openstack-Request-Id", trace.getTransId());
+                    break;
+                case FINISHED:
+                    trace.unbind();
+                    MDC.remove(MDC_KEY);
+                    if (trace.isSampled()) {
+                        long durationNanos = System.nanoTime() - trace.getStartNanos();
+                        ContainerResponse response = e.getContainerResponse();
+                        int status = response != null ? response.getStatus() : 500;
+                        String name = name(e);
+                        String path = "/" + e.getUriInfo().getPath(false);
+                        exporter.execute(() -> export(trace, name, path, status, durationNanos));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        };
+    }
+
+    private static String extra(ContainerRequest request) {
+        String extra = request.getHeaderString("X-Trans-Id-Extra");
+        if (extra == null || extra.isEmpty()) {
+            return null;
+        }
+        try {
+            String encoded = URLEncoder.encode(extra, "UTF-8");
+            return "-" + encoded.substring(0, Math.min(encoded.length(), MAX_EXTRA));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String name(RequestEvent event) {
+        String method = event.getContainerRequest().getMethod();
+        ResourceMethod matched = event.getUriInfo().getMatchedResourceMethod();
+        if (matched == null) {
+            return method;
+        }
+        Method handler = matched.getInvocable().getHandlingMethod();
+        return method + " " + handler.getDeclaringClass().getSimpleName() + "." + handler.getName();
+    }
+
+    private void export(Trace trace, String name, String path, int status, long durationNanos) {
+        try {
+            if (traceFile == null) {
+                traceLogger.info(MAPPER.writeValueAsString(toLogRecord(trace, name, path, status, durationNanos)));
+            } else {
+                String line = MAPPER.writeValueAsString(toOtlp(trace, name, path, status, durationNanos));
+                try (Writer writer = Files.newBufferedWriter(traceFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("failed to export trace " + trace.getTransId(), e);
+        }
+    }
+
+    private static Map<String, Object> toLogRecord(Trace trace, String name, String path, int status,
+                                                   long durationNanos) {
+        List<Map<String, Object>> spans = new ArrayList<>();
+        for (Trace.Span span : trace.getSpans()) {
+            Map<String, Object> s = new HashMap<>();
+            s.put("operation", span.getOperation());
+            s.put("start_us", span.getOffsetNanos() / 1000);
+            s.put("duration_us", span.getDurationNanos() / 1000);
+            s.put("failed", span.isFailed());
+            spans.add(s);
+        }
+        Map<String, Object> record = new HashMap<>();
+        record.put("trans_id", trace.getTransId());
+        record.put("name", name);
+        record.put("path", path);
+        record.put("status", status);
+        record.put("duration_us", durationNanos / 1000);
+        record.put("backend_calls", spans.size());
+        record.put("spans", spans);
+        return record;
+    }
+
+    private static Map<String, Object> toOtlp(Trace trace, String name, String path, int status,
+                                              long durationNanos) {
+        long startNanos = TimeUnit.MILLISECONDS.toNanos(trace.getStartMillis());
+        String rootId = spanId();
+        List<Map<String, Object>> spans = new ArrayList<>();
+        spans.add(otlpSpan(trace, rootId, "", name, 2, startNanos, durationNanos, status >= 500,
+                ImmutableList.of(
+                        attribute("http.target", path),
+                        attribute("http.status_code", Integer.toString(status)),
+                        attribute("swift.trans_id", trace.getTransId()))));
+        for (Trace.Span span : trace.getSpans()) {
+            spans.add(otlpSpan(trace, spanId(), rootId, span.getOperation(), 3,
+                    startNanos + span.getOffsetNanos(), span.getDurationNanos(), span.isFailed(),
+                    ImmutableList.of()));
+        }
+        return ImmutableMap.of("resourceSpans", ImmutableList.of(ImmutableMap.of(
+                "resource", ImmutableMap.of("attributes",
+                        ImmutableList.of(attribute("service.name", "swiftproxy"))),
+                "scopeSpans", ImmutableList.of(ImmutableMap.of(
+                        "scope", ImmutableMap.of("name", "swiftproxy"),
+                        "spans", spans)))));
+    }
+
+    private static Map<String, Object> otlpSpan(Trace trace, String spanId, String parentSpanId, String name,
+                                                int kind, long startNanos, long durationNanos, boolean failed,
+                                                List<Map<String, Object>> attributes) {
+        Map<String, Object> span = new HashMap<>();
+        span.put("traceId", trace.getTraceId());
+        span.put("spanId", spanId);
+        span.put("parentSpanId", parentSpanId);
+        span.put("name", name);
+        // SPAN_KIND_SERVER or SPAN_KIND_CLIENT
+        span.put("kind", kind);
+        // 64-bit integers are strings in OTLP/JSON
+        span.put("startTimeUnixNano", Long.toString(startNanos));
+        span.put("endTimeUnixNano", Long.toString(startNanos + durationNanos));
+        span.put("attributes", attributes);
+        // STATUS_CODE_ERROR or STATUS_CODE_UNSET
+        span.put("status", ImmutableMap.of("code", failed ? 2 : 0));
+        return span;
+    }
+
+    private static Map<String, Object> attribute(String key, String value) {
+        return ImmutableMap.of("key", key, "value", ImmutableMap.of("stringValue", value));
+    }
+
+    private static String spanId() {
+        return String.format("%016x", ThreadLocalRandom.current().nextLong());
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy;
+
+import static com.google.common.base.Throwables.propagate;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.base.Splitter;
+
+/**
+ * Issues auth tokens that any proxy sharing the same keys can validate
+ * without a lookup, so that clients need not stick to the node that
+ * authenticated them.  A token carries the identity, its expiry and the
+ * credential, encrypted, so that a node which has not seen the identity yet
+ * can attach its blob store; all of it is signed with HMAC-SHA256.
+ *
+ * <p>Keys come from {@code swiftproxy.token.keys}, a comma-separated list
+ * of {@code id:secret} pairs.  The first key signs new tokens and all of
+ * them are accepted, so a key is rotated by putting a new one first and
+ * dropping the old one once its tokens have expired.
+ */
+public final class StatelessTokens {
+    static final String PREFIX = "AUTH_tks";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private static final int NONCE_LENGTH = 12;
+
+    private final Map<String, Key> keys = new LinkedHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    public StatelessTokens(Properties properties) {
+        for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(
+                properties.getProperty(SwiftProxy.PROPERTY_TOKEN_KEYS, ""))) {
+            int colon = entry.indexOf(':');
+            if (colon <= 0 || colon == entry.length() - 1 || entry.indexOf('.') >= 0) {
+                throw new IllegalArgumentException("token keys must be id:secret pairs without dots");
+            }
+            keys.put(entry.substring(0, colon),
+                    new Key(entry.substring(colon + 1).getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    public boolean isEnabled() {
+        return !keys.isEmpty();
+    }
+
+    static boolean isStateless(String token) {
+        return token.startsWith(PREFIX);
+    }
+
+    /** Returns a token for the identity that expires at {@code expiresAt}, in seconds since the epoch. */
+    public String issue(String identity, String credential, long expiresAt) {
+        Map.Entry<String, Key> signer = keys.entrySet().iterator().next();
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        String claims = signer.getKey() + "." + expiresAt + "." +
+                ENCODER.encodeToString(identity.getBytes(StandardCharsets.UTF_8)) + "." +
+                ENCODER.encodeToString(signer.getValue().encrypt(nonce,
+                        credential == null ? new byte[0] : credential.getBytes(StandardCharsets.UTF_8)));
+        return PREFIX + claims + "." + ENCODER.encodeToString(signer.getValue().sign(claims));
+    }
+
+    /** Returns the claims of a token, or null if it is malformed, forged or expired. */
+    public Claims verify(String token) {
+        if (!isStateless(token)) {
+            return null;
+        }
+        String[] parts = token.substring(PREFIX.length()).split("\\.", -1);
+        if (parts.length != 5) {
+            return null;
+        }
+        Key key = keys.get(parts[0]);
+        if (key == null) {
+            return null;
+        }
+        try {
+            String claims = token.substring(PREFIX.length(), token.lastIndexOf('.'));
+            if (!MessageDigest.isEqual(key.sign(claims), DECODER.decode(parts[4]))) {
+                return null;
+            }
+            long expiresAt = Long.parseLong(parts[1]);
+            if (expiresAt < System.currentTimeMillis() / 1000) {
+                return null;
+            }
+            return new Claims(key, new String(DECODER.decode(parts[2]), StandardCharsets.UTF_8),
+                    expiresAt, parts[3]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public static final class Claims {
+        private final Key key;
+        private final String identity;
+        private final long expiresAt;
+        private final String sealedCredential;
+
+        private Claims(Key key, String identity, long expiresAt, String sealedCredential) {
+            this.key = key;
+            this.identity = identity;
+            this.expiresAt = expiresAt;
+            this.sealedCredential = sealedCredential;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /** Decrypts the credential; only needed to attach an identity this node has not seen. */
+        public String getCredential() {
+            return new String(key.decrypt(DECODER.decode(sealedCredential)), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Key {
+        // Mac.getInstance dominates the cost of a verification
+        private final ThreadLocal<Mac> signing;
+        private final SecretKeySpec encryption;
+
+        Key(byte[] secret) {
+            // separate keys for signing and encrypting, derived from the one secret
+            SecretKeySpec master = new SecretKeySpec(secret, "HmacSHA256");
+            SecretKeySpec signingKey = new SecretKeySpec(hmac(master, "sign"), "HmacSHA256");
+            signing = ThreadLocal.withInitial(() -> mac(signingKey));
+            byte[] encryptionKey = new byte[16];
+            System.arraycopy(hmac(master, "encrypt"), 0, encryptionKey, 0, encryptionKey.length);
+            encryption = new SecretKeySpec(encryptionKey, "AES");
+        }
+
+        private static Mac mac(SecretKeySpec key) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw propagate(e);
+            }
+        }
+
+        private static byte[] hmac(SecretKeySpec key, String data) {
+            return mac(key).doFinal(data.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] sign(String claims) {
+            return signing.get().doFinal(claims.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] encrypt(byte[] nonce, byte[] plaintext) {
+            try {
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, encryption, new GCMParameterSpec(128, nonce));
+                byte[] ciphertext = cipher.doFinal(plaintext);
+                return ByteBuffer.allocate(nonce.length + ciphertext.length).put(nonce).put(ciphertext).array();
+            } catch (GeneralSecurityException e) {
+                throw propagate(e);
+            }
+        }
+
+        byte[] decrypt(byte[] sealed) {
+            try {
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, encryption, new GCMParameterSpec(128, sealed, 0, NONCE_LENGTH));
+                return cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+            } catch (GeneralSecurityException e) {
+                throw propagate(e);
+            }
+        }
+    }
+}
@@ -35,6 +35,51 @@ import org.slf4j.LoggerFactory;
 
 public final class SwiftProxy {
     public static final String PROPERTY_ENDPOINT = "swiftproxy.endpoint";
+    public static final String PROPERTY_SLO_MATERIALIZE = "swiftproxy.slo.materialize";
+    public static final String PROPERTY_SLO_MATERIALIZE_CONTAINER = "swiftproxy.slo.materialize.container";
+    public static final String PROPERTY_SLO_MATERIALIZE_THREADS = "swiftproxy.slo.materialize.threads";
+    public static final String PROPERTY_WRITE_BEHIND_DIR = "swiftproxy.write-behind.dir";
+    public static final String PROPERTY_WRITE_BEHIND_CONTAINERS = "swiftproxy.write-behind.containers";
+    public static final String PROPERTY_WRITE_BEHIND_SEGMENT_SIZE = "swiftproxy.write-behind.segment-size";
+    public static final String PROPERTY_WRITE_BEHIND_THREADS = "swiftproxy.write-behind.threads";
+    public static final String PROPERTY_COMPRESSION_CONTAINERS = "swiftproxy.compression.containers";
+    public static final String PROPERTY_COMPRESSION_FRAME_SIZE = "swiftproxy.compression.frame-size";
+    public static final String PROPERTY_COMPRESSION_LEVEL = "swiftproxy.compression.level";
+    public static final String PROPERTY_DEDUP_CONTAINERS = "swiftproxy.dedup.containers";
+    public static final String PROPERTY_DEDUP_CHUNK_CONTAINER = "swiftproxy.dedup.chunk-container";
+    public static final String PROPERTY_DEDUP_CHUNK_SIZE = "swiftproxy.dedup.chunk-size";
+    public static final String PROPERTY_DEDUP_INDEX = "swiftproxy.dedup.index";
+    public static final String PROPERTY_DEDUP_THREADS = "swiftproxy.dedup.threads";
+    public static final String PROPERTY_DELETE_THREADS = "swiftproxy.delete.threads";
+    public static final String PROPERTY_DELETE_BATCH_SIZE = "swiftproxy.delete.batch-size";
+    public static final String PROPERTY_BULK_HEARTBEAT_INTERVAL = "swiftproxy.bulk.heartbeat-interval";
+    public static final String PROPERTY_EXTRACT_THREADS = "swiftproxy.extract.threads";
+    public static final String PROPERTY_EXTRACT_BUFFER_SIZE = "swiftproxy.extract.buffer-size";
+    public static final String PROPERTY_PURGE_DIR = "swiftproxy.purge.dir";
+    public static final String PROPERTY_PURGE_RATE = "swiftproxy.purge.rate";
+    public static final String PROPERTY_PURGE_THREADS = "swiftproxy.purge.threads";
+    public static final String PROPERTY_EXPIRY_DIR = "swiftproxy.expiry.dir";
+    public static final String PROPERTY_EXPIRY_BUCKET_SECONDS = "swiftproxy.expiry.bucket-seconds";
+    public static final String PROPERTY_LISTING_INDEX_CONTAINERS = "swiftproxy.listing-index.containers";
+    public static final String PROPERTY_LISTING_INDEX_DIR = "swiftproxy.listing-index.dir";
+    public static final String PROPERTY_LISTING_INDEX_MAX_STALENESS = "swiftproxy.listing-index.max-staleness";
+    public static final String PROPERTY_LISTING_INDEX_COMPACT_THRESHOLD =
+            "swiftproxy.listing-index.compact-threshold";
+    public static final String PROPERTY_USAGE_FILE = "swiftproxy.usage.file";
+    public static final String PROPERTY_USAGE_PERSIST_INTERVAL = "swiftproxy.usage.persist-interval";
+    public static final String PROPERTY_USAGE_RECONCILE_INTERVAL = "swiftproxy.usage.reconcile-interval";
+    public static final String PROPERTY_USAGE_RECONCILE_RATE = "swiftproxy.usage.reconcile-rate";
+    public static final String PROPERTY_USAGE_RECONCILE_THREADS = "swiftproxy.usage.reconcile-threads";
+    public static final String PROPERTY_ACCOUNT_LISTING_TTL = "swiftproxy.account-listing.ttl";
+    public static final String PROPERTY_CRAWL_PARALLELISM = "swiftproxy.crawl.parallelism";
+    public static final String PROPERTY_CRAWL_PREFETCH = "swiftproxy.crawl.prefetch";
+    public static final String PROPERTY_CONTEXT_POOL_SIZE = "swiftproxy.context-pool.size";
+    public static final String PROPERTY_CONTEXT_POOL_IDLE_TIMEOUT = "swiftproxy.context-pool.idle-timeout";
+    public static final String PROPERTY_TOKEN_KEYS = "swiftproxy.token.keys";
+    public static final String PROPERTY_TEMP_URL_KEY_TTL = "swiftproxy.temp-url.key-ttl";
+    public static final String PROPERTY_TRACE_SAMPLE_RATE = "swiftproxy.trace.sample-rate";
+    public static final String PROPERTY_TRACE_EXPORT = "swiftproxy.trace.export";
+    public static final String PROPERTY_TRACE_DIRECTORY = "swiftproxy.trace.directory";
     private Logger logger = LoggerFactory.getLogger(getClass());
     private HttpServer server;
     private URI endpoint;
@@ -50,6 +95,8 @@ public final class SwiftProxy {
         server = GrizzlyHttpServerFactory.createHttpServer(endpoint, rc, false);
         server.getListeners().forEach(listener -> {
             listener.registerAddOn(new ContentLengthAddOn());
+            listener.getTransport().getConnectionMonitoringConfig().addProbes(
+                    rc.getMetrics().getConnectionProbe());
         });
 
         // allow HTTP DELETE to have payload for multi-object delete
@@ -75,6 +122,7 @@ public final class SwiftProxy {
 
     public void stop() {
         server.shutdownNow();
+        rc.shutdown();
     }
 
     public int getPort() {
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * A client request as seen by the backend: its transaction id and, when
+ * sampled, the blob store calls made on its behalf.  The trace of the
+ * request being served is bound to the serving thread; calls made from
+ * other threads, e.g. by background services or parallel crawls, are not
+ * attributed to it.
+ */
+public final class Trace {
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+    private final String traceId;
+    private final String transId;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final boolean sampled;
+    private final List<Span> spans = new ArrayList<>();
+
+    Trace(boolean sampled, String extra) {
+        byte[] random = new byte[16];
+        ThreadLocalRandom.current().nextBytes(random);
+        traceId = BaseEncoding.base16().lowerCase().encode(random);
+        // same shape as Swift's: tx, 21 random hex digits, - and the hex time
+        transId = "tx" + traceId.substring(0, 21) + "-" + String.format("%010x", startMillis / 1000) +
+                (extra == null ? "" : extra);
+        this.sampled = sampled;
+    }
+
+    /** The trace of the request served by this thread, if any. */
+    public static Trace current() {
+        return CURRENT.get();
+    }
+
+    void bind() {
+        CURRENT.set(this);
+    }
+
+    void unbind() {
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+    public String getTransId() {
+        return transId;
+    }
+
+    String getTraceId() {
+        return traceId;
+    }
+
+    long getStartMillis() {
+        return startMillis;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /** Records a backend call that started at {@code start}, a {@link System#nanoTime} value. */
+    void span(String operation, long start, long durationNanos, boolean failed) {
+        if (!sampled) {
+            return;
+        }
+        synchronized (spans) {
+            spans.add(new Span(operation, start - startNanos, durationNanos, failed));
+        }
+    }
+
+    List<Span> getSpans() {
+        synchronized (spans) {
+            return new ArrayList<>(spans);
+        }
+    }
+
+    static final class Span {
+        private final String operation;
+        private final long offsetNanos;
+        private final long durationNanos;
+        private final boolean failed;
+
+        Span(String operation, long offsetNanos, long durationNanos, boolean failed) {
+            this.operation = operation;
+            this.offsetNanos = offsetNanos;
+            this.durationNanos = durationNanos;
+            this.failed = failed;
+        }
+
+        String getOperation() {
+            return operation;
+        }
+
+        long getOffsetNanos() {
+            return offsetNanos;
+        }
+
+        long getDurationNanos() {
+            return durationNanos;
+        }
+
+        boolean isFailed() {
+            return failed;
+        }
+    }
+}
@@ -20,10 +20,34 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.SortedSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.Module;
@@ -40,6 +64,14 @@ import org.jclouds.javax.annotation.Nullable;
 import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
 
 public final class Utils {
+    // the largest page most providers return
+    private static final int MAX_PAGE_SIZE = 1000;
+    // split points are probed at no more than this many levels of a name
+    private static final int MAX_SPLIT_LEVELS = 8;
+    // a producer whose entries nobody takes for this long gives up
+    private static final long ABANDONED_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final Object END_OF_RANGE = new Object();
+
     private Utils() {
         throw new AssertionError("intentionally unimplemented");
     }
@@ -53,7 +85,113 @@ public final class Utils {
     public static Iterable<StorageMetadata> crawlBlobStore(
             BlobStore blobStore, String containerName,
             ListContainerOptions options) {
-        return new CrawlBlobStoreIterable(blobStore, containerName, options);
+        return crawlBlobStore(blobStore, containerName, options, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Crawls at most {@code limit} entries, stopping before the first entry
+     * at or after {@code endMarker} if it is not null.  Pages are sized to
+     * the remaining limit, so that small listings only fetch what they
+     * return.
+     */
+    public static Iterable<StorageMetadata> crawlBlobStore(
+            BlobStore blobStore, String containerName,
+            ListContainerOptions options, long limit, @Nullable String endMarker) {
+        return crawlBlobStore(blobStore, containerName, options, limit, endMarker, null, 0);
+    }
+
+    /**
+     * As above, but while a page is being consumed the next
+     * {@code prefetchPages} pages are listed in the background on
+     * {@code prefetch}, one after another since each needs the marker of the
+     * one before.  Pages nobody gets to are dropped, so an iterator can
+     * still be abandoned part way through.
+     */
+    public static Iterable<StorageMetadata> crawlBlobStore(
+            BlobStore blobStore, String containerName,
+            ListContainerOptions options, long limit, @Nullable String endMarker,
+            @Nullable Executor prefetch, int prefetchPages) {
+        return new CrawlBlobStoreIterable(blobStore, containerName, options, limit, endMarker,
+                prefetchPages > 0 ? prefetch : null, prefetchPages);
+    }
+
+    /**
+     * Crawls a container as a set of marker ranges listed concurrently on
+     * {@code executor}, at most {@code parallelism} at a time.  The ranges
+     * are not fixed up front: whenever a range turns out to span more than
+     * one page and fewer than {@code parallelism} ranges are waiting, the
+     * names on its first page are used to pick split points.  A page is
+     * listed after each point, concurrently, and the rest of the range is
+     * handed off as new ranges starting from those pages.  Hierarchical
+     * names get split one subtree at a time, random ones across the
+     * alphabet.
+     *
+     * <p>With {@code ordered} the stream returns entries in listing order,
+     * buffering at most two pages per range ahead of the consumer; otherwise
+     * entries are returned as they arrive.  Listings with a delimiter or a
+     * directory are crawled sequentially.  The stream must be closed if it
+     * is not consumed to the end, to stop the listings still running.
+     * Ranges wait on their split listings, so {@code executor} must start a
+     * thread for each task rather than queue it.
+     */
+    public static Stream<StorageMetadata> crawlBlobStoreParallel(
+            BlobStore blobStore, String containerName, ListContainerOptions options,
+            ExecutorService executor, int parallelism, boolean ordered) {
+        if (parallelism <= 1 || options.getDelimiter() != null || options.getDir() != null) {
+            return StreamSupport.stream(crawlBlobStore(blobStore, containerName, options).spliterator(), false);
+        }
+        ParallelCrawl crawl = new ParallelCrawl(blobStore, containerName, options,
+                executor, parallelism, ordered);
+        int characteristics = Spliterator.NONNULL | (ordered ? Spliterator.ORDERED : 0);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(crawl, characteristics), false)
+                .onClose(crawl::close);
+    }
+
+    /**
+     * Candidate split points after {@code last}, given that a page of the
+     * listing ran from {@code first} to {@code last} and its names used the
+     * characters in {@code alphabet}, sorted: the next sibling of
+     * {@code last} at each level up to where the two names diverge, each of
+     * which skips a whole subtree, and {@code fanout} points spread over the
+     * rest of both the top level and the level where they diverge.
+     */
+    static SortedSet<String> splitPoints(String first, String last, String alphabet, int fanout) {
+        SortedSet<String> points = new TreeSet<>();
+        int diverge = Strings.commonPrefix(first, last).length();
+        int levels = Math.min(diverge + 1, last.length());
+        int step = Math.max(1, (levels + MAX_SPLIT_LEVELS - 1) / MAX_SPLIT_LEVELS);
+        for (int k = levels - 1; k >= 0; k -= step) {
+            int next = nextIndex(alphabet, last.charAt(k));
+            // at the end of the alphabet the sibling is the parent level's
+            if (next < alphabet.length()) {
+                points.add(last.substring(0, k) + alphabet.charAt(next));
+            }
+        }
+        // the top level spans the most names, the diverging one is where
+        // the names on the page differ
+        spread(points, last, 0, alphabet, fanout);
+        spread(points, last, diverge, alphabet, fanout);
+        return points;
+    }
+
+    private static void spread(SortedSet<String> points, String last, int level, String alphabet, int count) {
+        if (level >= last.length()) {
+            return;
+        }
+        String prefix = last.substring(0, level);
+        int from = nextIndex(alphabet, last.charAt(level));
+        int width = alphabet.length() - from;
+        for (int i = 1; i <= count && i < width; i++) {
+            points.add(prefix + alphabet.charAt(from + width * i / (count + 1)));
+        }
+    }
+
+    private static int nextIndex(String alphabet, char c) {
+        int i = 0;
+        while (i < alphabet.length() && alphabet.charAt(i) <= c) {
+            i++;
+        }
+        return i;
     }
 
     public static Properties propertiesFromFile(File file) throws IOException {
@@ -79,18 +217,27 @@ public final class Utils {
         private final BlobStore blobStore;
         private final String containerName;
         private final ListContainerOptions options;
+        private final long limit;
+        private final String endMarker;
+        private final Executor prefetch;
+        private final int prefetchPages;
 
         CrawlBlobStoreIterable(BlobStore blobStore, String containerName,
-                               ListContainerOptions options) {
+                               ListContainerOptions options, long limit, String endMarker,
+                               Executor prefetch, int prefetchPages) {
             this.blobStore = Objects.requireNonNull(blobStore);
             this.containerName = Objects.requireNonNull(containerName);
             this.options = Objects.requireNonNull(options).clone();
+            this.limit = limit;
+            this.endMarker = endMarker;
+            this.prefetch = prefetch;
+            this.prefetchPages = prefetchPages;
         }
 
         @Override
         public Iterator<StorageMetadata> iterator() {
             return new CrawlBlobStoreIterator(blobStore, containerName,
-                    options);
+                    options.clone(), limit, endMarker, prefetch, prefetchPages);
         }
     }
 
@@ -99,38 +246,105 @@ public final class Utils {
         private final BlobStore blobStore;
         private final String containerName;
         private final ListContainerOptions options;
+        private final String endMarker;
+        private final Executor prefetch;
+        private final int prefetchPages;
+        // pages listed ahead of the current one, each chained to the last
+        private final Deque<CompletableFuture<PageSet<? extends StorageMetadata>>> ahead = new ArrayDeque<>();
+        private long remaining;
+        // entries left to list; only touched by one listing at a time
+        private long unlisted;
+        private PageSet<? extends StorageMetadata> page;
         private Iterator<? extends StorageMetadata> iterator;
-        private String marker;
 
         CrawlBlobStoreIterator(BlobStore blobStore, String containerName,
-                               ListContainerOptions options) {
+                               ListContainerOptions options, long limit, String endMarker,
+                               Executor prefetch, int prefetchPages) {
             this.blobStore = Objects.requireNonNull(blobStore);
             this.containerName = Objects.requireNonNull(containerName);
             this.options = Objects.requireNonNull(options);
+            this.endMarker = endMarker;
+            this.prefetch = prefetch;
+            this.prefetchPages = prefetchPages;
+            this.remaining = limit;
+            this.unlisted = limit;
             if (options.getDelimiter() == null && options.getDir() == null) {
                 this.options.recursive();
             }
-            advance();
+            if (remaining > 0) {
+                page = list(null);
+                iterator = page.iterator();
+                if (prefetch != null) {
+                    CompletableFuture<PageSet<? extends StorageMetadata>> tail = CompletableFuture.completedFuture(page);
+                    while (ahead.size() < prefetchPages) {
+                        tail = listAfter(tail);
+                        ahead.add(tail);
+                    }
+                }
+            } else {
+                iterator = Collections.emptyIterator();
+            }
         }
 
-        private void advance() {
+        private PageSet<? extends StorageMetadata> list(@Nullable String marker) {
+            ListContainerOptions pageOptions = options.clone();
             if (marker != null) {
-                options.afterMarker(marker);
+                pageOptions.afterMarker(marker);
             }
-            PageSet<? extends StorageMetadata> set = blobStore.list(
-                    containerName, options);
-            marker = set.getNextMarker();
-            iterator = set.iterator();
+            if (unlisted < MAX_PAGE_SIZE) {
+                pageOptions.maxResults((int) unlisted);
+            }
+            PageSet<? extends StorageMetadata> set = blobStore.list(containerName, pageOptions);
+            for (StorageMetadata metadata : set) {
+                if (metadata.getType() != StorageType.RELATIVE_PATH) {
+                    unlisted--;
+                }
+            }
+            return set;
+        }
+
+        /** Whether another page may hold entries to return after this one. */
+        private boolean hasNextPage(@Nullable PageSet<? extends StorageMetadata> set) {
+            if (set == null || set.getNextMarker() == null || unlisted <= 0) {
+                return false;
+            }
+            return endMarker == null || set.getNextMarker().compareTo(endMarker) < 0;
+        }
+
+        private CompletableFuture<PageSet<? extends StorageMetadata>> listAfter(
+                CompletableFuture<PageSet<? extends StorageMetadata>> previous) {
+            return previous.thenApplyAsync(set -> hasNextPage(set) ? list(set.getNextMarker()) : null, prefetch);
+        }
+
+        private boolean advance() {
+            if (prefetch == null) {
+                page = hasNextPage(page) ? list(page.getNextMarker()) : null;
+            } else {
+                CompletableFuture<PageSet<? extends StorageMetadata>> next = ahead.poll();
+                ahead.add(listAfter(ahead.isEmpty() ? next : ahead.getLast()));
+                try {
+                    page = next.join();
+                } catch (CompletionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+            if (page == null) {
+                return false;
+            }
+            iterator = page.iterator();
+            return true;
         }
 
         @Override
         protected StorageMetadata computeNext() {
             while (true) {
+                if (remaining <= 0) {
+                    return endOfData();
+                }
                 if (!iterator.hasNext()) {
-                    if (marker == null) {
+                    if (!advance()) {
                         return endOfData();
                     }
-                    advance();
                     continue;
                 }
                 try {
@@ -139,9 +353,14 @@ public final class Utils {
                     if (metadata.getType() == StorageType.RELATIVE_PATH) {
                         continue;
                     }
+                    if (endMarker != null && metadata.getName().compareTo(endMarker) >= 0) {
+                        // listings are sorted, so nothing after this can match
+                        return endOfData();
+                    }
+                    remaining--;
                     return metadata;
                 } catch (NullPointerException e) {
-                    NullPointerException e2 = new NullPointerException("marker " + marker);
+                    NullPointerException e2 = new NullPointerException("marker " + page.getNextMarker());
                     e2.initCause(e);
                     throw e2;
                 }
@@ -149,6 +368,284 @@ public final class Utils {
         }
     }
 
+    private static final class CrawlFailure {
+        private final RuntimeException cause;
+
+        CrawlFailure(RuntimeException cause) {
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * The state of one parallel crawl.  Ranges are keyed by their exclusive
+     * lower marker, which orders them the way the listing does; in ordered
+     * mode each range buffers its own entries, otherwise they all feed a
+     * single queue.
+     */
+    private static final class ParallelCrawl extends AbstractIterator<StorageMetadata> {
+        private final BlobStore blobStore;
+        private final String containerName;
+        private final ListContainerOptions options;
+        private final ExecutorService executor;
+        private final int parallelism;
+        private final boolean ordered;
+        private final ConcurrentSkipListMap<String, Range> ranges = new ConcurrentSkipListMap<>();
+        private final BlockingQueue<Object> merged;
+        // guarded by this
+        private final TreeMap<String, Range> pending = new TreeMap<>();
+        private int running;
+        private int unconsumed;
+        private int outstanding;
+        private Range current;
+        private volatile boolean closed;
+
+        ParallelCrawl(BlobStore blobStore, String containerName, ListContainerOptions options,
+                      ExecutorService executor, int parallelism, boolean ordered) {
+            this.blobStore = Objects.requireNonNull(blobStore);
+            this.containerName = Objects.requireNonNull(containerName);
+            this.options = options.clone().recursive();
+            this.executor = Objects.requireNonNull(executor);
+            this.parallelism = parallelism;
+            this.ordered = ordered;
+            this.merged = ordered ? null : new ArrayBlockingQueue<>(parallelism * MAX_PAGE_SIZE);
+            String marker = options.getMarker();
+            current = new Range(marker == null ? "" : marker, null, null, null);
+            synchronized (this) {
+                ranges.put(current.after, current);
+                pending.put(current.after, current);
+                outstanding = 1;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                // in ordered mode, finished ranges hold their entries until
+                // the consumer gets to them, so cap those too
+                while (!closed && !pending.isEmpty() && running < parallelism &&
+                        (!ordered || unconsumed < 2 * parallelism)) {
+                    start(pending.pollFirstEntry().getValue());
+                }
+            }
+        }
+
+        private synchronized void start(Range range) {
+            running++;
+            unconsumed++;
+            executor.execute(range);
+        }
+
+        private void finished() {
+            boolean last;
+            synchronized (this) {
+                running--;
+                last = --outstanding == 0;
+            }
+            if (last && !ordered) {
+                offer(merged, END_OF_RANGE);
+            }
+            schedule();
+        }
+
+        private synchronized boolean wantsSplit() {
+            return !closed && pending.size() < parallelism;
+        }
+
+        void close() {
+            closed = true;
+        }
+
+        /** Blocks until the consumer makes room; false if it went away. */
+        private boolean offer(BlockingQueue<Object> queue, Object entry) {
+            long waited = 0;
+            try {
+                while (!closed) {
+                    if (queue.offer(entry, 1, TimeUnit.SECONDS)) {
+                        return true;
+                    }
+                    waited += TimeUnit.SECONDS.toMillis(1);
+                    if (waited >= ABANDONED_MILLIS) {
+                        closed = true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        private PageSet<? extends StorageMetadata> list(@Nullable String marker) {
+            ListContainerOptions pageOptions = options.clone();
+            if (marker != null) {
+                pageOptions.afterMarker(marker);
+            }
+            return blobStore.list(containerName, pageOptions);
+        }
+
+        @Override
+        protected StorageMetadata computeNext() {
+            try {
+                while (true) {
+                    Object entry = ordered ? current.buffer.take() : merged.take();
+                    if (entry instanceof CrawlFailure) {
+                        close();
+                        throw ((CrawlFailure) entry).cause;
+                    }
+                    if (entry != END_OF_RANGE) {
+                        return (StorageMetadata) entry;
+                    }
+                    if (!ordered) {
+                        return endOfData();
+                    }
+                    // any split of the current range was registered before
+                    // its end, so the next range is already known
+                    Map.Entry<String, Range> next = ranges.higherEntry(current.after);
+                    synchronized (this) {
+                        unconsumed--;
+                        if (next != null && pending.remove(next.getKey()) != null) {
+                            start(next.getValue());
+                        }
+                    }
+                    schedule();
+                    if (next == null) {
+                        return endOfData();
+                    }
+                    current = next.getValue();
+                }
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+        }
+
+        private static String firstName(Iterable<? extends StorageMetadata> page) {
+            for (StorageMetadata metadata : page) {
+                if (metadata.getType() != StorageType.RELATIVE_PATH) {
+                    return metadata.getName();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Names in [{@code from}, {@code end}) that come after the marker
+         * {@code after}.  {@code from} is the first name the probe found
+         * after that marker, and the probe's page is the range's first page;
+         * entries created in between since are left to the range before.
+         */
+        private final class Range implements Runnable {
+            private final String after;
+            private final String from;
+            private String end;
+            private PageSet<? extends StorageMetadata> probed;
+            private final BlockingQueue<Object> buffer;
+
+            Range(String after, @Nullable String from, @Nullable String end,
+                  @Nullable PageSet<? extends StorageMetadata> probed) {
+                this.after = after;
+                this.from = from;
+                this.end = end;
+                this.probed = probed;
+                this.buffer = ordered ? new ArrayBlockingQueue<>(2 * MAX_PAGE_SIZE) : merged;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    String marker = after.isEmpty() ? null : after;
+                    while (!closed) {
+                        PageSet<? extends StorageMetadata> page = probed;
+                        probed = null;
+                        if (page == null) {
+                            page = list(marker);
+                        }
+                        marker = page.getNextMarker();
+                        // hand off the rest of the range whenever others run dry
+                        if (marker != null && (end == null || marker.compareTo(end) < 0) && wantsSplit()) {
+                            split(page, marker);
+                        }
+                        for (StorageMetadata metadata : page) {
+                            if (metadata.getType() == StorageType.RELATIVE_PATH ||
+                                    (from != null && metadata.getName().compareTo(from) < 0)) {
+                                continue;
+                            }
+                            if (end != null && metadata.getName().compareTo(end) >= 0) {
+                                marker = null;
+                                break;
+                            }
+                            if (!offer(buffer, metadata)) {
+                                return;
+                            }
+                        }
+                        if (marker == null || (end != null && marker.compareTo(end) >= 0)) {
+                            break;
+                        }
+                    }
+                    if (ordered) {
+                        offer(buffer, END_OF_RANGE);
+                    }
+                } catch (RuntimeException e) {
+                    offer(buffer, new CrawlFailure(e));
+                } finally {
+                    finished();
+                }
+            }
+
+            private void split(PageSet<? extends StorageMetadata> page, String last) {
+                String first = last;
+                BitSet characters = new BitSet();
+                for (StorageMetadata metadata : page) {
+                    if (metadata.getType() != StorageType.RELATIVE_PATH) {
+                        String name = metadata.getName();
+                        first = name.compareTo(first) < 0 ? name : first;
+                        name.chars().forEach(characters::set);
+                    }
+                }
+                last.chars().forEach(characters::set);
+                StringBuilder alphabet = new StringBuilder();
+                characters.stream().forEach(c -> alphabet.append((char) c));
+                List<String> candidates = new ArrayList<>();
+                for (String point : splitPoints(first, last, alphabet.toString(), Math.max(1, parallelism / 2))) {
+                    if (end == null || point.compareTo(end) < 0) {
+                        candidates.add(point);
+                    }
+                }
+                // a probe lists a whole page, which its range starts from
+                List<CompletableFuture<PageSet<? extends StorageMetadata>>> probes = new ArrayList<>();
+                for (String candidate : candidates) {
+                    probes.add(CompletableFuture.supplyAsync(() -> list(candidate), executor));
+                }
+                // the first name after each split point, mapped to the
+                // lowest point that finds it
+                TreeMap<String, Integer> boundaries = new TreeMap<>();
+                for (int i = 0; i < candidates.size(); i++) {
+                    String name = firstName(probes.get(i).join());
+                    if (name != null && name.compareTo(last) > 0 && (end == null || name.compareTo(end) < 0)) {
+                        boundaries.putIfAbsent(name, i);
+                    }
+                }
+                if (boundaries.isEmpty()) {
+                    return;
+                }
+                String rangeEnd = end;
+                synchronized (ParallelCrawl.this) {
+                    end = boundaries.firstKey();
+                    for (Map.Entry<String, Integer> boundary : boundaries.entrySet()) {
+                        String next = boundaries.higherKey(boundary.getKey());
+                        int i = boundary.getValue();
+                        Range range = new Range(candidates.get(i), boundary.getKey(),
+                                next == null ? rangeEnd : next, probes.get(i).join());
+                        ranges.put(range.after, range);
+                        pending.put(range.after, range);
+                        outstanding++;
+                    }
+                }
+                schedule();
+            }
+        }
+    }
+
     public static String trimETag(@Nullable String eTag) {
         if (eTag == null) {
             return null;
@@ -0,0 +1,737 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Throwables.propagate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.bouncestorage.swiftproxy.v1.ObjectTracker;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.domain.BlobBuilder;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local durable journal for write-behind uploads.  Object bodies are
+ * appended to segment files and fsynced before the client gets its
+ * response, then a pool of uploaders drains them to the backend.
+ *
+ * Each record is laid out as: magic, body length, body, header length and
+ * a JSON header.  The body length is written last, once the rest of the
+ * record is on disk, so that a torn record is detected and truncated during
+ * replay.  Uploaded records are acknowledged in a companion file, and a
+ * segment is deleted once it is full and all of its records have been
+ * acknowledged.
+ *
+ * An upload registers itself as in flight only while its record is still
+ * current.  {@link #discard} supersedes the record and cuts the body of an
+ * in-flight upload short, so that the backend rejects it, then waits for
+ * the upload to give up; a direct write or delete therefore never waits for
+ * a whole body to be sent, and no older upload can land on top of it.  A
+ * newer record of the same object aborts an older upload the same way.
+ */
+public final class WriteBehindJournal {
+    public static final String WRITE_BEHIND_HEADER = "X-Write-Behind";
+    private static final int RECORD_MAGIC = 0x53574a31;
+    private static final int RECORD_PREFIX_LENGTH = 12;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ACK_SUFFIX = ".ack";
+    private static final long RETRY_DELAY_SECONDS = 5;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Path directory;
+    private final Set<String> containers;
+    private final long segmentSize;
+    private final Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver;
+    private final ObjectTracker tracker;
+    private final ScheduledExecutorService uploader;
+    private final Queue<Segment> availableSegments = new LinkedBlockingQueue<>();
+    private final AtomicLong nextSegmentId = new AtomicLong();
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Map<Key, Record> index = new ConcurrentHashMap<>();
+    private final Set<Record> pending = ConcurrentHashMap.newKeySet();
+    private final Map<String, Queue<Record>> parked = new ConcurrentHashMap<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Map<Key, Upload> inFlight = new ConcurrentHashMap<>();
+
+    WriteBehindJournal(Properties properties,
+                       Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver,
+                       ObjectTracker tracker) {
+        this.resolver = requireNonNull(resolver);
+        this.tracker = requireNonNull(tracker);
+        String dir = properties.getProperty(SwiftProxy.PROPERTY_WRITE_BEHIND_DIR);
+        directory = dir == null ? null : Paths.get(dir);
+        containers = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(
+                properties.getProperty(SwiftProxy.PROPERTY_WRITE_BEHIND_CONTAINERS, "")));
+        segmentSize = Long.parseLong(properties.getProperty(
+                SwiftProxy.PROPERTY_WRITE_BEHIND_SEGMENT_SIZE, String.valueOf(64L * 1024 * 1024)));
+        int threads = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_WRITE_BEHIND_THREADS, "4"));
+        uploader = Executors.newScheduledThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("write-behind-%d").setDaemon(true).build());
+
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+                replay();
+            } catch (IOException e) {
+                throw propagate(e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    public boolean shouldJournal(String container, boolean requested) {
+        return isEnabled() && (requested || containers.contains("*") || containers.contains(container));
+    }
+
+    /**
+     * Durably appends an object to the journal and queues it for upload.
+     *
+     * @return the journal record, or null if the body does not match expectedMD5
+     */
+    public Record append(String identity, String container, String object, InputStream body,
+                         long expectedLength, HashCode expectedMD5, Header header) throws IOException {
+        header.identity = requireNonNull(identity);
+        header.container = requireNonNull(container);
+        header.object = requireNonNull(object);
+        header.timestamp = System.currentTimeMillis();
+        header.sequence = nextSequence.getAndIncrement();
+
+        Segment segment = acquireSegment();
+        long start = segment.position;
+        boolean committed = false;
+        try {
+            FileChannel channel = segment.channel;
+            ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_LENGTH);
+            prefix.putInt(RECORD_MAGIC).putLong(-1).flip();
+            long position = writeFully(channel, prefix, start);
+
+            Hasher hasher = Hashing.md5().newHasher();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long length = 0;
+            int n;
+            while ((n = body.read(buffer)) != -1) {
+                hasher.putBytes(buffer, 0, n);
+                position = writeFully(channel, ByteBuffer.wrap(buffer, 0, n), position);
+                length += n;
+            }
+            if (expectedLength >= 0 && length != expectedLength) {
+                throw new IOException(String.format("expected %d bytes, got %d", expectedLength, length));
+            }
+            HashCode md5 = hasher.hash();
+            if (expectedMD5 != null && !expectedMD5.equals(md5)) {
+                return null;
+            }
+            header.etag = md5.toString();
+            header.length = length;
+
+            byte[] headerBytes = MAPPER.writeValueAsBytes(header);
+            ByteBuffer headerBuffer = ByteBuffer.allocate(4 + headerBytes.length);
+            headerBuffer.putInt(headerBytes.length).put(headerBytes).flip();
+            long end = writeFully(channel, headerBuffer, position);
+            // the body and header must be durable before the length makes
+            // the record valid, or a crash could leave a valid-looking
+            // record with garbage in it
+            channel.force(false);
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+            lengthBuffer.putLong(length).flip();
+            writeFully(channel, lengthBuffer, start + 4);
+            channel.force(false);
+
+            segment.position = end;
+            committed = true;
+            Record record = new Record(segment, start + RECORD_PREFIX_LENGTH, header);
+            segment.outstanding.incrementAndGet();
+            enqueue(record);
+            return record;
+        } finally {
+            if (!committed) {
+                segment.channel.truncate(start);
+            }
+            releaseSegment(segment);
+        }
+    }
+
+    /** Returns the newest journaled record of an object that is not uploaded yet. */
+    public Record lookup(String identity, String container, String object) {
+        if (!isEnabled() || identity == null) {
+            return null;
+        }
+        return index.get(new Key(identity, container, object));
+    }
+
+    /**
+     * Drops any pending upload of an object that is about to be overwritten
+     * or deleted directly, aborting an upload of it that is in flight.
+     *
+     * @return whether there was a pending upload
+     */
+    public boolean discard(String identity, String container, String object) {
+        if (!isEnabled() || identity == null) {
+            return false;
+        }
+        Record[] discarded = new Record[1];
+        Upload[] running = new Upload[1];
+        // an upload registers under the same entry, so it either shows up
+        // here or finds its record superseded
+        index.compute(new Key(identity, container, object), (key, record) -> {
+            if (record != null) {
+                record.superseded = true;
+            }
+            discarded[0] = record;
+            running[0] = inFlight.get(key);
+            return null;
+        });
+        if (running[0] != null) {
+            running[0].abort();
+        }
+        return discarded[0] != null;
+    }
+
+    /** Drops the pending uploads of the objects of a container that was deleted. */
+    public void discardContainer(String identity, String container) {
+        if (!isEnabled() || identity == null) {
+            return;
+        }
+        index.keySet().stream()
+                .filter(k -> k.identity.equals(identity) && k.container.equals(container))
+                .collect(Collectors.toList())
+                .forEach(k -> discard(k.identity, k.container, k.object));
+    }
+
+    public InputStream openBody(Record record) throws IOException {
+        FileChannel channel = FileChannel.open(record.segment.log, StandardOpenOption.READ);
+        channel.position(record.bodyOffset);
+        return new BoundedInputStream(Channels.newInputStream(channel), record.header.length);
+    }
+
+    /** Uploads records that were waiting for the blob store of identity to become available. */
+    public void attach(String identity) {
+        Queue<Record> records = parked.remove(identity);
+        if (records != null) {
+            records.forEach(this::scheduleUpload);
+        }
+    }
+
+    public void retryParked() {
+        new ArrayList<>(parked.keySet()).forEach(this::attach);
+    }
+
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public long getLagMillis() {
+        long now = System.currentTimeMillis();
+        return pending.stream()
+                .mapToLong(r -> now - r.header.timestamp)
+                .max()
+                .orElse(0);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("queue_depth", getQueueDepth());
+        stats.put("pending_bytes", getPendingBytes());
+        stats.put("lag_ms", getLagMillis());
+        stats.put("parked_identities", parked.size());
+        return stats;
+    }
+
+    void shutdown() {
+        uploader.shutdownNow();
+        Segment segment;
+        while ((segment = availableSegments.poll()) != null) {
+            segment.close();
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private Segment acquireSegment() throws IOException {
+        Segment segment = availableSegments.poll();
+        if (segment != null) {
+            return segment;
+        }
+        long id = nextSegmentId.getAndIncrement();
+        Path log = directory.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+        FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // make the new segment itself durable
+        channel.force(true);
+        return new Segment(id, log, channel, 0);
+    }
+
+    private void releaseSegment(Segment segment) {
+        if (segment.position < segmentSize) {
+            availableSegments.add(segment);
+        } else {
+            segment.retired = true;
+            maybeDeleteSegment(segment);
+        }
+    }
+
+    private void enqueue(Record record) {
+        Record[] displaced = new Record[1];
+        index.compute(record.key(), (key, current) -> {
+            if (current == null || current.header.sequence < record.header.sequence) {
+                displaced[0] = current;
+                return record;
+            }
+            displaced[0] = record;
+            return current;
+        });
+        if (displaced[0] != null) {
+            displaced[0].superseded = true;
+        }
+        pending.add(record);
+        pendingBytes.addAndGet(record.header.length);
+        scheduleUpload(record);
+    }
+
+    private void scheduleUpload(Record record) {
+        uploader.execute(() -> upload(record));
+    }
+
+    private void upload(Record record) {
+        if (record.superseded || index.get(record.key()) != record) {
+            complete(record);
+            return;
+        }
+
+        Header header = record.header;
+        BlobStore blobStore;
+        try {
+            BounceResourceConfig.AuthenticatedBlobStore store = resolver.apply(header.identity);
+            if (store == null) {
+                logger.debug("no blob store for {} yet, parking upload of {}/{}",
+                        header.identity, header.container, header.object);
+                parked.computeIfAbsent(header.identity, k -> new ConcurrentLinkedQueue<>()).add(record);
+                return;
+            }
+            blobStore = store.get(header.container, header.object);
+        } catch (RuntimeException e) {
+            // e.g. the backend refused the credentials; the record must stay
+            // scheduled or it would sit in pending until the next restart
+            logger.warn(String.format("cannot get the blob store of %s for journaled %s/%s, retrying",
+                    header.identity, header.container, header.object), e);
+            uploader.schedule(() -> upload(record), RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+            return;
+        }
+
+        Upload upload;
+        try {
+            upload = new Upload(openBody(record));
+        } catch (IOException e) {
+            logger.warn(String.format("cannot read journaled %s/%s, retrying",
+                    header.container, header.object), e);
+            uploader.schedule(() -> upload(record), RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+            return;
+        }
+        Key key = record.key();
+        Upload[] previous = new Upload[1];
+        boolean[] current = new boolean[1];
+        index.computeIfPresent(key, (k, r) -> {
+            if (r == record && !record.superseded) {
+                previous[0] = inFlight.put(k, upload);
+                current[0] = true;
+            }
+            return r;
+        });
+        if (!current[0]) {
+            upload.cancel();
+            upload.finish();
+            complete(record);
+            return;
+        }
+
+        try (InputStream is = upload.body) {
+            if (previous[0] != null) {
+                // an older record of the object is still being sent
+                previous[0].abort();
+            }
+            BlobBuilder.PayloadBlobBuilder builder = blobStore.blobBuilder(header.object)
+                    .userMetadata(header.userMetadata)
+                    .payload(is)
+                    .contentLength(header.length)
+                    .contentMD5(HashCode.fromString(header.etag));
+            if (header.contentType != null) {
+                builder.contentType(header.contentType);
+            }
+            if (header.contentDisposition != null) {
+                builder.contentDisposition(header.contentDisposition);
+            }
+            if (header.contentEncoding != null) {
+                builder.contentEncoding(header.contentEncoding);
+            }
+            BlobMetadata replaced = tracker.replaced(header.identity, blobStore, header.container, header.object);
+            blobStore.putBlob(header.container, builder.build());
+            logger.debug("uploaded journaled {}/{}", header.container, header.object);
+            tracker.written(header.identity, blobStore, header.container, header.object, replaced);
+            complete(record);
+        } catch (ContainerNotFoundException e) {
+            logger.error("dropping journaled {}/{}: container no longer exists", header.container, header.object);
+            complete(record);
+        } catch (Exception e) {
+            if (record.superseded) {
+                logger.debug("aborted upload of superseded journaled {}/{}", header.container, header.object);
+                complete(record);
+            } else {
+                logger.warn(String.format("upload of journaled %s/%s failed, retrying",
+                        header.container, header.object), e);
+                uploader.schedule(() -> upload(record), RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+            }
+        } finally {
+            inFlight.remove(key, upload);
+            upload.finish();
+        }
+    }
+
+    private void complete(Record record) {
+        index.remove(record.key(), record);
+        if (!pending.remove(record)) {
+            return;
+        }
+        pendingBytes.addAndGet(-record.header.length);
+        Segment segment = record.segment;
+        try {
+            synchronized (segment) {
+                ByteBuffer ack = ByteBuffer.allocate(8);
+                ack.putLong(record.bodyOffset).flip();
+                if (segment.ackChannel == null) {
+                    segment.ackChannel = FileChannel.open(segment.ack(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                while (ack.hasRemaining()) {
+                    segment.ackChannel.write(ack);
+                }
+                segment.ackChannel.force(false);
+            }
+        } catch (IOException e) {
+            // the record will be uploaded again after a restart, which is harmless
+            logger.error("failed to acknowledge journal record", e);
+        }
+        segment.outstanding.decrementAndGet();
+        maybeDeleteSegment(segment);
+    }
+
+    private void maybeDeleteSegment(Segment segment) {
+        synchronized (segment) {
+            if (!segment.retired || segment.outstanding.get() != 0 || segment.deleted) {
+                return;
+            }
+            segment.deleted = true;
+            segment.close();
+            try {
+                Files.deleteIfExists(segment.ack());
+                Files.deleteIfExists(segment.log);
+            } catch (IOException e) {
+                logger.error("failed to delete journal segment " + segment.log, e);
+            }
+        }
+    }
+
+    private void replay() throws IOException {
+        Map<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())), path);
+            }
+        }
+
+        List<Record> records = new ArrayList<>();
+        for (Map.Entry<Long, Path> entry : segments.entrySet()) {
+            FileChannel channel = FileChannel.open(entry.getValue(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            Segment segment = new Segment(entry.getKey(), entry.getValue(), channel, 0);
+            segment.retired = true;
+            Set<Long> acked = readAcks(segment.ack());
+            long size = channel.size();
+            long position = 0;
+            while (true) {
+                Record record = readRecord(segment, position, size);
+                if (record == null) {
+                    break;
+                }
+                position = record.bodyOffset + record.header.length + 4 + record.headerLength;
+                nextSequence.set(Math.max(nextSequence.get(), record.header.sequence + 1));
+                if (!acked.contains(record.bodyOffset)) {
+                    segment.outstanding.incrementAndGet();
+                    records.add(record);
+                }
+            }
+            if (position < size) {
+                logger.warn("truncating torn journal record in {} at {}", segment.log, position);
+                channel.truncate(position);
+            }
+            segment.position = position;
+            nextSegmentId.set(Math.max(nextSegmentId.get(), segment.id + 1));
+            if (segment.outstanding.get() == 0) {
+                maybeDeleteSegment(segment);
+            }
+        }
+
+        logger.info("replaying {} journaled uploads", records.size());
+        records.forEach(this::enqueue);
+    }
+
+    private static Set<Long> readAcks(Path ack) throws IOException {
+        Set<Long> acked = new HashSet<>();
+        if (Files.exists(ack)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(ack));
+            while (buffer.remaining() >= 8) {
+                acked.add(buffer.getLong());
+            }
+        }
+        return acked;
+    }
+
+    private static Record readRecord(Segment segment, long position, long size) throws IOException {
+        if (position + RECORD_PREFIX_LENGTH > size) {
+            return null;
+        }
+        ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_LENGTH);
+        readFully(segment.channel, prefix, position);
+        if (prefix.getInt() != RECORD_MAGIC) {
+            return null;
+        }
+        long length = prefix.getLong();
+        long headerPosition = position + RECORD_PREFIX_LENGTH + length;
+        if (length < 0 || headerPosition + 4 > size) {
+            return null;
+        }
+        ByteBuffer headerLength = ByteBuffer.allocate(4);
+        readFully(segment.channel, headerLength, headerPosition);
+        int headerSize = headerLength.getInt();
+        if (headerSize < 0 || headerPosition + 4 + headerSize > size) {
+            return null;
+        }
+        ByteBuffer headerBytes = ByteBuffer.allocate(headerSize);
+        readFully(segment.channel, headerBytes, headerPosition + 4);
+        Header header = MAPPER.readValue(headerBytes.array(), Header.class);
+        Record record = new Record(segment, position + RECORD_PREFIX_LENGTH, header);
+        record.headerLength = headerSize;
+        return record;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of journal");
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    //CHECKSTYLE:OFF
+    public static final class Header {
+        @JsonProperty public String identity;
+        @JsonProperty public String container;
+        @JsonProperty public String object;
+        @JsonProperty public long sequence;
+        @JsonProperty public long timestamp;
+        @JsonProperty public long length;
+        @JsonProperty public String etag;
+        @JsonProperty public String contentType;
+        @JsonProperty public String contentDisposition;
+        @JsonProperty public String contentEncoding;
+        @JsonProperty public Map<String, String> userMetadata = new HashMap<>();
+    }
+    //CHECKSTYLE:ON
+
+    public static final class Record {
+        private final Segment segment;
+        private final long bodyOffset;
+        private final Header header;
+        private int headerLength;
+        private volatile boolean superseded;
+
+        Record(Segment segment, long bodyOffset, Header header) {
+            this.segment = requireNonNull(segment);
+            this.bodyOffset = bodyOffset;
+            this.header = requireNonNull(header);
+        }
+
+        public Header getHeader() {
+            return header;
+        }
+
+        Key key() {
+            return new Key(header.identity, header.container, header.object);
+        }
+    }
+
+    /** An upload that is sending the body of a record to the backend. */
+    private static final class Upload {
+        private final InputStream body;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Upload(InputStream body) {
+            this.body = requireNonNull(body);
+        }
+
+        /**
+         * Closes the body under the upload, so that the backend sees a short
+         * request and refuses it, and waits for the upload to give up.  An
+         * upload that had already sent its whole body may still land, but it
+         * has landed by the time this returns.
+         */
+        void abort() {
+            cancel();
+            Uninterruptibles.awaitUninterruptibly(done);
+        }
+
+        void cancel() {
+            try {
+                body.close();
+            } catch (IOException e) {
+                // the upload fails either way
+            }
+        }
+
+        void finish() {
+            done.countDown();
+        }
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final Path log;
+        private final FileChannel channel;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private FileChannel ackChannel;
+        private volatile long position;
+        private volatile boolean retired;
+        private boolean deleted;
+
+        Segment(long id, Path log, FileChannel channel, long position) {
+            this.id = id;
+            this.log = requireNonNull(log);
+            this.channel = requireNonNull(channel);
+            this.position = position;
+        }
+
+        Path ack() {
+            String name = log.getFileName().toString();
+            return log.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + ACK_SUFFIX);
+        }
+
+        void close() {
+            try {
+                channel.close();
+                if (ackChannel != null) {
+                    ackChannel.close();
+                }
+            } catch (IOException e) {
+                // nothing useful to do
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String identity;
+        private final String container;
+        private final String object;
+
+        Key(String identity, String container, String object) {
+            this.identity = requireNonNull(identity);
+            this.container = requireNonNull(container);
+            this.object = requireNonNull(object);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return identity.equals(key.identity) && container.equals(key.container) && object.equals(key.object);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(identity, container, object);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+/**
+ * Streaming implementation of the 64-bit xxHash function with a seed of 0.
+ * Input is consumed in 32-byte stripes, so only a partial stripe is ever
+ * buffered.
+ */
+public final class XXHash64 {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE = 32;
+
+    private final byte[] buffer = new byte[STRIPE];
+    private int buffered;
+    private long total;
+    private long v1 = PRIME1 + PRIME2;
+    private long v2 = PRIME2;
+    private long v3 = 0;
+    private long v4 = -PRIME1;
+
+    public void update(byte[] b, int off, int len) {
+        total += len;
+        if (buffered + len < STRIPE) {
+            System.arraycopy(b, off, buffer, buffered, len);
+            buffered += len;
+            return;
+        }
+
+        int end = off + len;
+        if (buffered > 0) {
+            int fill = STRIPE - buffered;
+            System.arraycopy(b, off, buffer, buffered, fill);
+            stripe(buffer, 0);
+            off += fill;
+            buffered = 0;
+        }
+        while (off + STRIPE <= end) {
+            stripe(b, off);
+            off += STRIPE;
+        }
+        buffered = end - off;
+        System.arraycopy(b, off, buffer, 0, buffered);
+    }
+
+    private void stripe(byte[] b, int off) {
+        v1 = round(v1, getLong(b, off));
+        v2 = round(v2, getLong(b, off + 8));
+        v3 = round(v3, getLong(b, off + 16));
+        v4 = round(v4, getLong(b, off + 24));
+    }
+
+    public long getValue() {
+        long h;
+        if (total >= STRIPE) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) +
+                    Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = PRIME5;
+        }
+        h += total;
+
+        int p = 0;
+        while (p + 8 <= buffered) {
+            h ^= round(0, getLong(buffer, p));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+            p += 8;
+        }
+        if (p + 4 <= buffered) {
+            h ^= (getInt(buffer, p) & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            p += 4;
+        }
+        while (p < buffered) {
+            h ^= (buffer[p] & 0xFF) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+            p++;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return (b[off] & 0xFFL) |
+                (b[off + 1] & 0xFFL) << 8 |
+                (b[off + 2] & 0xFFL) << 16 |
+                (b[off + 3] & 0xFFL) << 24 |
+                (b[off + 4] & 0xFFL) << 32 |
+                (b[off + 5] & 0xFFL) << 40 |
+                (b[off + 6] & 0xFFL) << 48 |
+                (b[off + 7] & 0xFFL) << 56;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xFF) |
+                (b[off + 1] & 0xFF) << 8 |
+                (b[off + 2] & 0xFF) << 16 |
+                (b[off + 3] & 0xFF) << 24;
+    }
+}
@@ -18,17 +18,15 @@ package com.bouncestorage.swiftproxy.v1;
 
 import static java.util.Objects.requireNonNull;
 
-import static com.google.common.base.Throwables.propagate;
-
 import java.io.BufferedReader;
-import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 import javax.inject.Singleton;
 import javax.validation.constraints.NotNull;
@@ -39,16 +37,19 @@ import javax.ws.rs.GET;
 import javax.ws.rs.HEAD;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElements;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
 
@@ -56,14 +57,10 @@ import com.bouncestorage.swiftproxy.BlobStoreResource;
 import com.bouncestorage.swiftproxy.BounceResourceConfig;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Lists;
 
 import org.glassfish.grizzly.http.server.Request;
 import org.jclouds.blobstore.BlobStore;
-import org.jclouds.blobstore.ContainerNotFoundException;
-import org.jclouds.blobstore.domain.StorageMetadata;
 import org.jclouds.util.Strings2;
 
 @Singleton
@@ -82,17 +79,35 @@ public final class AccountResource extends BlobStoreResource {
                                @HeaderParam("X-Auth-Token") String authToken,
                                @HeaderParam("X-Newest") @DefaultValue("false") boolean newest,
                                @HeaderParam("Accept") Optional<String> accept) {
-        delimiter.ifPresent(x -> logger.info("delimiter not supported yet"));
-
         BlobStore blobStore = getBlobStore(authToken).get();
-        ArrayList<ContainerEntry> entries = blobStore.list()
-                .stream()
-                .map(StorageMetadata::getName)
-                .filter(name -> marker.map(m -> name.compareTo(m) > 0).orElse(true))
-                .filter(name -> endMarker.map(m -> name.compareTo(m) < 0).orElse(true))
-                .filter(name -> prefix.map(name::startsWith).orElse(true))
-                .map(ContainerEntry::new)
-                .collect(Collectors.toCollection(ArrayList::new));
+        BounceResourceConfig config = (BounceResourceConfig) application;
+        String identity = config.getIdentity(authToken);
+        NavigableMap<String, UsageTracker.Usage> containers =
+                config.getUsageTracker().getContainers(identity, blobStore);
+
+        String start = prefix.orElse("");
+        Optional<String> rollup = delimiter.filter(d -> !d.isEmpty());
+        int max = limit.orElse(InfoResource.CONFIG.swift.account_listing_limit);
+        List<Object> entries = new ArrayList<>();
+        Map.Entry<String, UsageTracker.Usage> entry = marker.isPresent() && marker.get().compareTo(start) >= 0 ?
+                containers.higherEntry(marker.get()) : containers.ceilingEntry(start);
+        while (entry != null && entries.size() < max) {
+            String name = entry.getKey();
+            if (!name.startsWith(start) || endMarker.map(m -> name.compareTo(m) >= 0).orElse(false)) {
+                break;
+            }
+            int i = rollup.map(d -> name.indexOf(d, start.length())).orElse(-1);
+            if (i >= 0) {
+                String subdir = name.substring(0, i + rollup.get().length());
+                entries.add(new SubdirEntry(subdir));
+                // skip every other container under the same subdir
+                entry = containers.higherEntry(subdir + Character.MAX_VALUE);
+            } else {
+                entries.add(new ContainerEntry(name, entry.getValue().getObjectCount(),
+                        entry.getValue().getBytesUsed()));
+                entry = containers.higherEntry(name);
+            }
+        }
 
         MediaType formatType;
         if (format.isPresent()) {
@@ -103,26 +118,15 @@ public final class AccountResource extends BlobStoreResource {
             formatType = MediaType.TEXT_PLAIN_TYPE;
         }
 
-        if (blobStore.getContext().unwrap().getId().equals("transient")) {
-            entries.sort((a, b) -> a.getName().compareTo(b.getName()));
-        }
-
-        long count = entries.size();
-        limit.ifPresent((max) -> {
-            if (entries.size() > max) {
-                entries.subList(max, entries.size()).clear();
-            }
-        });
-
         Account root = new Account();
         root.name = account;
-        root.container = entries;
+        root.entries = entries;
+        UsageTracker.AccountUsage usage = config.getUsageTracker().getAccountUsage(identity);
         return output(root, entries, formatType)
-                .header("X-Account-Container-Count", count)
-                .header("X-Account-Object-Count", -1)
-                .header("X-Account-Bytes-Used", -1)
+                .header("X-Account-Container-Count", containers.size())
+                .header("X-Account-Object-Count", usage == null ? -1 : usage.getObjectCount())
+                .header("X-Account-Bytes-Used", usage == null ? -1 : usage.getBytesUsed())
                 .header("X-Timestamp", -1)
-                .header("X-Trans-Id", -1)
                 .header("Accept-Ranges", "bytes")
                 .build();
     }
@@ -131,36 +135,68 @@ public final class AccountResource extends BlobStoreResource {
     public Response headAccount(@NotNull @PathParam("account") String account,
                                 @HeaderParam("X-Auth-Token") String authToken,
                                 @HeaderParam("X-Newest") boolean newest) {
+        String identity = ((BounceResourceConfig) application).getIdentity(authToken);
+        UsageTracker.AccountUsage usage = identity == null ? null :
+                ((BounceResourceConfig) application).getUsageTracker().getAccountUsage(identity);
         return Response.noContent()
-                .header("X-Account-Container-Count", -1)
-                .header("X-Account-Object-Count", -1)
-                .header("X-Account-Bytes-Used", -1)
+                .header("X-Account-Container-Count", usage == null ? -1 : usage.getContainerCount())
+                .header("X-Account-Object-Count", usage == null ? -1 : usage.getObjectCount())
+                .header("X-Account-Bytes-Used", usage == null ? -1 : usage.getBytesUsed())
                 .header("X-Timestamp", -1)
-                .header("X-Trans-Id", -1)
                 .header("Accept-Ranges", "bytes")
                 .build();
     }
 
+    @PUT
+    @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+    public Response extractArchive(@NotNull @PathParam("account") String account,
+                                   @QueryParam("extract-archive") String format,
+                                   @HeaderParam("X-Auth-Token") String authToken,
+                                   @Context HttpHeaders headers,
+                                   @Context Request request) {
+        if (format == null) {
+            throw new WebApplicationException(Response.Status.METHOD_NOT_ALLOWED);
+        }
+        ArchiveExtractor.checkFormat(format);
+
+        BounceResourceConfig.AuthenticatedBlobStore blobStores = getBlobStore(authToken);
+        BounceResourceConfig config = (BounceResourceConfig) application;
+        String identity = config.getIdentity(authToken);
+        ArchiveExtractor.Result result = new ArchiveExtractor.Result();
+        return config.getBulkResponder().respond(BulkResponder.selectFormat(headers), result,
+                Response.Status.BAD_GATEWAY, () -> config.getArchiveExtractor().extract(identity, blobStores, null,
+                        format, request.getInputStream(), result));
+    }
+
     @DELETE
     @Consumes(MediaType.TEXT_PLAIN)
-    @Produces(MediaType.APPLICATION_JSON)
-    public BulkDeleteResult bulkDeleteDelete(@NotNull @PathParam("account") String account,
-                                             @QueryParam("bulk-delete") String bulkDelete,
-                                             @HeaderParam("X-Auth-Token") String authToken,
-                                             @Context Request request) throws JsonProcessingException {
-        return bulkDelete(account, bulkDelete, authToken, request);
+    @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+    public Response bulkDeleteDelete(@NotNull @PathParam("account") String account,
+                                     @QueryParam("bulk-delete") String bulkDelete,
+                                     @HeaderParam("X-Auth-Token") String authToken,
+                                     @Context HttpHeaders headers,
+                                     @Context Request request) {
+        return bulkDelete(account, bulkDelete, authToken, headers, request);
     }
 
     @POST
     @Consumes(MediaType.TEXT_PLAIN)
-    @Produces(MediaType.APPLICATION_JSON)
-    public BulkDeleteResult bulkDelete(@NotNull @PathParam("account") String account,
-                                       @QueryParam("bulk-delete") String bulkDelete,
-                                       @HeaderParam("X-Auth-Token") String authToken,
-                                       @Context Request request) throws JsonProcessingException {
+    @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+    public Response bulkDelete(@NotNull @PathParam("account") String account,
+                               @QueryParam("bulk-delete") String bulkDelete,
+                               @HeaderParam("X-Auth-Token") String authToken,
+                               @Context HttpHeaders headers,
+                               @Context Request request) {
         if (bulkDelete == null) {
-            // TODO: Currently this will match the account delete request as well, which we do not implement
-            throw new WebApplicationException(Response.Status.NOT_IMPLEMENTED);
+            // account metadata: only the temp url keys are kept
+            BounceResourceConfig config = (BounceResourceConfig) application;
+            String identity = config.getIdentity(authToken);
+            BlobStore blobStore = getBlobStore(authToken).get(TempUrlKeys.METADATA_CONTAINER);
+            if (!config.getTempUrlKeys().update(blobStore, identity, null, "Account", headers)) {
+                // TODO: Currently this will match the account delete request as well, which we do not implement
+                throw new WebApplicationException(Response.Status.NOT_IMPLEMENTED);
+            }
+            return Response.noContent().build();
         }
 
         BlobStore blobStore = getBlobStore(authToken).get();
@@ -168,66 +204,51 @@ public final class AccountResource extends BlobStoreResource {
             throw new WebApplicationException(Response.Status.BAD_REQUEST);
         }
 
-        String line;
-        ArrayList<String> objects = new ArrayList<>();
-
         boolean isTransient = blobStore.getContext().unwrap().getId().equals("transient");
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8))) {
-            while ((line = in.readLine()) != null) {
-                if (isTransient) {
-                    // jclouds does not escape things correctly
-                    line = Strings2.urlEncode(line, skipPathEncoding);
-                }
-                objects.add(line);
-            }
-        } catch (IOException e) {
-            throw propagate(e);
-        }
-
+        BounceResourceConfig config = (BounceResourceConfig) application;
+        String identity = config.getIdentity(authToken);
         BulkDeleteResult result = new BulkDeleteResult();
-        for (String objectContainer : objects) {
-            try {
-                if (objectContainer.startsWith("/")) {
-                    objectContainer = objectContainer.substring(1);
-                }
-                int separatorIndex = objectContainer.indexOf('/');
-                if (separatorIndex < 0) {
-                    blobStore.deleteContainer(objectContainer.substring(1));
-                    result.numberDeleted += 1;
-                    continue;
-                }
-                String container = objectContainer.substring(0, separatorIndex);
-                String object = objectContainer.substring(separatorIndex + 1);
-
-                if (!blobStore.blobExists(container, object)) {
-                    result.numberNotFound += 1;
-                } else {
-                    blobStore.removeBlob(container, object);
-                    result.numberDeleted += 1;
-                }
-            } catch (ContainerNotFoundException e) {
-                result.numberNotFound += 1;
-            } catch (Exception e) {
-                e.printStackTrace();
-                result.errors.add(objectContainer);
-            }
-        }
-
-        if (result.errors.isEmpty()) {
-            result.responseStatus = Response.Status.OK.toString();
-            return result;
-        } else {
-            ObjectMapper mapper = new ObjectMapper();
-            result.responseStatus = Response.Status.BAD_GATEWAY.toString();
-            throw new WebApplicationException(mapper.writeValueAsString(result), Response.Status.BAD_GATEWAY);
-        }
+        // the deletes run while the response is streamed, so that clients and
+        // load balancers see progress instead of an idle connection
+        return config.getBulkResponder().respond(BulkResponder.selectFormat(headers), result,
+                Response.Status.BAD_GATEWAY, () -> {
+                    BlobDeleter.Deletion deletion = config.getBlobDeleter().newDeletion(blobStore, identity, result);
+                    // lines are handed to the deleter as they are read, so only the
+                    // batches in flight are ever held in memory
+                    try (BufferedReader in = new BufferedReader(new InputStreamReader(request.getInputStream(),
+                            StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            if (line.isEmpty()) {
+                                continue;
+                            }
+                            if (isTransient) {
+                                // jclouds does not escape things correctly
+                                line = Strings2.urlEncode(line, skipPathEncoding);
+                            }
+                            String objectContainer = line.startsWith("/") ? line.substring(1) : line;
+                            int separatorIndex = objectContainer.indexOf('/');
+                            if (separatorIndex < 0) {
+                                deletion.deleteContainer(objectContainer);
+                            } else {
+                                deletion.delete(objectContainer.substring(0, separatorIndex),
+                                        objectContainer.substring(separatorIndex + 1));
+                            }
+                        }
+                    } finally {
+                        deletion.await();
+                    }
+                });
     }
 
     @XmlRootElement(name = "account")
     @XmlType
     static class Account {
-        @XmlElement
-        List<ContainerEntry> container;
+        @XmlElements({
+                @XmlElement(name = "container", type = ContainerEntry.class),
+                @XmlElement(name = "subdir", type = SubdirEntry.class)
+        })
+        List<Object> entries;
         @XmlAttribute
         private String name;
     }
@@ -252,6 +273,12 @@ public final class AccountResource extends BlobStoreResource {
             this.name = requireNonNull(name);
         }
 
+        ContainerEntry(String name, long count, long bytes) {
+            this.name = requireNonNull(name);
+            this.count = count;
+            this.bytes = bytes;
+        }
+
         @Override
         public boolean equals(Object other) {
             return other instanceof ContainerEntry &&
@@ -273,20 +300,41 @@ public final class AccountResource extends BlobStoreResource {
         }
     }
 
-    static class BulkDeleteResult {
-        @JsonProperty("Response Status")
-        String responseStatus;
-        @JsonProperty("Errors")
-        ArrayList<String> errors;
+    /** The containers rolled up by a delimiter. */
+    @XmlRootElement(name = "subdir")
+    @XmlType
+    static class SubdirEntry {
+        @JsonProperty("subdir")
+        @XmlAttribute(name = "name")
+        private String subdir;
+
+        // for jackson XML
+        public SubdirEntry() {
+
+        }
+
+        SubdirEntry(String subdir) {
+            this.subdir = requireNonNull(subdir);
+        }
+
+        @Override
+        public String toString() {
+            return subdir;
+        }
+    }
+
+    static class BulkDeleteResult extends BulkResult {
         @JsonProperty("Number Deleted")
         int numberDeleted;
         @JsonProperty("Number Not Found")
         int numberNotFound;
 
-        BulkDeleteResult() {
-            errors = new ArrayList<>();
-            numberDeleted = 0;
-            numberNotFound = 0;
+        synchronized void deleted(int count) {
+            numberDeleted += count;
+        }
+
+        synchronized void notFound(int count) {
+            numberNotFound += count;
         }
     }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import com.bouncestorage.swiftproxy.BlobStoreResource;
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+
+/**
+ * Exposes the state of the proxy's background work.  All endpoints
+ * require a valid token, and the ones that list jobs only list those of the
+ * token's identity.
+ */
+@Path("/admin")
+public final class AdminResource extends BlobStoreResource {
+    @GET
+    @Path("slo-materializer")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<SLOMaterializer.Job> getMaterializerJobs(@HeaderParam("X-Auth-Token") String authToken) {
+        getBlobStore(authToken);
+        BounceResourceConfig config = (BounceResourceConfig) application;
+        return config.getSLOMaterializer().getJobs(config.getIdentity(authToken));
+    }
+
+    @GET
+    @Path("write-behind")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getWriteBehindStats(@HeaderParam("X-Auth-Token") String authToken) {
+        getBlobStore(authToken);
+        return ((BounceResourceConfig) application).getWriteBehindJournal().getStats();
+    }
+
+    @GET
+    @Path("dedup")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getDedupStats(@HeaderParam("X-Auth-Token") String authToken) {
+        getBlobStore(authToken);
+        return ((BounceResourceConfig) application).getDedupStore().getStats();
+    }
+
+    @GET
+    @Path("purge")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<ContainerPurger.Job> getPurgeJobs(@HeaderParam("X-Auth-Token") String authToken) {
+        getBlobStore(authToken);
+        BounceResourceConfig config = (BounceResourceConfig) application;
+        return config.getContainerPurger().getJobs(config.getIdentity(authToken));
+    }
+
+    @GET
+    @Path("listing-index")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getListingIndexStats(@HeaderParam("X-Auth-Token") String authToken) {
+        getBlobStore(authToken);
+        return ((BounceResourceConfig) application).getListingIndex().getStats();
+    }
+
+    @GET
+    @Path("usage")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getUsageStats(@HeaderParam("X-Auth-Token") String authToken) {
+        getBlobStore(authToken);
+        return ((BounceResourceConfig) application).getUsageTracker().getStats();
+    }
+
+    @GET
+    @Path("context-pool")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getContextPoolStats(@HeaderParam("X-Auth-Token") String authToken) {
+        getBlobStore(authToken);
+        return ((BounceResourceConfig) application).getContextPool().getStats();
+    }
+}
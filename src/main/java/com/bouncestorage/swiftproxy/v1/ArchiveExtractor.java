@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.core.Response;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+import com.bouncestorage.swiftproxy.DedupStore;
+import com.bouncestorage.swiftproxy.FrameCompression;
+import com.bouncestorage.swiftproxy.SwiftProxy;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.BlobBuilder;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implements Swift's {@code extract-archive} bulk upload.  The archive is
+ * decompressed and parsed as it is read from the request, and each member
+ * file becomes an object.  Members that fit in a pooled buffer are uploaded
+ * on a pool shared by all requests, so that many small files are stored
+ * concurrently, while larger members are streamed straight from the archive
+ * by the request thread.  Nothing is written to disk, except that a larger
+ * member going to a compressed container is compressed into a temporary
+ * file first, as an object PUT does, since its compressed length must be
+ * known before it is uploaded.  Members are stored the
+ * way an object PUT would store them: each goes to the blob store its key is
+ * located on, is compressed or deduplicated if its container asks for it,
+ * and is recorded with the {@link ObjectTracker}.  Members naming one of
+ * the proxy's own containers are refused.
+ */
+public final class ArchiveExtractor {
+    // Swift's max_containers_per_extraction
+    private static final int MAX_CONTAINERS = 10000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final int bufferSize;
+    private final ExecutorService executor;
+    private final Semaphore buffers;
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final FrameCompression compression;
+    private final DedupStore dedup;
+    private final ObjectTracker tracker;
+    private final Predicate<String> reserved;
+
+    public ArchiveExtractor(Properties properties, FrameCompression compression, DedupStore dedup,
+                            ObjectTracker tracker, Predicate<String> reserved) {
+        this.compression = requireNonNull(compression);
+        this.dedup = requireNonNull(dedup);
+        this.tracker = requireNonNull(tracker);
+        this.reserved = requireNonNull(reserved);
+        int threads = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_EXTRACT_THREADS, "16"));
+        bufferSize = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_EXTRACT_BUFFER_SIZE,
+                String.valueOf(1024 * 1024)));
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("archive-extractor-%d").setDaemon(true).build());
+        // every upload in flight holds a buffer, so the number of buffers
+        // bounds both the queued work and the memory used by extraction
+        buffers = new Semaphore(threads * 2);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** Rejects unsupported archive formats before any of the response is sent. */
+    static void checkFormat(String format) {
+        if (!"tar".equals(format) && !"tar.gz".equals(format) && !"tar.bz2".equals(format)) {
+            throw new BadRequestException("unsupported archive format: " + format);
+        }
+    }
+
+    private static InputStream decompress(InputStream in, String format) throws IOException {
+        switch (format) {
+            case "tar.gz":
+                return new GZIPInputStream(in, 64 * 1024);
+            case "tar.bz2":
+                return new BZip2CompressorInputStream(in);
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Extracts an archive into {@code container}, or, if it is null, into the
+     * containers named by the first path component of each member, creating
+     * them as needed.  Returns once every member has been stored or failed.
+     */
+    void extract(String identity, BounceResourceConfig.AuthenticatedBlobStore blobStores, String container,
+                 String format, InputStream in, Result result) throws IOException {
+        Set<String> containers = new HashSet<>();
+        if (container != null) {
+            containers.add(container);
+        }
+        Phaser phaser = new Phaser(1);
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(decompress(in, format))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (!entry.isFile()) {
+                    continue;
+                }
+                String path = entry.getName();
+                while (path.startsWith("./") || path.startsWith("/")) {
+                    path = path.substring(path.indexOf('/') + 1);
+                }
+
+                String target = container;
+                String name = path;
+                if (container == null) {
+                    int separatorIndex = path.indexOf('/');
+                    if (separatorIndex <= 0) {
+                        result.error("/" + path, Response.Status.BAD_REQUEST);
+                        continue;
+                    }
+                    target = path.substring(0, separatorIndex);
+                    name = path.substring(separatorIndex + 1);
+                }
+                if (name.isEmpty()) {
+                    continue;
+                }
+                if (reserved.test(target)) {
+                    result.error("/" + target + "/" + name, Response.Status.FORBIDDEN);
+                    continue;
+                }
+                if (name.length() > InfoResource.CONFIG.swift.max_object_name_length) {
+                    result.error("/" + target + "/" + name, Response.Status.BAD_REQUEST);
+                    continue;
+                }
+
+                if (!containers.contains(target)) {
+                    if (containers.size() >= MAX_CONTAINERS) {
+                        throw new BadRequestException("more than " + MAX_CONTAINERS + " containers in archive");
+                    }
+                    try {
+                        tracker.containerCreated(identity, target,
+                                blobStores.get(target).createContainerInLocation(null, target));
+                    } catch (RuntimeException e) {
+                        logger.error("failed to create container " + target, e);
+                        result.error("/" + target + "/" + name, Response.Status.BAD_GATEWAY);
+                        continue;
+                    }
+                    containers.add(target);
+                }
+
+                BlobStore blobStore = blobStores.get(target, name);
+                long size = entry.getSize();
+                if (size <= bufferSize) {
+                    byte[] buffer = acquireBuffer();
+                    try {
+                        ByteStreams.readFully(tar, buffer, 0, (int) size);
+                    } catch (IOException e) {
+                        releaseBuffer(buffer);
+                        throw e;
+                    }
+                    submit(phaser, identity, blobStore, target, name, buffer, (int) size, result);
+                } else {
+                    // the upload consumes the member, so the archive stream
+                    // must stay open and positioned until it is done
+                    store(identity, blobStore, target, name, new CloseShieldInputStream(tar), null, size,
+                            result);
+                }
+            }
+        } finally {
+            phaser.arriveAndAwaitAdvance();
+        }
+    }
+
+    private void submit(Phaser phaser, String identity, BlobStore blobStore, String container, String name,
+                        byte[] buffer, int size, Result result) {
+        phaser.register();
+        try {
+            executor.execute(() -> {
+                try {
+                    store(identity, blobStore, container, name, new ByteArrayInputStream(buffer, 0, size),
+                            buffer, size, result);
+                } finally {
+                    releaseBuffer(buffer);
+                    phaser.arriveAndDeregister();
+                }
+            });
+        } catch (RuntimeException e) {
+            releaseBuffer(buffer);
+            phaser.arriveAndDeregister();
+            throw e;
+        }
+    }
+
+    // buffer holds the member if it was read into a pooled buffer
+    private void store(String identity, BlobStore blobStore, String container, String name, InputStream in,
+                       @Nullable byte[] buffer, long size, Result result) {
+        File spool = null;
+        try {
+            // a pending write-behind upload would overwrite the member
+            tracker.replacing(identity, container, name);
+            BlobMetadata replaced = tracker.replaced(identity, blobStore, container, name);
+            BlobBuilder.PayloadBlobBuilder builder;
+            if (identity != null && dedup.shouldDedup(container)) {
+                DedupStore.Recipe recipe = dedup.write(blobStore, identity, in);
+                byte[] body = recipe.toBytes();
+                builder = blobStore.blobBuilder(name)
+                        .userMetadata(ImmutableMap.of(DedupStore.DEDUP_METADATA, recipe.getMetadata()))
+                        .payload(body)
+                        .contentLength(body.length);
+            } else if (compression.shouldCompress(container)) {
+                FrameCompression.Spooled spooled;
+                if (buffer != null) {
+                    spooled = compression.compress(buffer, (int) size);
+                } else {
+                    // the compressed length must be known before the upload
+                    spool = File.createTempFile("swiftproxy-", ".frames");
+                    spooled = compression.spool(in, spool);
+                }
+                if (spooled.isCompressed()) {
+                    BlobBuilder compressed = blobStore.blobBuilder(name)
+                            .userMetadata(ImmutableMap.of(FrameCompression.COMPRESSION_METADATA,
+                                    spooled.getInfo().toString()));
+                    builder = (spool == null ? compressed.payload(spooled.getBytes()) : compressed.payload(spool))
+                            .contentLength(spooled.getStoredLength());
+                } else {
+                    builder = blobStore.blobBuilder(name).payload(spooled.getRawStream()).contentLength(size);
+                }
+            } else {
+                builder = blobStore.blobBuilder(name).payload(in).contentLength(size);
+            }
+            blobStore.putBlob(container, builder.build());
+            tracker.writtenWithoutDeadline(identity, blobStore, container, name, replaced);
+            result.created();
+        } catch (IOException | RuntimeException e) {
+            logger.error("failed to extract " + container + "/" + name, e);
+            result.error("/" + container + "/" + name, Response.Status.BAD_GATEWAY);
+        } finally {
+            if (spool != null && !spool.delete()) {
+                logger.warn("failed to delete {}", spool);
+            }
+        }
+    }
+
+    private byte[] acquireBuffer() {
+        buffers.acquireUninterruptibly();
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        freeBuffers.add(requireNonNull(buffer));
+        buffers.release();
+    }
+
+    /** The result of an archive extraction, in the Swift bulk format. */
+    static final class Result extends BulkResult {
+        @JsonProperty("Number Files Created")
+        int numberFilesCreated;
+
+        synchronized void created() {
+            numberFilesCreated++;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import javax.ws.rs.core.Response;
+
+import com.bouncestorage.swiftproxy.SwiftProxy;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.KeyNotFoundException;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.s3.S3Client;
+import org.jclouds.s3.domain.DeleteResult;
+import org.jclouds.s3.domain.DeleteResult.ErrorEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes objects on a bounded pool shared by all requests, so that
+ * concurrent bulk deletes compete for the same backend budget instead of
+ * each running its own unbounded fan-out.  Objects are grouped by container
+ * and, on backends with a native multi-delete, removed in batches.  Neither
+ * removeBlob nor the multi-deletes fail for a missing key, so every object is
+ * looked up before it is deleted to tell deleted objects from missing ones.
+ * Deletes in the proxy's own containers are refused.
+ */
+public final class BlobDeleter {
+    // providers whose removeBlobs issues a native multi-object delete
+    private static final Set<String> BATCH_PROVIDERS = ImmutableSet.of(
+            "aws-s3",
+            "s3",
+            "openstack-swift",
+            "rackspace-cloudfiles-uk",
+            "rackspace-cloudfiles-us"
+    );
+
+    // providers whose multi-delete reports per-key errors through S3Client
+    private static final Set<String> S3_PROVIDERS = ImmutableSet.of(
+            "aws-s3",
+            "s3"
+    );
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final int batchSize;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final ObjectTracker tracker;
+    private final Predicate<String> reserved;
+
+    public BlobDeleter(Properties properties, ObjectTracker tracker, Predicate<String> reserved) {
+        this.tracker = requireNonNull(tracker);
+        this.reserved = requireNonNull(reserved);
+        int threads = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_DELETE_THREADS, "16"));
+        batchSize = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_DELETE_BATCH_SIZE, "1000"));
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("blob-deleter-%d").setDaemon(true).build());
+        // bounds the work queued ahead of the pool, and with it the memory
+        // held by callers that produce deletes faster than they complete
+        permits = new Semaphore(threads * 2);
+    }
+
+    /**
+     * Starts a stream of deletes of the objects of identity, which are
+     * reported to the {@link ObjectTracker} as they are deleted.
+     */
+    Deletion newDeletion(BlobStore blobStore, String identity, AccountResource.BulkDeleteResult result) {
+        return new Deletion(blobStore, identity, result, (container, object) -> true);
+    }
+
+    /**
+     * Starts a stream of deletes that skips the objects for which filter no
+     * longer holds once they have been looked up, just before they are
+     * deleted.  Skipped objects are not reported in the result.
+     */
+    Deletion newDeletion(BlobStore blobStore, String identity, AccountResource.BulkDeleteResult result,
+                         BiPredicate<String, String> filter) {
+        return new Deletion(blobStore, identity, result, filter);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static boolean isNotFound(Throwable t) {
+        for (Throwable cause : Throwables.getCausalChain(t)) {
+            if (cause instanceof ContainerNotFoundException || cause instanceof KeyNotFoundException) {
+                return true;
+            }
+            if (cause instanceof HttpResponseException) {
+                HttpResponseException hre = (HttpResponseException) cause;
+                if (hre.getResponse() != null && hre.getResponse().getStatusCode() == 404) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One caller's stream of deletes.  Objects passed to {@link #delete} are
+     * buffered until the container changes or a batch is full; the results
+     * are accumulated into a {@link AccountResource.BulkDeleteResult}.
+     */
+    final class Deletion {
+        private final BlobStore blobStore;
+        private final String identity;
+        private final AccountResource.BulkDeleteResult result;
+        private final BiPredicate<String, String> filter;
+        private final boolean batched;
+        private final boolean s3;
+        private final Phaser phaser = new Phaser(1);
+        private String container;
+        private Boolean containerExists;
+        private List<String> objects = new ArrayList<>();
+
+        Deletion(BlobStore blobStore, String identity, AccountResource.BulkDeleteResult result,
+                 BiPredicate<String, String> filter) {
+            this.blobStore = requireNonNull(blobStore);
+            this.identity = identity;
+            this.result = requireNonNull(result);
+            this.filter = requireNonNull(filter);
+            String provider = blobStore.getContext().unwrap().getId();
+            this.batched = BATCH_PROVIDERS.contains(provider);
+            this.s3 = S3_PROVIDERS.contains(provider);
+        }
+
+        void delete(String objectContainer, String object) {
+            if (!objectContainer.equals(container)) {
+                flush();
+                container = objectContainer;
+                containerExists = null;
+            } else if (objects.size() >= batchSize) {
+                flush();
+            }
+            objects.add(object);
+        }
+
+        /** Deletes a container once every delete issued before it has completed. */
+        void deleteContainer(String name) {
+            await();
+            container = null;
+            if (reserved.test(name)) {
+                result.error("/" + name, Response.Status.FORBIDDEN);
+                return;
+            }
+            try {
+                if (blobStore.deleteContainerIfEmpty(name)) {
+                    tracker.containerDeleted(identity, name);
+                    result.deleted(1);
+                } else {
+                    result.error("/" + name, Response.Status.CONFLICT);
+                }
+            } catch (RuntimeException e) {
+                if (isNotFound(e)) {
+                    result.notFound(1);
+                } else {
+                    logger.error("failed to delete container " + name, e);
+                    result.error("/" + name, Response.Status.BAD_GATEWAY);
+                }
+            }
+        }
+
+        /** Waits until every delete issued so far has completed. */
+        void await() {
+            flush();
+            phaser.arriveAndAwaitAdvance();
+        }
+
+        private void flush() {
+            if (objects.isEmpty()) {
+                return;
+            }
+            List<String> batch = objects;
+            objects = new ArrayList<>();
+            String batchContainer = container;
+
+            if (reserved.test(batchContainer)) {
+                // the proxy's own containers, which a manifest may name too
+                batch.forEach(object -> result.error("/" + batchContainer + "/" + object,
+                        Response.Status.FORBIDDEN));
+                return;
+            }
+            if (containerExists == null) {
+                // one round trip per container instead of one per object
+                containerExists = blobStore.containerExists(batchContainer);
+            }
+            if (!containerExists) {
+                result.notFound(batch.size());
+                return;
+            }
+
+            if (batched) {
+                // the multi-deletes report missing keys as deleted, so the
+                // keys are looked up first and only the ones found are
+                // removed, by whichever lookup finishes last
+                Queue<BlobMetadata> found = new ConcurrentLinkedQueue<>();
+                AtomicInteger pending = new AtomicInteger(batch.size());
+                for (String object : batch) {
+                    submit(() -> {
+                        try {
+                            BlobMetadata meta = lookup(batchContainer, object);
+                            if (meta != null) {
+                                found.add(meta);
+                            }
+                        } finally {
+                            if (pending.decrementAndGet() == 0 && !found.isEmpty()) {
+                                removeBatch(batchContainer, new ArrayList<>(found));
+                            }
+                        }
+                    });
+                }
+            } else {
+                for (String object : batch) {
+                    submit(() -> {
+                        BlobMetadata meta = lookup(batchContainer, object);
+                        if (meta == null) {
+                            return;
+                        }
+                        try {
+                            blobStore.removeBlob(batchContainer, object);
+                            tracker.deleted(identity, blobStore, batchContainer, object, meta);
+                            result.deleted(1);
+                        } catch (RuntimeException e) {
+                            if (isNotFound(e)) {
+                                result.notFound(1);
+                            } else {
+                                logger.error("failed to delete " + batchContainer + "/" + object, e);
+                                result.error("/" + batchContainer + "/" + object, Response.Status.BAD_GATEWAY);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Returns the metadata of an object, or null if it does not exist or
+         * cannot be looked up, which is recorded in the result, or is no
+         * longer to be deleted.  An object that only existed as a pending
+         * write-behind upload is deleted by dropping the upload.
+         */
+        private BlobMetadata lookup(String objectContainer, String object) {
+            if (!filter.test(objectContainer, object)) {
+                return null;
+            }
+            // a pending write-behind upload would bring the object back
+            boolean journaled = tracker.replacing(identity, objectContainer, object);
+            try {
+                BlobMetadata meta = blobStore.blobMetadata(objectContainer, object);
+                if (meta != null) {
+                    return filter.test(objectContainer, object) ? meta : null;
+                }
+                if (journaled) {
+                    result.deleted(1);
+                } else {
+                    result.notFound(1);
+                }
+            } catch (RuntimeException e) {
+                if (isNotFound(e)) {
+                    result.notFound(1);
+                } else {
+                    logger.error("failed to look up " + objectContainer + "/" + object, e);
+                    result.error("/" + objectContainer + "/" + object, Response.Status.BAD_GATEWAY);
+                }
+            }
+            return null;
+        }
+
+        private void removeBatch(String objectContainer, List<BlobMetadata> metas) {
+            List<String> batch = metas.stream().map(BlobMetadata::getName).collect(Collectors.toList());
+            try {
+                Map<String, ErrorEntry> errors = Collections.emptyMap();
+                if (s3) {
+                    // removeBlobs drops the per-key errors of DeleteObjects
+                    DeleteResult deleteResult = blobStore.getContext().unwrapApi(S3Client.class)
+                            .deleteObjects(objectContainer, batch);
+                    errors = deleteResult.getErrors();
+                    for (Map.Entry<String, ErrorEntry> entry : errors.entrySet()) {
+                        if ("NoSuchKey".equals(entry.getValue().getCode())) {
+                            result.notFound(1);
+                        } else {
+                            logger.error("failed to delete {}/{}: {}", objectContainer, entry.getKey(),
+                                    entry.getValue().getMessage());
+                            result.error("/" + objectContainer + "/" + entry.getKey(),
+                                    Response.Status.BAD_GATEWAY);
+                        }
+                    }
+                } else {
+                    blobStore.removeBlobs(objectContainer, batch);
+                }
+                for (BlobMetadata meta : metas) {
+                    if (!errors.containsKey(meta.getName())) {
+                        tracker.deleted(identity, blobStore, objectContainer, meta.getName(), meta);
+                    }
+                }
+                result.deleted(batch.size() - errors.size());
+            } catch (RuntimeException e) {
+                if (isNotFound(e)) {
+                    result.notFound(batch.size());
+                } else {
+                    logger.error("failed to delete a batch from " + objectContainer, e);
+                    batch.forEach(o -> result.error("/" + objectContainer + "/" + o,
+                            Response.Status.BAD_GATEWAY));
+                }
+            }
+        }
+
+        private void submit(Runnable task) {
+            permits.acquireUninterruptibly();
+            phaser.register();
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                        phaser.arriveAndDeregister();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                phaser.arriveAndDeregister();
+                throw e;
+            }
+        }
+    }
+}
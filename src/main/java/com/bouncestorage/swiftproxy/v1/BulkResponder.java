@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.bouncestorage.swiftproxy.SwiftProxy;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the response of a long-running bulk operation the way Swift does:
+ * the status line and headers are sent at once and the operation runs while
+ * the body is written, with a space sent every few seconds so that idle
+ * timeouts on the way do not close the connection.  The result follows the
+ * whitespace once the operation is done, so its outcome is carried by the
+ * "Response Status" of the body rather than by the HTTP status.  Like
+ * Swift's, the heartbeat carries no progress: leading whitespace is all a
+ * client parsing the JSON or plain text result will skip.
+ */
+public final class BulkResponder {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final long interval;
+    private final ScheduledExecutorService scheduler;
+
+    public BulkResponder(Properties properties) {
+        interval = TimeUnit.SECONDS.toMillis(Long.parseLong(
+                properties.getProperty(SwiftProxy.PROPERTY_BULK_HEARTBEAT_INTERVAL, "10")));
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("bulk-heartbeat-%d").setDaemon(true).build());
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /** The body of a bulk operation, run while the response is being written. */
+    interface Operation {
+        void run() throws IOException;
+    }
+
+    /** Picks the result format from the Accept header, JSON unless plain text is preferred. */
+    static MediaType selectFormat(HttpHeaders headers) {
+        for (MediaType type : headers.getAcceptableMediaTypes()) {
+            if (type.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+                return MediaType.APPLICATION_JSON_TYPE;
+            } else if (type.isCompatible(MediaType.TEXT_PLAIN_TYPE)) {
+                return MediaType.TEXT_PLAIN_TYPE;
+            }
+        }
+        return MediaType.APPLICATION_JSON_TYPE;
+    }
+
+    /**
+     * Returns a response that runs {@code operation} while it is written and
+     * then reports {@code result}, with {@code errorStatus} as the response
+     * status if any errors were recorded.
+     */
+    Response respond(MediaType format, BulkResult result, Response.StatusType errorStatus,
+                     Operation operation) {
+        StreamingOutput output = out -> {
+            Heartbeat heartbeat = new Heartbeat(out);
+            try {
+                operation.run();
+                result.complete(errorStatus);
+            } catch (WebApplicationException e) {
+                result.abort(e.getResponse().getStatusInfo(), e.getMessage());
+            } catch (IOException e) {
+                // the request body could not be read
+                result.abort(Response.Status.BAD_REQUEST, e.getMessage());
+            } catch (RuntimeException e) {
+                logger.error("bulk operation failed", e);
+                result.abort(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage());
+            } finally {
+                heartbeat.cancel();
+            }
+            write(out, format, result);
+        };
+        return Response.ok(output, format).build();
+    }
+
+    private static void write(OutputStream out, MediaType format, BulkResult result) throws IOException {
+        if (!MediaType.TEXT_PLAIN_TYPE.isCompatible(format)) {
+            MAPPER.writeValue(out, result);
+            return;
+        }
+
+        Map<String, Object> fields = MAPPER.convertValue(result,
+                new TypeReference<LinkedHashMap<String, Object>>() {
+                });
+        StringBuilder sb = new StringBuilder();
+        fields.forEach((key, value) -> {
+            if (!"Errors".equals(key)) {
+                sb.append(key).append(": ").append(value).append('\n');
+            }
+        });
+        sb.append("Errors:\n");
+        for (List<String> error : result.errors) {
+            sb.append(error.get(0)).append(", ").append(error.get(1)).append('\n');
+        }
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Writes a space to the response every interval until cancelled. */
+    private final class Heartbeat {
+        private final OutputStream out;
+        private final ScheduledFuture<?> future;
+        private boolean cancelled;
+
+        Heartbeat(OutputStream out) {
+            this.out = out;
+            this.future = scheduler.scheduleAtFixedRate(this::beat, interval, interval,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void beat() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                out.write(' ');
+                out.flush();
+            } catch (IOException e) {
+                // the client went away; the operation still runs to completion
+                logger.debug("stopping heartbeat: {}", e.getMessage());
+                cancel();
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.ws.rs.core.Response;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The result body of a Swift bulk operation.  Errors are kept as pairs of
+ * name and status; only the first {@link #MAX_ERRORS} are recorded so that
+ * a failing request does not grow without bound.
+ */
+abstract class BulkResult {
+    static final int MAX_ERRORS = 1000;
+
+    @JsonProperty("Response Status")
+    String responseStatus;
+    @JsonProperty("Response Body")
+    String responseBody = "";
+    @JsonProperty("Errors")
+    ArrayList<List<String>> errors = new ArrayList<>();
+
+    static String statusLine(Response.StatusType status) {
+        return status.getStatusCode() + " " + status.getReasonPhrase();
+    }
+
+    synchronized void error(String name, Response.StatusType status) {
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(Arrays.asList(name, statusLine(status)));
+        }
+    }
+
+    synchronized boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    /** Sets the status reported for an operation that ran to completion. */
+    synchronized void complete(Response.StatusType errorStatus) {
+        responseStatus = statusLine(errors.isEmpty() ? Response.Status.OK : errorStatus);
+    }
+
+    /** Sets the status reported for an operation that was aborted. */
+    synchronized void abort(Response.StatusType status, String body) {
+        responseStatus = statusLine(status);
+        responseBody = body == null ? "" : body;
+    }
+}
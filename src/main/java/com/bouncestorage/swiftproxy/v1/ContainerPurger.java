@@ -0,0 +1,356 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Throwables.propagate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+import com.bouncestorage.swiftproxy.SwiftProxy;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Empties and then deletes containers in the background.  Each job walks
+ * its container one listing page at a time, fetching the next page while
+ * the current one is being deleted through the shared {@link BlobDeleter}.
+ * Deletes are rate limited per provider across all jobs.  After every page
+ * the last deleted name is checkpointed, so that a job interrupted by a
+ * restart resumes where it stopped.
+ */
+public final class ContainerPurger {
+    private static final String CHECKPOINT_PREFIX = "purge-";
+    private static final String CHECKPOINT_SUFFIX = ".json";
+    private static final int MAX_FINISHED_JOBS = 100;
+    // objects written while a purge runs are picked up by another pass
+    private static final int MAX_PASSES = 3;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Path directory;
+    private final double rate;
+    private final Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver;
+    private final BlobDeleter deleter;
+    private final ObjectTracker tracker;
+    private final ExecutorService executor;
+    private final ExecutorService lister;
+    private final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+    private final Map<String, Job> pendingJobs = new ConcurrentHashMap<>();
+    private final Deque<Job> finishedJobs = new ConcurrentLinkedDeque<>();
+    private final Map<String, Queue<Job>> parked = new ConcurrentHashMap<>();
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    public ContainerPurger(Properties properties, BlobDeleter deleter, ObjectTracker tracker,
+                           Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver) {
+        this.deleter = requireNonNull(deleter);
+        this.tracker = requireNonNull(tracker);
+        this.resolver = requireNonNull(resolver);
+        String dir = properties.getProperty(SwiftProxy.PROPERTY_PURGE_DIR);
+        directory = dir == null ? null : Paths.get(dir);
+        rate = Double.parseDouble(properties.getProperty(SwiftProxy.PROPERTY_PURGE_RATE, "1000"));
+        int threads = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_PURGE_THREADS, "2"));
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("container-purger-%d").setDaemon(true).build());
+        // at most one listing is in flight per running job
+        lister = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("container-purger-list-%d").setDaemon(true).build());
+
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+                recover();
+            } catch (IOException e) {
+                throw propagate(e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        lister.shutdownNow();
+    }
+
+    /** Starts purging a container, or returns the job already purging it. */
+    Job submit(String identity, String container) {
+        Job job = new Job(identity, container);
+        Job previous = pendingJobs.putIfAbsent(job.key(), job);
+        if (previous != null) {
+            return previous;
+        }
+        logger.info("queueing purge of {}", container);
+        schedule(job);
+        return job;
+    }
+
+    public List<Job> getJobs() {
+        List<Job> jobs = new ArrayList<>(pendingJobs.values());
+        jobs.addAll(finishedJobs);
+        return jobs;
+    }
+
+    /** Returns the jobs purging the containers of identity. */
+    public List<Job> getJobs(String identity) {
+        return getJobs().stream()
+                .filter(job -> job.identity.equals(identity))
+                .collect(Collectors.toList());
+    }
+
+    /** Resumes the recovered jobs of an identity that was not available at startup. */
+    public void attach(String identity) {
+        Queue<Job> jobs = parked.remove(identity);
+        if (jobs != null) {
+            jobs.forEach(this::schedule);
+        }
+    }
+
+    private void schedule(Job job) {
+        if (resolver.apply(job.identity) == null) {
+            parked.computeIfAbsent(job.identity, k -> new ConcurrentLinkedQueue<>()).add(job);
+            return;
+        }
+        executor.execute(() -> run(job));
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> checkpoints = Files.newDirectoryStream(directory,
+                CHECKPOINT_PREFIX + "*" + CHECKPOINT_SUFFIX)) {
+            for (Path path : checkpoints) {
+                Checkpoint checkpoint = MAPPER.readValue(path.toFile(), Checkpoint.class);
+                Job job = new Job(checkpoint.identity, checkpoint.container);
+                job.marker = checkpoint.marker;
+                job.result.numberDeleted = checkpoint.deleted;
+                if (pendingJobs.putIfAbsent(job.key(), job) == null) {
+                    logger.info("resuming purge of {} after {}", job.container, job.marker);
+                    schedule(job);
+                }
+            }
+        }
+    }
+
+    private void run(Job job) {
+        job.state = State.RUNNING;
+        job.started = Instant.now();
+        try {
+            BlobStore blobStore = resolver.apply(job.identity).get(job.container);
+            RateLimiter limiter = limiters.computeIfAbsent(blobStore.getContext().unwrap().getId(),
+                    provider -> RateLimiter.create(rate));
+            for (int pass = 0; pass < MAX_PASSES; pass++) {
+                purge(blobStore, limiter, job);
+                if (job.result.hasErrors()) {
+                    throw new IOException("failed to delete " + job.result.errors.size() + " objects");
+                }
+                if (blobStore.deleteContainerIfEmpty(job.container)) {
+                    tracker.containerDeleted(job.identity, job.container);
+                    job.state = State.DONE;
+                    break;
+                }
+                job.marker = null;
+            }
+            if (job.state != State.DONE) {
+                throw new IOException("container is still being written to");
+            }
+            removeCheckpoint(job);
+        } catch (Exception e) {
+            logger.error("failed to purge " + job.container, e);
+            job.error = e.getMessage();
+            job.state = State.FAILED;
+        } finally {
+            job.finished = Instant.now();
+            pendingJobs.remove(job.key(), job);
+            finishedJobs.addFirst(job);
+            while (finishedJobs.size() > MAX_FINISHED_JOBS) {
+                finishedJobs.pollLast();
+            }
+        }
+    }
+
+    private void purge(BlobStore blobStore, RateLimiter limiter, Job job)
+            throws IOException, InterruptedException, ExecutionException {
+        BlobDeleter.Deletion deletion = deleter.newDeletion(blobStore, job.identity, job.result);
+        PageSet<? extends StorageMetadata> page = list(blobStore, job.container, job.marker);
+        while (true) {
+            String next = page.getNextMarker();
+            CompletableFuture<PageSet<? extends StorageMetadata>> nextPage = next == null ? null :
+                    CompletableFuture.supplyAsync(() -> list(blobStore, job.container, next), lister);
+
+            String last = null;
+            int blobs = 0;
+            for (StorageMetadata sm : page) {
+                last = sm.getName();
+                if (sm.getType() == StorageType.BLOB) {
+                    blobs++;
+                }
+            }
+            if (blobs > 0) {
+                limiter.acquire(blobs);
+            }
+            for (StorageMetadata sm : page) {
+                if (sm.getType() == StorageType.BLOB) {
+                    deletion.delete(job.container, sm.getName());
+                }
+            }
+            deletion.await();
+            if (last != null) {
+                job.marker = last;
+                checkpoint(job);
+            }
+
+            if (nextPage == null) {
+                return;
+            }
+            page = nextPage.get();
+        }
+    }
+
+    private static PageSet<? extends StorageMetadata> list(BlobStore blobStore, String container, String marker) {
+        ListContainerOptions options = new ListContainerOptions().recursive();
+        if (marker != null) {
+            options.afterMarker(marker);
+        }
+        return blobStore.list(container, options);
+    }
+
+    private Path checkpointPath(Job job) {
+        return directory.resolve(CHECKPOINT_PREFIX +
+                Hashing.sha1().hashString(job.key(), StandardCharsets.UTF_8) + CHECKPOINT_SUFFIX);
+    }
+
+    private void checkpoint(Job job) throws IOException {
+        if (directory == null) {
+            return;
+        }
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.identity = job.identity;
+        checkpoint.container = job.container;
+        checkpoint.marker = job.marker;
+        checkpoint.deleted = job.result.numberDeleted;
+        Path path = checkpointPath(job);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, MAPPER.writeValueAsBytes(checkpoint));
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void removeCheckpoint(Job job) throws IOException {
+        if (directory != null) {
+            Files.deleteIfExists(checkpointPath(job));
+        }
+    }
+
+    public static final class Job {
+        @JsonProperty
+        final String container;
+        @JsonProperty
+        volatile State state = State.QUEUED;
+        @JsonProperty
+        volatile String marker;
+        @JsonProperty
+        volatile String error;
+        @JsonSerialize(using = ToStringSerializer.class)
+        @JsonProperty
+        final Instant submitted = Instant.now();
+        @JsonSerialize(using = ToStringSerializer.class)
+        @JsonProperty
+        volatile Instant started;
+        @JsonSerialize(using = ToStringSerializer.class)
+        @JsonProperty
+        volatile Instant finished;
+        private final String identity;
+        private final AccountResource.BulkDeleteResult result = new AccountResource.BulkDeleteResult();
+
+        Job(String identity, String container) {
+            this.identity = requireNonNull(identity);
+            this.container = requireNonNull(container);
+        }
+
+        @JsonProperty
+        long getDeleted() {
+            return result.numberDeleted;
+        }
+
+        @JsonProperty
+        long getNotFound() {
+            return result.numberNotFound;
+        }
+
+        @JsonProperty
+        List<List<String>> getErrors() {
+            synchronized (result) {
+                return new ArrayList<>(result.errors);
+            }
+        }
+
+        private String key() {
+            return identity + "/" + container;
+        }
+    }
+
+    static final class Checkpoint {
+        @JsonProperty
+        String identity;
+        @JsonProperty
+        String container;
+        @JsonProperty
+        String marker;
+        @JsonProperty
+        int deleted;
+    }
+}
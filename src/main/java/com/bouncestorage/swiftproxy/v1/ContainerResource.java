@@ -25,9 +25,8 @@ import java.net.URLDecoder;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.util.Date;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Optional;
-import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import javax.validation.constraints.NotNull;
@@ -42,10 +41,10 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
@@ -58,7 +57,10 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.databind.ser.std.DateSerializer;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 
+import org.glassfish.grizzly.http.server.Request;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.domain.BlobMetadata;
 import org.jclouds.blobstore.domain.StorageMetadata;
@@ -73,7 +75,9 @@ public final class ContainerResource extends BlobStoreResource {
             throw new BadRequestException("container name too long");
         }
 
-        getBlobStore(authToken).get(container).createContainerInLocation(null, container);
+        boolean created = getBlobStore(authToken).get(container).createContainerInLocation(null, container);
+        BounceResourceConfig config = (BounceResourceConfig) application;
+        config.getObjectTracker().containerCreated(config.getIdentity(authToken), container, created);
     }
 
     @POST
@@ -86,8 +90,12 @@ public final class ContainerResource extends BlobStoreResource {
                                   @HeaderParam("X-Versions-Location") String versionsLocation,
                                   @HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
                                   @HeaderParam("X-Detect-Content-Type") boolean detectContentType,
-                                  @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
+                                  @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                                  @Context HttpHeaders headers) {
         createContainer(authToken, container);
+        BounceResourceConfig config = (BounceResourceConfig) application;
+        config.getTempUrlKeys().update(getBlobStore(authToken).get(TempUrlKeys.METADATA_CONTAINER),
+                config.getIdentity(authToken), container, "Container", headers);
         return Response.status(Response.Status.NO_CONTENT).build();
     }
 
@@ -101,12 +109,24 @@ public final class ContainerResource extends BlobStoreResource {
                                   @HeaderParam("X-Versions-Location") String versionsLocation,
                                   @HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
                                   @HeaderParam("X-Detect-Content-Type") boolean detectContentType,
-                                  @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) {
+                                  @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                                  @QueryParam("extract-archive") String extractArchive,
+                                  @Context HttpHeaders headers,
+                                  @Context Request request) {
+        if (extractArchive != null) {
+            return extractArchive(container, authToken, extractArchive, headers, request);
+        }
+
         Response.Status status;
         BlobStore store = getBlobStore(authToken).get(container);
+        String identity = ((BounceResourceConfig) application).getIdentity(authToken);
+        UsageTracker usage = ((BounceResourceConfig) application).getUsageTracker();
 
         if (store.containerExists(container)) {
             status = Response.Status.ACCEPTED;
+            if (identity != null) {
+                usage.track(identity, container);
+            }
         } else {
             createContainer(authToken, container);
             status = Response.Status.CREATED;
@@ -115,15 +135,40 @@ public final class ContainerResource extends BlobStoreResource {
         return Response.status(status).build();
     }
 
+    private Response extractArchive(String container, String authToken, String format, HttpHeaders headers,
+                                    Request request) {
+        ArchiveExtractor.checkFormat(format);
+        BounceResourceConfig.AuthenticatedBlobStore blobStores = getBlobStore(authToken);
+        if (!blobStores.get(container).containerExists(container)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        BounceResourceConfig config = (BounceResourceConfig) application;
+        String identity = config.getIdentity(authToken);
+        ArchiveExtractor.Result result = new ArchiveExtractor.Result();
+        return config.getBulkResponder().respond(BulkResponder.selectFormat(headers), result,
+                Response.Status.BAD_GATEWAY, () -> config.getArchiveExtractor().extract(
+                        identity, blobStores, container, format, request.getInputStream(), result));
+    }
+
     @DELETE
     public Response deleteContainer(@NotNull @PathParam("container") String container,
-                                    @HeaderParam("X-Auth-Token") String authToken) {
+                                    @HeaderParam("X-Auth-Token") String authToken,
+                                    @QueryParam("purge") String purge) {
         BlobStore store = getBlobStore(authToken).get(container);
         if (!store.containerExists(container)) {
             return Response.status(Response.Status.NOT_FOUND).build();
         }
 
+        if (purge != null) {
+            BounceResourceConfig config = (BounceResourceConfig) application;
+            ContainerPurger.Job job = config.getContainerPurger().submit(config.getIdentity(authToken), container);
+            return Response.accepted(job).type(MediaType.APPLICATION_JSON).build();
+        }
+
         if (store.deleteContainerIfEmpty(container)) {
+            String identity = ((BounceResourceConfig) application).getIdentity(authToken);
+            ((BounceResourceConfig) application).getObjectTracker().containerDeleted(identity, container);
             return Response.noContent().build();
         } else {
             return Response.status(Response.Status.CONFLICT)
@@ -137,27 +182,43 @@ public final class ContainerResource extends BlobStoreResource {
                                   @HeaderParam("X-Auth-Token") String authToken,
                                   @HeaderParam("X-Newest") @DefaultValue("false") boolean newest) {
         BlobStore store = getBlobStore(authToken).get(container);
+        String identity = ((BounceResourceConfig) application).getIdentity(authToken);
+        UsageTracker tracker = ((BounceResourceConfig) application).getUsageTracker();
+        UsageTracker.Usage usage = identity == null ? null : tracker.getContainerUsage(identity, container);
+
+        // the container may have been deleted behind the proxy's back since it was counted
         if (!store.containerExists(container)) {
+            if (usage != null) {
+                ((BounceResourceConfig) application).getObjectTracker().containerDeleted(identity, container);
+            }
             return Response.status(Response.Status.NOT_FOUND).build();
         }
 
         long objectCount = -1;
-        String provider = store.getContext().unwrap().getId();
-        if (provider.equals("transient") || provider.equals("openstack-swift")) {
-            objectCount = store.countBlobs(container);
+        long bytesUsed = -1;
+        if (usage != null) {
+            objectCount = usage.getObjectCount();
+            bytesUsed = usage.getBytesUsed();
+        } else {
+            if (identity != null) {
+                tracker.track(identity, container);
+            }
+            String provider = store.getContext().unwrap().getId();
+            if (provider.equals("transient") || provider.equals("openstack-swift")) {
+                objectCount = store.countBlobs(container);
+            }
         }
 
         return Response.status(Response.Status.NO_CONTENT).entity("")
                 .header("X-Container-Object-Count", objectCount)
-                .header("X-Container-Bytes-Used", 0)  // TODO: bogus value
+                .header("X-Container-Bytes-Used", bytesUsed)
                 .header("X-Versions-Location", "")
                 .header("X-Timestamp", -1)
-                .header("X-Trans-Id", -1)
                 .header("Accept-Ranges", "bytes")
                 .build();
     }
 
-    private String contentType(StorageMetadata meta) {
+    static String contentType(StorageMetadata meta) {
         if (meta instanceof BlobMetadata) {
             String contentType = ((BlobMetadata) meta).getContentMetadata().getContentType();
             if (contentType != null && !contentType.isEmpty()) {
@@ -183,6 +244,20 @@ public final class ContainerResource extends BlobStoreResource {
                                   @HeaderParam("X-Newest") @DefaultValue("false") boolean newest,
                                   @HeaderParam("Accept") Optional<String> accept) {
         BlobStore store = getBlobStore(authToken).get(container);
+        boolean isTransient = store.getContext().unwrap().getId().equals("transient");
+        long listingLimit = limit == null ? InfoResource.CONFIG.swift.container_listing_limit : limit;
+        String identity = ((BounceResourceConfig) application).getIdentity(authToken);
+        Iterator<ListingIndex.Entry> indexed = path != null || identity == null ? null :
+                ((BounceResourceConfig) application).getListingIndex().list(identity, container,
+                        Strings.emptyToNull(marker), Strings.emptyToNull(endMarker),
+                        Strings.emptyToNull(prefixParam), Strings.emptyToNull(delimiterParam), listingLimit);
+        if (indexed != null) {
+            // a fresh index implies the container existed when it was last reconciled
+            return listingResponse(identity, container, Iterators.peekingIterator(Iterators.transform(indexed,
+                    e -> new ObjectEntry(isTransient ? urlDecode(e.name) : e.name, e.etag, e.size,
+                            e.contentType, new Date(e.lastModified)))), format, accept);
+        }
+
         if (!store.containerExists(container)) {
             return Response.status(Response.Status.NOT_FOUND).build();
         }
@@ -214,60 +289,54 @@ public final class ContainerResource extends BlobStoreResource {
         }
 
         logger.info("list: {} marker={} prefix={}", options, options.getMarker(), prefixParam);
-        List<ObjectEntry> entries = StreamSupport.stream(
-                Utils.crawlBlobStore(store, container, options).spliterator(), false)
+        boolean encoded = ((BounceResourceConfig) application).isEncoded(container);
+        // entries are pulled from the backend as the response is written
+        PeekingIterator<ObjectEntry> entries = Iterators.peekingIterator(StreamSupport.stream(
+                ((BounceResourceConfig) application).crawlBlobStore(store, container, options, listingLimit,
+                        Strings.emptyToNull(endMarker)).spliterator(), false)
                 .peek(meta -> logger.debug("meta: {}", meta))
-                //.filter(meta -> (prefix == null || meta.getName().startsWith(prefix)))
-                //.filter(meta -> delimFilter(meta.getName(), delim_filter))
-                .filter(meta -> endMarker == null || meta.getName().compareTo(endMarker) < 0)
-                .limit(limit == null ? InfoResource.CONFIG.swift.container_listing_limit : limit)
-                .map(meta -> new ObjectEntry(meta.getName(), meta.getETag(),
-                        meta.getSize() == null ? 0 : meta.getSize(),
+                .map(meta -> ObjectResource.detailedMetadata(store, container, meta, encoded))
+                .map(meta -> new ObjectEntry(isTransient ? urlDecode(meta.getName()) : meta.getName(),
+                        ObjectResource.logicalETag(meta), ObjectResource.logicalSize(meta),
                         contentType(meta), meta.getLastModified()))
-                .collect(Collectors.toList());
+                .iterator());
+        return listingResponse(identity, container, entries, format, accept);
+    }
 
+    private Response listingResponse(String identity, String container, PeekingIterator<ObjectEntry> entries,
+                                     Optional<String> format, Optional<String> accept) {
         MediaType formatType;
         if (format.isPresent()) {
             formatType = BounceResourceConfig.getMediaType(format.get());
-        } else if (accept.isPresent()) {
+        } else if (accept.isPresent() && !MediaType.valueOf(accept.get()).isWildcardType()) {
             formatType = MediaType.valueOf(accept.get());
         } else {
             formatType = MediaType.TEXT_PLAIN_TYPE;
         }
 
-        if (store.getContext().unwrap().getId().equals("transient")) {
-            entries.forEach(entry -> {
-                try {
-                    entry.name = URLDecoder.decode(entry.name, "UTF-8");
-                } catch (UnsupportedEncodingException e) {
-                    throw propagate(e);
-                }
-            });
+        Response.ResponseBuilder builder;
+        if (formatType == MediaType.TEXT_PLAIN_TYPE && !entries.hasNext()) {
+            builder = Response.noContent();
+        } else {
+            builder = Response.ok(new ObjectListingOutput(container, entries, formatType), formatType);
         }
-
-        // XXX semi-bogus value
-        long totalBytes = entries.stream().mapToLong(e -> e.bytes).sum();
-
-        ContainerRoot root = new ContainerRoot();
-        root.name = container;
-        root.object = entries;
-        return output(root, entries, formatType)
-                .header("X-Container-Object-Count", entries.size())
-                .header("X-Container-Bytes-Used", totalBytes)
+        UsageTracker.Usage usage = identity == null ? null :
+                ((BounceResourceConfig) application).getUsageTracker().getContainerUsage(identity, container);
+        // without counters the listing is not known in full until it has been sent
+        return builder
+                .header("X-Container-Object-Count", usage == null ? -1 : usage.getObjectCount())
+                .header("X-Container-Bytes-Used", usage == null ? -1 : usage.getBytesUsed())
                 .header("X-Timestamp", -1)
-                .header("X-Trans-Id", -1)
                 .header("Accept-Ranges", "bytes")
                 .build();
-
     }
 
-    @XmlRootElement(name = "container")
-    @XmlType
-    static class ContainerRoot {
-        @XmlElement
-        List<ObjectEntry> object;
-        @XmlAttribute
-        private String name;
+    private static String urlDecode(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw propagate(e);
+        }
     }
 
     @XmlRootElement(name = "object")
@@ -0,0 +1,600 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Throwables.propagate;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+import com.bouncestorage.swiftproxy.SwiftProxy;
+import com.bouncestorage.swiftproxy.Utils;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves container listings without asking the backend.  Each indexed
+ * container has a sorted segment file, memory-mapped and binary searched in
+ * place, and an in-memory delta of the writes made through the proxy since
+ * the segment was written; listings merge the two.  The delta is folded
+ * into a new segment once it grows past a threshold, and the segment is
+ * rebuilt from a crawl of the backend periodically, which picks up changes
+ * made behind the proxy's back.  An index that has not been reconciled
+ * within the staleness bound is not used, and such listings go to the
+ * backend as before.
+ */
+public final class ListingIndex {
+    private static final int MAGIC = 0x53504c49;
+    private static final int VERSION = 1;
+    // magic, version, reconciled-at, then the clean flag
+    private static final int CLEAN_OFFSET = 16;
+    private static final int HEADER_SIZE = CLEAN_OFFSET + 1;
+    private static final int TRAILER_SIZE = 8;
+    private static final String SUFFIX = ".idx";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Set<String> containers;
+    private final Path directory;
+    private final long maxStaleness;
+    private final int compactThreshold;
+    private final Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver;
+    private final Predicate<String> encoded;
+    private final ScheduledExecutorService maintenance;
+    // lists pages ahead of the single reconcile running at a time
+    private final ExecutorService lister;
+    private final int prefetchPages;
+    private final Map<String, Index> indexes = new ConcurrentHashMap<>();
+
+    public ListingIndex(Properties properties,
+                        Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver,
+                        Predicate<String> encoded) {
+        this.resolver = requireNonNull(resolver);
+        this.encoded = requireNonNull(encoded);
+        containers = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(
+                properties.getProperty(SwiftProxy.PROPERTY_LISTING_INDEX_CONTAINERS, "")));
+        maxStaleness = TimeUnit.SECONDS.toMillis(Long.parseLong(
+                properties.getProperty(SwiftProxy.PROPERTY_LISTING_INDEX_MAX_STALENESS, "300")));
+        compactThreshold = Integer.parseInt(
+                properties.getProperty(SwiftProxy.PROPERTY_LISTING_INDEX_COMPACT_THRESHOLD, "10000"));
+        maintenance = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("listing-index-%d").setDaemon(true).build());
+        lister = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("listing-index-list-%d").setDaemon(true).build());
+        prefetchPages = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_CRAWL_PREFETCH, "2"));
+
+        if (containers.isEmpty()) {
+            directory = null;
+            return;
+        }
+        try {
+            String dir = properties.getProperty(SwiftProxy.PROPERTY_LISTING_INDEX_DIR);
+            directory = dir == null ? Files.createTempDirectory("swiftproxy-listing-") : Paths.get(dir);
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+        // reconcile often enough that an index never goes stale while the backend is reachable
+        long period = Math.max(1, maxStaleness / 2);
+        maintenance.scheduleWithFixedDelay(this::reconcileAll, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isIndexed(String container) {
+        return containers.contains("*") || containers.contains(container);
+    }
+
+    /** Records an object that was just written through the proxy. */
+    void put(String identity, String container, StorageMetadata meta) {
+        update(identity, container, Entry.of(meta, System.nanoTime()));
+    }
+
+    /** Records an object that was just deleted through the proxy. */
+    void remove(String identity, String container, String name) {
+        update(identity, container, new Entry(name, null, 0, 0, null, System.nanoTime()));
+    }
+
+    private void update(String identity, String container, Entry entry) {
+        if (!isIndexed(container)) {
+            return;
+        }
+        Index index = index(identity, container);
+        index.delta.put(entry.name, entry);
+        if (index.delta.size() > compactThreshold && index.compactQueued.compareAndSet(false, true)) {
+            maintenance.execute(() -> compact(index, false));
+        }
+    }
+
+    /** Forgets the index of a container that was deleted. */
+    void drop(String identity, String container) {
+        if (!isIndexed(container)) {
+            return;
+        }
+        Index index = indexes.remove(key(identity, container));
+        Path path = index == null ? path(identity, container) : index.path;
+        if (index != null) {
+            synchronized (index) {
+                index.dropped = true;
+            }
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("failed to delete listing index {}", path, e);
+        }
+    }
+
+    /**
+     * Lists a container from its index, or returns null if the container is
+     * not indexed or its index is stale, in which case the caller has to ask
+     * the backend.  Entries are returned in order, starting after
+     * {@code marker} and stopping before {@code endMarker}.  Names that the
+     * delimiter rolls up are skipped in one seek, and the rolled up
+     * subdirectories are left out, as in backend listings.
+     */
+    @Nullable
+    Iterator<Entry> list(String identity, String container, @Nullable String marker,
+                         @Nullable String endMarker, @Nullable String prefix, @Nullable String delimiter,
+                         long limit) {
+        if (!isIndexed(container)) {
+            return null;
+        }
+        Index index = index(identity, container);
+        Segment segment = index.segment;
+        if (!isFresh(segment)) {
+            return null;
+        }
+
+        String start = Strings.nullToEmpty(prefix);
+        Merger merger = new Merger(segment, index.delta);
+        if (marker != null && marker.compareTo(start) >= 0) {
+            merger.seek(marker, false);
+        } else {
+            merger.seek(start, true);
+        }
+        return new AbstractIterator<Entry>() {
+            private long remaining = limit;
+
+            @Override
+            protected Entry computeNext() {
+                while (remaining > 0) {
+                    Entry entry = merger.next();
+                    if (entry == null || !entry.name.startsWith(start) ||
+                            (endMarker != null && entry.name.compareTo(endMarker) >= 0)) {
+                        break;
+                    }
+                    if (delimiter != null) {
+                        int i = entry.name.indexOf(delimiter, start.length());
+                        if (i >= 0) {
+                            merger.seek(entry.name.substring(0, i + delimiter.length()) + Character.MAX_VALUE,
+                                    false);
+                            continue;
+                        }
+                    }
+                    remaining--;
+                    return entry;
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    public Map<String, Object> getStats() {
+        int deltaEntries = 0;
+        int stale = 0;
+        for (Index index : indexes.values()) {
+            deltaEntries += index.delta.size();
+            if (!isFresh(index.segment)) {
+                stale++;
+            }
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("indexes", indexes.size());
+        stats.put("stale_indexes", stale);
+        stats.put("delta_entries", deltaEntries);
+        return stats;
+    }
+
+    /** Stops maintenance and folds every delta into its segment, so that the indexes are reused on restart. */
+    public void shutdown() {
+        maintenance.shutdownNow();
+        lister.shutdownNow();
+        try {
+            maintenance.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        indexes.values().forEach(index -> compact(index, true));
+    }
+
+    private boolean isFresh(Segment segment) {
+        return segment.reconciledAt > 0 && System.currentTimeMillis() - segment.reconciledAt <= maxStaleness;
+    }
+
+    private static String key(String identity, String container) {
+        return identity + "/" + container;
+    }
+
+    private Path path(String identity, String container) {
+        return directory.resolve(Hashing.sha1().hashString(key(identity, container), StandardCharsets.UTF_8)
+                + SUFFIX);
+    }
+
+    private Index index(String identity, String container) {
+        return indexes.computeIfAbsent(key(identity, container), k -> open(identity, container));
+    }
+
+    private Index open(String identity, String container) {
+        Index index = new Index(identity, container, path(identity, container));
+        if (Files.exists(index.path)) {
+            try {
+                Segment segment = Segment.open(index.path);
+                if (segment.clean) {
+                    // from here on the index only changes in memory until it is written again
+                    Segment.markDirty(index.path);
+                    index.segment = segment;
+                } else {
+                    logger.info("listing index of {} was not shut down cleanly", key(identity, container));
+                }
+            } catch (IOException e) {
+                logger.warn("ignoring unreadable listing index {}", index.path, e);
+            }
+        }
+        if (!isFresh(index.segment)) {
+            maintenance.execute(() -> reconcile(index));
+        }
+        return index;
+    }
+
+    private void reconcileAll() {
+        long due = System.currentTimeMillis() - maxStaleness / 2;
+        for (Index index : indexes.values()) {
+            if (index.segment.reconciledAt <= due) {
+                reconcile(index);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a segment from the backend.  Writes recorded before the crawl
+     * started are reflected by it and leave the delta, later ones stay.
+     */
+    private void reconcile(Index index) {
+        BounceResourceConfig.AuthenticatedBlobStore blobStore = resolver.apply(index.identity);
+        if (blobStore == null) {
+            logger.debug("cannot reconcile listing index of {}/{} without credentials",
+                    index.identity, index.container);
+            return;
+        }
+        BlobStore store = blobStore.get(index.container);
+        synchronized (index) {
+            if (index.dropped) {
+                return;
+            }
+            long started = System.currentTimeMillis();
+            long startedNanos = System.nanoTime();
+            try {
+                if (!store.containerExists(index.container)) {
+                    drop(index.identity, index.container);
+                    return;
+                }
+                boolean isEncoded = encoded.test(index.container);
+                Segment.write(index.path, Iterators.transform(Utils.crawlBlobStore(store, index.container,
+                        new ListContainerOptions().recursive(), Long.MAX_VALUE, null, lister, prefetchPages)
+                        .iterator(), meta -> Entry.of(ObjectResource.detailedMetadata(store, index.container, meta,
+                        isEncoded), 0)), started, false);
+                index.segment = Segment.open(index.path);
+                for (Entry entry : index.delta.values()) {
+                    if (entry.updated - startedNanos < 0) {
+                        index.delta.remove(entry.name, entry);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("failed to reconcile listing index of {}/{}", index.identity, index.container, e);
+            }
+        }
+    }
+
+    private void compact(Index index, boolean clean) {
+        synchronized (index) {
+            index.compactQueued.set(false);
+            if (index.dropped) {
+                return;
+            }
+            NavigableMap<String, Entry> snapshot = new TreeMap<>(index.delta);
+            Merger merger = new Merger(index.segment, snapshot);
+            merger.seek("", true);
+            try {
+                Segment.write(index.path, merger.iterator(), index.segment.reconciledAt, clean);
+                index.segment = Segment.open(index.path);
+                snapshot.forEach(index.delta::remove);
+            } catch (IOException e) {
+                logger.warn("failed to compact listing index of {}/{}", index.identity, index.container, e);
+            }
+        }
+    }
+
+    /** An object in a listing, or a deleted one if its content type is null. */
+    static final class Entry {
+        final String name;
+        final String etag;
+        final long size;
+        final long lastModified;
+        final String contentType;
+        // when the entry was written to the delta, by System.nanoTime
+        final long updated;
+
+        Entry(String name, String etag, long size, long lastModified, String contentType, long updated) {
+            this.name = requireNonNull(name);
+            this.etag = Strings.nullToEmpty(etag);
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.updated = updated;
+        }
+
+        static Entry of(StorageMetadata meta, long updated) {
+            return new Entry(meta.getName(), ObjectResource.logicalETag(meta), ObjectResource.logicalSize(meta),
+                    meta.getLastModified() == null ? 0 : meta.getLastModified().getTime(),
+                    ContainerResource.contentType(meta), updated);
+        }
+
+        boolean isDeleted() {
+            return contentType == null;
+        }
+    }
+
+    private static final class Index {
+        final String identity;
+        final String container;
+        final Path path;
+        final ConcurrentSkipListMap<String, Entry> delta = new ConcurrentSkipListMap<>();
+        final AtomicBoolean compactQueued = new AtomicBoolean();
+        volatile Segment segment = Segment.EMPTY;
+        // guarded by this
+        boolean dropped;
+
+        Index(String identity, String container, Path path) {
+            this.identity = requireNonNull(identity);
+            this.container = requireNonNull(container);
+            this.path = requireNonNull(path);
+        }
+    }
+
+    /**
+     * A sorted, immutable run of entries: a header, the entries, a table of
+     * their offsets and a trailer holding the entry count and the offset of
+     * the table.
+     */
+    private static final class Segment {
+        static final Segment EMPTY = new Segment(null, 0, 0, 0, false);
+
+        private final ByteBuffer buffer;
+        private final int count;
+        private final int table;
+        final long reconciledAt;
+        final boolean clean;
+
+        private Segment(ByteBuffer buffer, int count, int table, long reconciledAt, boolean clean) {
+            this.buffer = buffer;
+            this.count = count;
+            this.table = table;
+            this.reconciledAt = reconciledAt;
+            this.clean = clean;
+        }
+
+        static Segment open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.limit() < HEADER_SIZE + TRAILER_SIZE || buffer.getInt(0) != MAGIC ||
+                        buffer.getInt(4) != VERSION) {
+                    throw new IOException("not a listing index: " + path);
+                }
+                return new Segment(buffer, buffer.getInt(buffer.limit() - 8), buffer.getInt(buffer.limit() - 4),
+                        buffer.getLong(8), buffer.get(CLEAN_OFFSET) == 1);
+            }
+        }
+
+        static void markDirty(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[] {0}), CLEAN_OFFSET);
+            }
+        }
+
+        static void write(Path path, Iterator<Entry> entries, long reconciledAt, boolean clean)
+                throws IOException {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Path offsets = path.resolveSibling(path.getFileName() + ".offsets");
+            int count = 0;
+            long position = HEADER_SIZE;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                         Files.newOutputStream(tmp)));
+                 DataOutputStream table = new DataOutputStream(new BufferedOutputStream(
+                         Files.newOutputStream(offsets)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(reconciledAt);
+                out.writeByte(clean ? 1 : 0);
+                while (entries.hasNext()) {
+                    Entry entry = entries.next();
+                    if (entry.isDeleted()) {
+                        continue;
+                    }
+                    table.writeInt((int) position);
+                    position += writeString(out, entry.name) + writeString(out, entry.etag);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    position += 16 + writeString(out, entry.contentType);
+                    count++;
+                }
+            }
+            try {
+                if (position + 4L * count + TRAILER_SIZE > Integer.MAX_VALUE) {
+                    throw new IOException("listing index too large: " + path);
+                }
+                try (OutputStream os = Files.newOutputStream(tmp, StandardOpenOption.APPEND);
+                     DataOutputStream out = new DataOutputStream(os)) {
+                    Files.copy(offsets, out);
+                    out.writeInt(count);
+                    out.writeInt((int) position);
+                }
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(offsets);
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        private static int writeString(DataOutputStream out, String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            return 4 + bytes.length;
+        }
+
+        int size() {
+            return count;
+        }
+
+        /** Returns the index of the first entry after {@code key}, or at it if inclusive. */
+        int ceiling(String key, boolean inclusive) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = nameAt(mid).compareTo(key);
+                if (c < 0 || (c == 0 && !inclusive)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        String nameAt(int i) {
+            ByteBuffer in = buffer.duplicate();
+            in.position(buffer.getInt(table + 4 * i));
+            return readString(in);
+        }
+
+        Entry entryAt(int i) {
+            ByteBuffer in = buffer.duplicate();
+            in.position(buffer.getInt(table + 4 * i));
+            String name = readString(in);
+            String etag = readString(in);
+            long size = in.getLong();
+            long lastModified = in.getLong();
+            return new Entry(name, etag, size, lastModified, readString(in), 0);
+        }
+
+        private static String readString(ByteBuffer in) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Walks a segment and a delta in name order, the delta taking precedence. */
+    private static final class Merger {
+        private final Segment segment;
+        private final NavigableMap<String, Entry> delta;
+        private int next;
+        private PeekingIterator<Entry> pending;
+
+        Merger(Segment segment, NavigableMap<String, Entry> delta) {
+            this.segment = segment;
+            this.delta = delta;
+        }
+
+        void seek(String key, boolean inclusive) {
+            next = segment.ceiling(key, inclusive);
+            pending = Iterators.peekingIterator(delta.tailMap(key, inclusive).values().iterator());
+        }
+
+        /** Returns the next live entry, or null at the end. */
+        Entry next() {
+            while (true) {
+                String name = next < segment.size() ? segment.nameAt(next) : null;
+                Entry entry;
+                if (pending.hasNext() && (name == null || pending.peek().name.compareTo(name) <= 0)) {
+                    entry = pending.next();
+                    if (entry.name.equals(name)) {
+                        next++;
+                    }
+                } else if (name != null) {
+                    entry = segment.entryAt(next++);
+                } else {
+                    return null;
+                }
+                if (!entry.isDeleted()) {
+                    return entry;
+                }
+            }
+        }
+
+        Iterator<Entry> iterator() {
+            return new AbstractIterator<Entry>() {
+                @Override
+                protected Entry computeNext() {
+                    Entry entry = Merger.this.next();
+                    return entry == null ? endOfData() : entry;
+                }
+            };
+        }
+    }
+}
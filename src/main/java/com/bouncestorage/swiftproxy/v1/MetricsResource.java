@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy.v1;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Context;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+
+/**
+ * Serves the proxy's metrics for Prometheus to scrape.  Like
+ * {@code /info}, this does not require a token.
+ */
+@Path("/metrics")
+public final class MetricsResource {
+    @Context
+    private Application application;
+
+    @GET
+    @Produces("text/plain; version=0.0.4")
+    public String getMetrics() {
+        return ((BounceResourceConfig) application).getMetrics().render();
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Throwables.propagate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.ws.rs.BadRequestException;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+import com.bouncestorage.swiftproxy.SwiftProxy;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes objects once their X-Delete-At time has passed.  Deadlines are
+ * kept in memory, both by object, so that GET and HEAD of an expired object
+ * are answered without asking the backend, and in buckets covering a fixed
+ * span of time, so that the reaper only visits the buckets that are due and
+ * deletes their objects in batches.  Each bucket is persisted as an
+ * append-only file of changes, which is removed once the bucket is reaped.
+ */
+public final class ObjectExpirer {
+    public static final String DELETE_AT_HEADER = "X-Delete-At";
+    private static final String BUCKET_SUFFIX = ".bucket";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Path directory;
+    private final long bucketSeconds;
+    private final Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver;
+    private final BlobDeleter deleter;
+    private final ScheduledExecutorService reaper;
+    private final AtomicLong nextSequence = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final Map<Key, Long> deadlines = new ConcurrentHashMap<>();
+    // guarded by this
+    private final NavigableMap<Long, Set<Key>> buckets = new TreeMap<>();
+
+    public ObjectExpirer(Properties properties, BlobDeleter deleter,
+                         Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver) {
+        this.deleter = requireNonNull(deleter);
+        this.resolver = requireNonNull(resolver);
+        String dir = properties.getProperty(SwiftProxy.PROPERTY_EXPIRY_DIR);
+        directory = dir == null ? null : Paths.get(dir);
+        bucketSeconds = Long.parseLong(properties.getProperty(SwiftProxy.PROPERTY_EXPIRY_BUCKET_SECONDS, "60"));
+        reaper = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("object-expirer-%d").setDaemon(true).build());
+
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+                recover();
+            } catch (IOException e) {
+                throw propagate(e);
+            }
+        }
+        reaper.scheduleWithFixedDelay(this::reap, bucketSeconds, bucketSeconds, TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+        reaper.shutdownNow();
+    }
+
+    /**
+     * Returns the deadline requested by the X-Delete-At or X-Delete-After
+     * headers, in seconds since the epoch, or 0 if there is none.
+     */
+    static long deadline(long deleteAt, long deleteAfter) {
+        long now = now();
+        if (deleteAfter < 0) {
+            throw new BadRequestException("X-Delete-After must not be negative");
+        } else if (deleteAfter > 0) {
+            return now + deleteAfter;
+        }
+        if (deleteAt != 0 && deleteAt <= now) {
+            throw new BadRequestException("X-Delete-At in past");
+        }
+        return deleteAt;
+    }
+
+    private static long now() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+
+    /** Records the deadline of an object that was just written, or forgets it if deleteAt is 0. */
+    void set(String identity, String container, String object, long deleteAt) {
+        Key key = new Key(identity, container, object);
+        if (deleteAt == 0) {
+            cancel(key);
+            return;
+        }
+        synchronized (this) {
+            Long previous = deadlines.put(key, deleteAt);
+            if (previous != null && previous != deleteAt) {
+                unlink(key, previous);
+            }
+            buckets.computeIfAbsent(bucket(deleteAt), b -> new HashSet<>()).add(key);
+            append(Change.ADD, key, deleteAt);
+        }
+    }
+
+    /** Forgets the deadline of an object that was deleted or overwritten. */
+    void remove(String identity, String container, String object) {
+        cancel(new Key(identity, container, object));
+    }
+
+    /** Forgets the deadlines of the objects of a container that was deleted. */
+    void removeContainer(String identity, String container) {
+        deadlines.keySet().stream()
+                .filter(k -> k.identity.equals(identity) && k.container.equals(container))
+                .collect(Collectors.toList())
+                .forEach(this::cancel);
+    }
+
+    private void cancel(Key key) {
+        if (!deadlines.containsKey(key)) {
+            return;
+        }
+        synchronized (this) {
+            Long previous = deadlines.remove(key);
+            if (previous != null) {
+                unlink(key, previous);
+            }
+        }
+    }
+
+    // must hold the lock
+    private void unlink(Key key, long deleteAt) {
+        Set<Key> keys = buckets.get(bucket(deleteAt));
+        if (keys != null) {
+            keys.remove(key);
+        }
+        append(Change.CANCEL, key, deleteAt);
+    }
+
+    /** Returns the deadline of an object, or null if it does not expire. */
+    Long getDeleteAt(String identity, String container, String object) {
+        return identity == null ? null : deadlines.get(new Key(identity, container, object));
+    }
+
+    boolean isExpired(String identity, String container, String object) {
+        Long deleteAt = getDeleteAt(identity, container, object);
+        return deleteAt != null && deleteAt <= now();
+    }
+
+    public int getPendingCount() {
+        return deadlines.size();
+    }
+
+    private long bucket(long deleteAt) {
+        return deleteAt - deleteAt % bucketSeconds;
+    }
+
+    /**
+     * Reaps every bucket that is due.  Objects that cannot be deleted yet,
+     * because of a backend error or because their identity has no
+     * credentials until it authenticates again, are left in their bucket
+     * and retried on the next tick without holding up the other buckets.
+     */
+    private void reap() {
+        long now = now();
+        List<Long> due;
+        synchronized (this) {
+            due = new ArrayList<>(buckets.headMap(now - bucketSeconds, true).keySet());
+        }
+        for (long bucket : due) {
+            List<Key> keys;
+            synchronized (this) {
+                Set<Key> pending = buckets.get(bucket);
+                if (pending == null) {
+                    continue;
+                }
+                keys = new ArrayList<>(pending);
+            }
+            try {
+                reap(keys);
+            } catch (RuntimeException e) {
+                logger.error("failed to reap expired objects", e);
+                continue;
+            }
+            synchronized (this) {
+                Set<Key> pending = buckets.get(bucket);
+                if (pending != null && pending.isEmpty()) {
+                    buckets.remove(bucket);
+                    deleteBucketFile(bucket);
+                }
+            }
+        }
+    }
+
+    /** Deletes the objects of a due bucket, leaving the ones that have to be retried in it. */
+    private void reap(List<Key> keys) {
+        // group by identity and container so that deletes are batched
+        keys.sort(Comparator.comparing((Key k) -> k.identity).thenComparing(k -> k.container)
+                .thenComparing(k -> k.object));
+        Map<String, List<Key>> byIdentity = new HashMap<>();
+        keys.forEach(k -> byIdentity.computeIfAbsent(k.identity, i -> new ArrayList<>()).add(k));
+
+        for (Map.Entry<String, List<Key>> entry : byIdentity.entrySet()) {
+            String identity = entry.getKey();
+            BounceResourceConfig.AuthenticatedBlobStore blobStores = resolver.apply(identity);
+            if (blobStores == null) {
+                logger.debug("deferring {} expired objects of {} until it authenticates",
+                        entry.getValue().size(), identity);
+                continue;
+            }
+            Map<String, List<Key>> byContainer = new TreeMap<>();
+            entry.getValue().forEach(k -> byContainer.computeIfAbsent(k.container, c -> new ArrayList<>()).add(k));
+            for (Map.Entry<String, List<Key>> container : byContainer.entrySet()) {
+                reap(identity, blobStores.get(container.getKey()), container.getKey(), container.getValue());
+            }
+        }
+    }
+
+    private void reap(String identity, BlobStore blobStore, String container, List<Key> keys) {
+        AccountResource.BulkDeleteResult result = new AccountResource.BulkDeleteResult();
+        // the deadline may have moved or gone since the bucket was read, so
+        // it is checked again right before each object is deleted
+        BlobDeleter.Deletion deletion = deleter.newDeletion(blobStore, identity, result,
+                (c, object) -> isExpired(identity, c, object));
+        for (Key key : keys) {
+            deletion.delete(container, key.object);
+        }
+        deletion.await();
+        if (result.hasErrors()) {
+            logger.warn("failed to delete {} expired objects from {}", result.errors.size(), container);
+            return;
+        }
+        // objects that were found are forgotten as they are deleted, the
+        // missing ones are forgotten here
+        for (Key key : keys) {
+            Long deleteAt = deadlines.get(key);
+            if (deleteAt != null && deleteAt <= now()) {
+                synchronized (this) {
+                    if (deadlines.remove(key, deleteAt)) {
+                        unlink(key, deleteAt);
+                    }
+                }
+            }
+        }
+    }
+
+    private Path bucketPath(long bucket) {
+        return directory.resolve(bucket + BUCKET_SUFFIX);
+    }
+
+    // must hold the lock
+    private void append(Change change, Key key, long deleteAt) {
+        if (directory == null) {
+            return;
+        }
+        Record record = new Record();
+        record.sequence = nextSequence.incrementAndGet();
+        record.change = change;
+        record.identity = key.identity;
+        record.container = key.container;
+        record.object = key.object;
+        record.deleteAt = deleteAt;
+        try {
+            byte[] line = (MAPPER.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+            Files.write(bucketPath(bucket(deleteAt)), line, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    private void deleteBucketFile(long bucket) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(bucketPath(bucket));
+        } catch (IOException e) {
+            logger.warn("failed to delete expiry bucket {}", bucket, e);
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + BUCKET_SUFFIX)) {
+            for (Path path : files) {
+                try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        try {
+                            records.add(MAPPER.readValue(line, Record.class));
+                        } catch (IOException e) {
+                            // a torn write at the end of the file
+                            logger.warn("skipping corrupt expiry record in {}", path);
+                        }
+                    }
+                }
+            }
+        }
+
+        // changes to one object can span buckets, so replay them in order
+        records.sort(Comparator.comparingLong(r -> r.sequence));
+        for (Record record : records) {
+            Key key = new Key(record.identity, record.container, record.object);
+            if (record.change == Change.ADD) {
+                deadlines.put(key, record.deleteAt);
+            } else {
+                deadlines.remove(key, record.deleteAt);
+            }
+            nextSequence.accumulateAndGet(record.sequence, Math::max);
+        }
+        deadlines.forEach((key, deleteAt) ->
+                buckets.computeIfAbsent(bucket(deleteAt), b -> new HashSet<>()).add(key));
+        logger.info("recovered {} object deadlines", deadlines.size());
+    }
+
+    enum Change {
+        ADD, CANCEL
+    }
+
+    static final class Record {
+        @JsonProperty
+        long sequence;
+        @JsonProperty
+        Change change;
+        @JsonProperty
+        String identity;
+        @JsonProperty
+        String container;
+        @JsonProperty
+        String object;
+        @JsonProperty("delete_at")
+        long deleteAt;
+    }
+
+    private static final class Key {
+        private final String identity;
+        private final String container;
+        private final String object;
+
+        Key(String identity, String container, String object) {
+            this.identity = requireNonNull(identity);
+            this.container = requireNonNull(container);
+            this.object = requireNonNull(object);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) other;
+            return identity.equals(that.identity) && container.equals(that.container) &&
+                    object.equals(that.object);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(identity, container, object);
+        }
+    }
+}
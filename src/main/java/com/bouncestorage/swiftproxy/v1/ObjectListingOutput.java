@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.AnnotationIntrospector;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
+
+/**
+ * Writes a container listing as it is read from the backend, one entry at
+ * a time, so that memory use does not depend on the number of entries and
+ * the first bytes go out before the listing is complete.  The JSON and XML
+ * encodings match what Jersey produces for a collected listing.
+ */
+final class ObjectListingOutput implements StreamingOutput {
+    // the same introspection as the Jackson provider registered with Jersey
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .setAnnotationIntrospector(AnnotationIntrospector.pair(new JacksonAnnotationIntrospector(),
+                    new JaxbAnnotationIntrospector(TypeFactory.defaultInstance())))
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    private static final JAXBContext JAXB_CONTEXT;
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    static {
+        try {
+            JAXB_CONTEXT = JAXBContext.newInstance(ContainerResource.ObjectEntry.class);
+        } catch (JAXBException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String container;
+    private final Iterator<ContainerResource.ObjectEntry> entries;
+    private final MediaType format;
+
+    ObjectListingOutput(String container, Iterator<ContainerResource.ObjectEntry> entries, MediaType format) {
+        this.container = requireNonNull(container);
+        this.entries = requireNonNull(entries);
+        this.format = requireNonNull(format);
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException, WebApplicationException {
+        if (format.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+            writeJson(out);
+        } else if (format.isCompatible(MediaType.APPLICATION_XML_TYPE)) {
+            try {
+                writeXml(out);
+            } catch (JAXBException | XMLStreamException e) {
+                throw new IOException(e);
+            }
+        } else {
+            while (entries.hasNext()) {
+                out.write(entries.next().name.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        }
+    }
+
+    private void writeJson(OutputStream out) throws IOException {
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(out)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+            generator.writeStartArray();
+            while (entries.hasNext()) {
+                MAPPER.writeValue(generator, entries.next());
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private void writeXml(OutputStream out) throws JAXBException, XMLStreamException {
+        Marshaller marshaller = JAXB_CONTEXT.createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+        XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("container");
+        writer.writeAttribute("name", container);
+        while (entries.hasNext()) {
+            marshaller.marshal(entries.next(), writer);
+        }
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+    }
+}
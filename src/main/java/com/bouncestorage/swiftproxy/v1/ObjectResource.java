@@ -25,8 +25,11 @@ import static com.google.common.base.Throwables.propagate;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
@@ -35,6 +38,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -42,8 +46,10 @@ import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.StringTokenizer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import javax.validation.constraints.NotNull;
@@ -66,8 +72,13 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import com.bouncestorage.swiftproxy.BlobStoreResource;
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+import com.bouncestorage.swiftproxy.ChecksumAlgorithm;
+import com.bouncestorage.swiftproxy.ChecksumInputStream;
 import com.bouncestorage.swiftproxy.COPY;
-import com.bouncestorage.swiftproxy.Utils;
+import com.bouncestorage.swiftproxy.DedupStore;
+import com.bouncestorage.swiftproxy.FrameCompression;
+import com.bouncestorage.swiftproxy.WriteBehindJournal;
 import com.bouncestorage.swiftproxy.v1.ContainerResource.ObjectEntry;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -83,6 +94,7 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 
 import org.apache.commons.io.input.TeeInputStream;
 import org.glassfish.grizzly.http.server.Request;
@@ -93,6 +105,7 @@ import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.blobstore.domain.BlobBuilder;
 import org.jclouds.blobstore.domain.BlobMetadata;
 import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
 import org.jclouds.blobstore.options.CopyOptions;
 import org.jclouds.blobstore.options.GetOptions;
 import org.jclouds.blobstore.options.ListContainerOptions;
@@ -105,19 +118,32 @@ import org.jclouds.openstack.swift.v1.reference.SwiftHeaders;
 
 @Path("/v1/{account}/{container}/{object:.*}")
 public final class ObjectResource extends BlobStoreResource {
+    static final String DYNAMIC_OBJECT_MANIFEST = "x-object-manifest";
+    static final String STATIC_OBJECT_MANIFEST = "x-static-large-object";
+    static final String CHECKSUM_METADATA = "x-swiftproxy-checksum";
+    private static final String CHECKSUM_ALGORITHM_HEADER = "X-Object-Checksum-Algorithm";
+    private static final String CHECKSUM_HEADER = "X-Object-Checksum";
     private static final String META_HEADER_PREFIX = "X-Object-Meta-";
-    private static final String DYNAMIC_OBJECT_MANIFEST = "x-object-manifest";
-    private static final String STATIC_OBJECT_MANIFEST = "x-static-large-object";
     private static final Set<String> RESERVED_METADATA = ImmutableSet.of(
             DYNAMIC_OBJECT_MANIFEST,
-            STATIC_OBJECT_MANIFEST
+            STATIC_OBJECT_MANIFEST,
+            SLOMaterializer.MATERIALIZED_METADATA,
+            FrameCompression.COMPRESSION_METADATA,
+            DedupStore.DEDUP_METADATA,
+            CHECKSUM_METADATA
+    );
+    // describe the stored bytes, so they have to follow them on server-side copies
+    private static final Set<String> STORAGE_METADATA = ImmutableSet.of(
+            FrameCompression.COMPRESSION_METADATA,
+            DedupStore.DEDUP_METADATA,
+            CHECKSUM_METADATA
     );
     private static final MediaType MANIFEST_CONTENT_TYPE = MediaType.APPLICATION_JSON_TYPE.withCharset("utf-8");
     private static final Set<String> STD_BLOB_HEADERS = ImmutableSet.of(
             "Content-Range"
     );
 
-    private List<Pair<Long, Long>> parseRange(String range) {
+    List<Pair<Long, Long>> parseRange(String range) {
         range = range.replaceAll(" ", "").toLowerCase();
         String bytesUnit = "bytes=";
         int idx = range.indexOf(bytesUnit);
@@ -144,7 +170,7 @@ public final class ObjectResource extends BlobStoreResource {
         }
     }
 
-    private static GetOptions addRanges(GetOptions options, List<Pair<Long, Long>> ranges) {
+    static GetOptions addRanges(GetOptions options, List<Pair<Long, Long>> ranges) {
         ranges.forEach(rangeSpec -> {
             if (rangeSpec.getFirst() == null) {
                 if (rangeSpec.getSecond() == 0) {
@@ -185,6 +211,10 @@ public final class ObjectResource extends BlobStoreResource {
                               @HeaderParam("If-Modified-Since") Date ifModifiedSince,                              
                               @HeaderParam("If-Unmodified-Since") Date ifUnmodifiedSince) {
         logger.debug("GET account={} container={} object={}", account, container, object);
+        String identity = ((BounceResourceConfig) application).getIdentity(authToken);
+        if (getObjectExpirer().isExpired(identity, container, object)) {
+            return notFound();
+        }
         BlobStore containerStore = getBlobStore(authToken).get(container);
         if (!containerStore.containerExists(container)) {
         	return notFound();
@@ -194,8 +224,12 @@ public final class ObjectResource extends BlobStoreResource {
         	final String inputObject = object;
             ListContainerOptions options = new ListContainerOptions();
             options.withDetails();
-        	StorageMetadata md = StreamSupport.stream(
-                    Utils.crawlBlobStore(containerStore, container, options).spliterator(), false)
+            BounceResourceConfig config = (BounceResourceConfig) application;
+            StorageMetadata md;
+            // ties between equal versions, and between several matching
+            // deltas, resolve to the first in listing order
+            try (Stream<StorageMetadata> metas = config.crawlBlobStore(containerStore, container, options, true)) {
+                md = metas
                     .peek(meta -> logger.info("meta: {}", meta))
                     .filter(meta -> meta.getUserMetadata().containsKey("version"))
                     .filter(meta -> meta.getName().startsWith(inputObject))
@@ -203,11 +237,13 @@ public final class ObjectResource extends BlobStoreResource {
                     		Integer.parseInt(meta1.getUserMetadata().get("version")),
                     		Integer.parseInt(meta2.getUserMetadata().get("version"))
             		)).get();
+            }
         	object = md.getName();
         	if (accept.get().contains("SQLiteDF")) {
         		// check if the delta exists for this version
-            	Optional<StorageMetadata> md2 = StreamSupport.stream(
-                        Utils.crawlBlobStore(containerStore, container, options).spliterator(), false)
+            	Optional<StorageMetadata> md2;
+            	try (Stream<StorageMetadata> metas = config.crawlBlobStore(containerStore, container, options, true)) {
+                    md2 = metas
                         .peek(meta -> logger.info("meta: {}", meta))
                         //.filter(meta -> (prefix == null || meta.getName().startsWith(prefix)))
                         //.filter(meta -> delimFilter(meta.getName(), delim_filter))
@@ -217,6 +253,7 @@ public final class ObjectResource extends BlobStoreResource {
                         		&& meta.getUserMetadata().get("version").equals(md.getUserMetadata().get("version"))
                         		)
                         .findFirst();
+            	}
             	if (md2.isPresent()) {
             		object = md2.get().getName();
             	}            	
@@ -249,10 +286,104 @@ public final class ObjectResource extends BlobStoreResource {
         if (ifUnmodifiedSince != null) {
             options.ifUnmodifiedSince(ifUnmodifiedSince);
         }
-        
 
+        WriteBehindJournal journal = ((BounceResourceConfig) application).getWriteBehindJournal();
+        WriteBehindJournal.Record record = journal.lookup(identity, container, object);
+        if (record != null) {
+            return addDeleteAtHeader(getJournaledObject(journal, record, options, ranges),
+                    identity, container, object);
+        }
+
+        return addDeleteAtHeader(getObject(blobStore, identity, container, object, options, ranges,
+                "get".equals(multiPartManifest)), identity, container, object);
+    }
+
+    private ObjectExpirer getObjectExpirer() {
+        return ((BounceResourceConfig) application).getObjectExpirer();
+    }
 
-        return getObject(blobStore, container, object, options, ranges, "get".equals(multiPartManifest));
+    private Response addDeleteAtHeader(Response response, String identity, String container, String object) {
+        Long deleteAt = getObjectExpirer().getDeleteAt(identity, container, object);
+        if (deleteAt == null || response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            return response;
+        }
+        return Response.fromResponse(response).header(ObjectExpirer.DELETE_AT_HEADER, deleteAt).build();
+    }
+
+    /** Records the deadline of an object once a write of it has succeeded. */
+    private Response recordDeleteAt(Response response, String identity, String container, String object,
+                                    long deleteAt) {
+        if (identity != null && response.getStatus() == Response.Status.CREATED.getStatusCode()) {
+            getObjectExpirer().set(identity, container, object, deleteAt);
+        }
+        return response;
+    }
+
+    /** See {@link ObjectTracker#replaced}. */
+    private BlobMetadata replacedObject(String identity, BlobStore blobStore, String container, String object) {
+        return ((BounceResourceConfig) application).getObjectTracker().replaced(identity, blobStore, container,
+                object);
+    }
+
+    /** Records an object once a write of it has succeeded. */
+    private Response recordObject(Response response, String identity, BlobStore blobStore, String container,
+                                  String object, BlobMetadata replaced) {
+        if (identity != null && response.getStatus() == Response.Status.CREATED.getStatusCode()) {
+            recordObject(identity, blobStore, container, object, blobStore.blobMetadata(container, object),
+                    replaced);
+        }
+        return response;
+    }
+
+    /** Adds a written object to its container's listing index and usage. */
+    private void recordObject(String identity, BlobStore blobStore, String container, String object,
+                              BlobMetadata meta, BlobMetadata replaced) {
+        ((BounceResourceConfig) application).getObjectTracker().written(identity, blobStore, container, object,
+                meta, replaced);
+    }
+
+    private Response getJournaledObject(WriteBehindJournal journal, WriteBehindJournal.Record record,
+                                        GetOptions options, List<Pair<Long, Long>> ranges) {
+        WriteBehindJournal.Header header = record.getHeader();
+        Response cond = conditionalGetSatisified(options, header.etag, new Date(header.timestamp));
+        if (cond != null) {
+            return cond;
+        }
+
+        logger.debug("serving {}/{} from the write-behind journal", header.container, header.object);
+        try {
+            InputStream is = journal.openBody(record);
+            long size = header.length;
+            if (ranges != null) {
+                is = new HttpRangeInputStream(is, header.length, ranges);
+                size = getTotalRangesLength(ranges, size);
+            }
+            return addJournaledObjectHeaders(Response.ok(is), header, size).build();
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    private Response.ResponseBuilder addJournaledObjectHeaders(Response.ResponseBuilder responseBuilder,
+                                                               WriteBehindJournal.Header header, long size) {
+        header.userMetadata.entrySet().stream()
+                .filter(entry -> !RESERVED_METADATA.contains(entry.getKey()))
+                .forEach(entry -> responseBuilder.header(META_HEADER_PREFIX + entry.getKey(), entry.getValue()));
+        addChecksumHeaders(responseBuilder, header.userMetadata);
+        if (header.contentDisposition != null) {
+            responseBuilder.header(HttpHeaders.CONTENT_DISPOSITION, header.contentDisposition);
+        }
+        if (header.contentEncoding != null) {
+            responseBuilder.header(HttpHeaders.CONTENT_ENCODING, header.contentEncoding);
+        }
+        return responseBuilder
+                .header(HttpHeaders.CONTENT_LENGTH, size)
+                .header(HttpHeaders.LAST_MODIFIED, new Date(header.timestamp))
+                .header(HttpHeaders.ETAG, header.etag)
+                .header(STATIC_OBJECT_MANIFEST, false)
+                .header(HttpHeaders.DATE, new Date())
+                .header(HttpHeaders.CONTENT_TYPE, Strings.isNullOrEmpty(header.contentType) ?
+                        MediaType.APPLICATION_OCTET_STREAM : header.contentType);
     }
 
     private Map<String, Object> blobGetStandardHeaders(Blob blob) {
@@ -287,7 +418,7 @@ public final class ObjectResource extends BlobStoreResource {
         return null;
     }
 
-    private Response getObject(BlobStore blobStore, String container, String object,
+    private Response getObject(BlobStore blobStore, String identity, String container, String object,
                                GetOptions options, List<Pair<Long, Long>> ranges, boolean multiPartManifest) {
         Blob blob = null;
         BlobMetadata meta;
@@ -325,11 +456,26 @@ public final class ObjectResource extends BlobStoreResource {
                     }
                 }
 
+                if (meta.getUserMetadata().containsKey(SLOMaterializer.MATERIALIZED_METADATA)) {
+                    Response materialized = getMaterializedSloObject(blobStore, identity, container, object,
+                            meta, options, ranges);
+                    if (materialized != null) {
+                        if (blob != null) {
+                            closePayload(blob);
+                        }
+                        return materialized;
+                    }
+                }
+
                 if (blob == null) {
                     blob = blobStore.getBlob(container, object);
                 }
                 return getSloObject(blobStore, blob, options, ranges);
             }
+        } else if (meta.getUserMetadata().containsKey(DedupStore.DEDUP_METADATA)) {
+            return getDeduplicatedObject(blobStore, container, object, blob, meta, options, ranges);
+        } else if (meta.getUserMetadata().containsKey(FrameCompression.COMPRESSION_METADATA)) {
+            return getCompressedObject(blobStore, container, object, blob, meta, options, ranges);
         } else if (blob == null) {
             // this is just a normal blob
             try {
@@ -408,6 +554,223 @@ public final class ObjectResource extends BlobStoreResource {
         }
     }
 
+    private Response getMaterializedSloObject(BlobStore blobStore, String identity, String container,
+                                              String object, BlobMetadata meta, GetOptions options,
+                                              List<Pair<Long, Long>> ranges) {
+        String sloData = meta.getUserMetadata().get(STATIC_OBJECT_MANIFEST);
+        if (!sloData.equals(meta.getUserMetadata().get(SLOMaterializer.MATERIALIZED_METADATA))) {
+            return null;
+        }
+
+        SLOMaterializer materializer = ((BounceResourceConfig) application).getSLOMaterializer();
+        try {
+            if (!materializer.isCurrent(blobStore, identity, container, object, sloData)) {
+                logger.debug("materialized copy of {}/{} is stale", container, object);
+                return null;
+            }
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+        GetOptions materializedOptions = ranges == null ? GetOptions.NONE : addRanges(new GetOptions(), ranges);
+        Blob blob;
+        try {
+            blob = blobStore.getBlob(materializer.getMaterializedContainer(),
+                    SLOMaterializer.materializedName(container, object), materializedOptions);
+        } catch (ContainerNotFoundException e) {
+            blob = null;
+        } catch (IllegalArgumentException e) {
+            throw requestRangeNotSatisfiable();
+        }
+        if (blob == null) {
+            logger.debug("materialized copy of {}/{} is missing", container, object);
+            return null;
+        }
+
+        String[] data = sloData.split(" ", 2);
+        long size = Long.parseLong(data[0]);
+        if (ranges != null) {
+            size = getTotalRangesLength(ranges, size);
+        }
+        Map<String, Object> overwrites = new HashMap<>(overwriteSizeAndETag(size, data[1]));
+        overwrites.putAll(blobGetStandardHeaders(blob));
+        logger.debug("getting materialized SLO object: {} bytes", size);
+        try {
+            return addObjectHeaders(Response.ok(blob.getPayload().openStream()), meta, Optional.of(overwrites))
+                    .build();
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    private Response getCompressedObject(BlobStore blobStore, String container, String object, Blob blob,
+                                         BlobMetadata meta, GetOptions options, List<Pair<Long, Long>> ranges) {
+        FrameCompression compression = ((BounceResourceConfig) application).getFrameCompression();
+        FrameCompression.Info info = FrameCompression.Info.parse(
+                meta.getUserMetadata().get(FrameCompression.COMPRESSION_METADATA), meta.getETag());
+        if (blob != null && ranges != null) {
+            // the backend applied the range to the compressed bytes
+            closePayload(blob);
+            blob = null;
+        }
+        Response cond = conditionalGetSatisified(options, info.getETag(), meta.getLastModified());
+        if (cond != null) {
+            if (blob != null) {
+                closePayload(blob);
+            }
+            return cond;
+        }
+
+        try {
+            InputStream is;
+            long size = info.getLength();
+            Map<String, Object> overwrites = new HashMap<>();
+            if (ranges != null && ranges.size() == 1) {
+                // only fetch and inflate the frames covering the range
+                Pair<Long, Long> r = resolveRange(ranges, size);
+                is = compression.openRange(blobStore, container, object, info, r.getFirst(), r.getSecond());
+                overwrites.put("Content-Range", "bytes " + r.getFirst() + "-" + r.getSecond() + "/" + size);
+                size = r.getSecond() - r.getFirst() + 1;
+            } else {
+                if (blob == null) {
+                    blob = blobStore.getBlob(container, object);
+                    if (blob == null) {
+                        return notFound();
+                    }
+                }
+                is = compression.decode(blob.getPayload().openStream(), info);
+                if (ranges != null) {
+                    is = new HttpRangeInputStream(is, size, ranges);
+                    size = getTotalRangesLength(ranges, size);
+                }
+            }
+            logger.debug("getting compressed object {}/{}: {} bytes", container, object, size);
+            overwrites.putAll(overwriteSizeAndETag(size, info.getETag()));
+            return addObjectHeaders(Response.ok(is), meta, Optional.of(overwrites)).build();
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    private Response getDeduplicatedObject(BlobStore blobStore, String container, String object, Blob blob,
+                                           BlobMetadata meta, GetOptions options, List<Pair<Long, Long>> ranges) {
+        DedupStore dedup = ((BounceResourceConfig) application).getDedupStore();
+        String dedupData = meta.getUserMetadata().get(DedupStore.DEDUP_METADATA);
+        if (blob != null && ranges != null) {
+            // the backend applied the range to the recipe
+            closePayload(blob);
+            blob = null;
+        }
+        Response cond = conditionalGetSatisified(options, DedupStore.Recipe.parse(dedupData).getETag(),
+                meta.getLastModified());
+        if (cond != null) {
+            if (blob != null) {
+                closePayload(blob);
+            }
+            return cond;
+        }
+
+        if (blob == null) {
+            blob = blobStore.getBlob(container, object);
+            if (blob == null) {
+                return notFound();
+            }
+        }
+        try {
+            DedupStore.Recipe recipe;
+            try (InputStream is = blob.getPayload().openStream()) {
+                recipe = DedupStore.Recipe.parse(dedupData, is);
+            }
+
+            InputStream body;
+            long size = recipe.getLength();
+            Map<String, Object> overwrites = new HashMap<>();
+            if (ranges != null && ranges.size() == 1) {
+                Pair<Long, Long> r = resolveRange(ranges, size);
+                body = dedup.read(blobStore, recipe, r.getFirst(), r.getSecond());
+                overwrites.put("Content-Range", "bytes " + r.getFirst() + "-" + r.getSecond() + "/" + size);
+                size = r.getSecond() - r.getFirst() + 1;
+            } else {
+                body = dedup.read(blobStore, recipe, 0, size - 1);
+                if (ranges != null) {
+                    body = new HttpRangeInputStream(body, size, ranges);
+                    size = getTotalRangesLength(ranges, size);
+                }
+            }
+            logger.debug("getting deduplicated object {}/{}: {} bytes", container, object, size);
+            overwrites.putAll(overwriteSizeAndETag(size, recipe.getETag()));
+            return addObjectHeaders(Response.ok(body), meta, Optional.of(overwrites)).build();
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    /** Returns the first and last byte, inclusive, of a single range. */
+    private Pair<Long, Long> resolveRange(List<Pair<Long, Long>> ranges, long size) {
+        getTotalRangesLength(ranges, size);
+        Pair<Long, Long> r = ranges.get(0);
+        if (r.getFirst() == null) {
+            return new Pair<>(size - r.getSecond(), size - 1);
+        }
+        return new Pair<>(r.getFirst(), r.getSecond() == null ? size - 1 : Math.min(r.getSecond(), size - 1));
+    }
+
+    /**
+     * Returns the size of an object as clients see it, which is not its stored
+     * size if it is compressed or deduplicated.
+     */
+    static long logicalSize(StorageMetadata meta) {
+        String dedupData = meta.getUserMetadata().get(DedupStore.DEDUP_METADATA);
+        if (dedupData != null) {
+            return DedupStore.Recipe.parse(dedupData).getLength();
+        }
+        String compressionInfo = meta.getUserMetadata().get(FrameCompression.COMPRESSION_METADATA);
+        if (compressionInfo != null) {
+            return FrameCompression.Info.parse(compressionInfo, null).getLength();
+        }
+        return meta.getSize() == null ? 0 : meta.getSize();
+    }
+
+    /** Returns the ETag of an object as clients see it. */
+    static String logicalETag(StorageMetadata meta) {
+        String storedETag = storedObjectETag(meta.getUserMetadata());
+        return storedETag != null ? storedETag : meta.getETag();
+    }
+
+    /**
+     * Returns the metadata of a listed object, looking it up in full if the
+     * listing left out the user metadata and the container may keep its
+     * objects encoded, which is where their logical size and ETag are kept.
+     */
+    static StorageMetadata detailedMetadata(BlobStore blobStore, String container, StorageMetadata meta,
+                                            boolean encoded) {
+        if (!encoded || meta.getType() != StorageType.BLOB || !meta.getUserMetadata().isEmpty()) {
+            return meta;
+        }
+        BlobMetadata detailed = blobStore.blobMetadata(container, meta.getName());
+        return detailed != null ? detailed : meta;
+    }
+
+    /** Returns the client-visible ETag of an object stored compressed or deduplicated. */
+    private static String storedObjectETag(Map<String, String> userMetadata) {
+        String dedupData = userMetadata.get(DedupStore.DEDUP_METADATA);
+        if (dedupData != null) {
+            return DedupStore.Recipe.parse(dedupData).getETag();
+        }
+        String compressionInfo = userMetadata.get(FrameCompression.COMPRESSION_METADATA);
+        if (compressionInfo != null) {
+            return FrameCompression.Info.parse(compressionInfo, null).getETag();
+        }
+        return null;
+    }
+
+    private static void closePayload(Blob blob) {
+        try {
+            blob.getPayload().openStream().close();
+        } catch (IOException e) {
+            // ignore, we were going to discard the payload anyway
+        }
+    }
+
     private Response getDloObject(BlobStore blobStore, BlobMetadata meta, GetOptions options, List<Pair<Long, Long>> ranges) {
         String manifest = meta.getUserMetadata().get(DYNAMIC_OBJECT_MANIFEST);
         Pair<String, String> param = validateCopyParam(manifest);
@@ -441,20 +804,24 @@ public final class ObjectResource extends BlobStoreResource {
                 .recursive()
                 .prefix(objectsPrefix);
         logger.debug("dlo prefix: {}", objectsPrefix);
-        Iterable<StorageMetadata> res = Utils.crawlBlobStore(blobStore, container, listOptions);
-
         List<ManifestEntry> segments = new ArrayList<>();
-        for (StorageMetadata sm : res) {
-            if (sm.getName().startsWith(objectsPrefix)) {
-                ManifestEntry entry = new ManifestEntry();
-                entry.container = container;
-                entry.object = sm.getName();
-                entry.size_bytes = sm.getSize();
-                entry.etag = sm.getETag();
-                segments.add(entry);
-            } else {
-                throw new IllegalStateException(
-                        String.format("list object %s from prefix %s", sm.getName(), objectsPrefix));
+        // segments are read back decoded, so they are described by their logical size and ETag
+        boolean encoded = ((BounceResourceConfig) application).isEncoded(container);
+        try (Stream<StorageMetadata> res = ((BounceResourceConfig) application).crawlBlobStore(
+                blobStore, container, listOptions, true)) {
+            for (Iterator<StorageMetadata> it = res.iterator(); it.hasNext();) {
+                StorageMetadata sm = detailedMetadata(blobStore, container, it.next(), encoded);
+                if (sm.getName().startsWith(objectsPrefix)) {
+                    ManifestEntry entry = new ManifestEntry();
+                    entry.container = container;
+                    entry.object = sm.getName();
+                    entry.size_bytes = logicalSize(sm);
+                    entry.etag = logicalETag(sm);
+                    segments.add(entry);
+                } else {
+                    throw new IllegalStateException(
+                            String.format("list object %s from prefix %s", sm.getName(), objectsPrefix));
+                }
             }
         }
 
@@ -471,21 +838,25 @@ public final class ObjectResource extends BlobStoreResource {
     }
 
     private Map<String, String> getUserMetadata(Request request) {
-        return StreamSupport.stream(request.getHeaderNames().spliterator(), false)
+        return getUserMetadata(request.getHeaderNames(), request::getHeader);
+    }
+
+    static Map<String, String> getUserMetadata(Iterable<String> headerNames, Function<String, String> headers) {
+        return StreamSupport.stream(headerNames.spliterator(), false)
                 .filter(name -> name.toLowerCase().startsWith(META_HEADER_PREFIX.toLowerCase()))
                 .filter(name -> {
                     if (name.equalsIgnoreCase(META_HEADER_PREFIX) || RESERVED_METADATA.contains(name)) {
                         throw new BadRequestException();
                     }
                     if (name.length() - META_HEADER_PREFIX.length() > InfoResource.CONFIG.swift.max_meta_name_length ||
-                            request.getHeader(name).length() > InfoResource.CONFIG.swift.max_meta_value_length) {
+                            headers.apply(name).length() > InfoResource.CONFIG.swift.max_meta_value_length) {
                         throw new BadRequestException();
                     }
                     return true;
                 })
                 .collect(Collectors.toMap(
                         name -> name.substring(META_HEADER_PREFIX.length()),
-                        name -> request.getHeader(name)));
+                        headers));
     }
 
     private static Pair<String, String> validateCopyParam(String destination) {
@@ -609,6 +980,12 @@ public final class ObjectResource extends BlobStoreResource {
         if (meta == null) {
             return notFound();
         }
+        if (freshMetadata || !additionalUserMeta.isEmpty()) {
+            // the copy shares the stored representation, so it has to keep describing it
+            STORAGE_METADATA.stream()
+                    .filter(k -> meta.getUserMetadata().containsKey(k))
+                    .forEach(k -> additionalUserMeta.put(k, meta.getUserMetadata().get(k)));
+        }
 
         CopyOptions options;
         if (freshMetadata) {
@@ -628,6 +1005,11 @@ public final class ObjectResource extends BlobStoreResource {
         }
 //        validateUserMetadata(options.getUserMetadata().orNull());
 
+        String identity = ((BounceResourceConfig) application).getIdentity(authToken);
+        BlobStore destStore = getBlobStore(authToken).get(destContainer, destObject);
+        ((BounceResourceConfig) application).getObjectTracker().replacing(identity, destContainer, destObject);
+        BlobMetadata replaced = replacedObject(identity, destStore, destContainer, destObject);
+
         Map<String, String> userMetadata = meta.getUserMetadata();
         String etag = null;
         if (!"get".equals(multiPartManifest)) {
@@ -650,14 +1032,18 @@ public final class ObjectResource extends BlobStoreResource {
 
         if (etag == null) {
             etag = serverCopyBlob(blobStore, container, objectName, destContainer, destObject, options);
+            String storedETag = storedObjectETag(userMetadata);
+            if (storedETag != null) {
+                etag = storedETag;
+            }
         }
-        return Response.status(Response.Status.CREATED)
+        return recordObject(Response.status(Response.Status.CREATED)
                 .header(HttpHeaders.ETAG, etag)
                 .header(HttpHeaders.CONTENT_LENGTH, 0)
                 .header(HttpHeaders.CONTENT_TYPE, contentType)
                 .header(HttpHeaders.DATE, new Date())
                 .header("X-Copied-From", copiedFrom)
-                .build();
+                .build(), identity, destStore, destContainer, destObject, replaced);
     }
 
     // TODO: actually handle this, jclouds doesn't support metadata update yet
@@ -695,11 +1081,17 @@ public final class ObjectResource extends BlobStoreResource {
                 .filter(k -> originalMetadata.containsKey(k))
                 .forEach(k -> newMetadata.put(k, originalMetadata.get(k)));
 
+        long expiry = ObjectExpirer.deadline(deleteAt, deleteAfter);
         CopyOptions options = CopyOptions.builder().userMetadata(newMetadata).build();
         String etag = serverCopyBlob(blobStore, container, objectName, container, objectName, options);
         if (etag == null) {
             return notFound();
         }
+        // as in Swift, a POST without X-Delete-At removes the deadline
+        String identity = ((BounceResourceConfig) application).getIdentity(authToken);
+        if (identity != null) {
+            getObjectExpirer().set(identity, container, objectName, expiry);
+        }
 
         return Response.accepted()
                 .header(HttpHeaders.DATE, new Date())
@@ -719,7 +1111,7 @@ public final class ObjectResource extends BlobStoreResource {
         }
     }
 
-    private ManifestEntry[] readSLOManifest(InputStream in) throws IOException {
+    static ManifestEntry[] readSLOManifest(InputStream in) throws IOException {
         ObjectMapper mapper = new ObjectMapper();
         ManifestEntry[] res = mapper.readValue(in, ManifestEntry[].class);
         if (res.length > 1000) {
@@ -729,7 +1121,7 @@ public final class ObjectResource extends BlobStoreResource {
         return res;
     }
 
-    private Pair<Long, String> getManifestTotalSizeAndETag(Iterable<ManifestEntry> entries) {
+    Pair<Long, String> getManifestTotalSizeAndETag(Iterable<ManifestEntry> entries) {
         Hasher hash = Hashing.md5().newHasher();
         long segmentsTotalLength = 0;
         for (ManifestEntry entry : entries) {
@@ -787,6 +1179,10 @@ public final class ObjectResource extends BlobStoreResource {
                               @HeaderParam("X-Delete-After") long deleteAfter,
                               @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
                               @HeaderParam(SwiftHeaders.OBJECT_COPY_FRESH_METADATA) boolean freshMetadata,
+                              @HeaderParam(SLOMaterializer.MATERIALIZE_HEADER) boolean materialize,
+                              @HeaderParam(WriteBehindJournal.WRITE_BEHIND_HEADER) boolean writeBehind,
+                              @HeaderParam(CHECKSUM_ALGORITHM_HEADER) String checksumAlgorithm,
+                              @HeaderParam(CHECKSUM_HEADER) String expectedChecksum,
                               @Context Request request) {
         //objectName = normalizePath(objectName);
         if (objectName.length() > InfoResource.CONFIG.swift.max_object_name_length) {
@@ -802,6 +1198,8 @@ public final class ObjectResource extends BlobStoreResource {
         long contentLength = contentLengthParam == null ? 0 : Long.parseLong(contentLengthParam);
 
         logger.info("PUT {}", objectName);
+        long expiry = ObjectExpirer.deadline(deleteAt, deleteAfter);
+        String identity = ((BounceResourceConfig) application).getIdentity(authToken);
 
         if (copyFromAccount == null) {
             copyFromAccount = account;
@@ -809,10 +1207,10 @@ public final class ObjectResource extends BlobStoreResource {
 
         if (copyFrom != null) {
             Pair<String, String> copy = validateCopyParam(copyFrom);
-            return copyObject(copy.getFirst(), copy.getSecond(), copyFromAccount, authToken,
+            return recordDeleteAt(copyObject(copy.getFirst(), copy.getSecond(), copyFromAccount, authToken,
                     container + "/" + objectName, account, null, contentType.toString(),
                     contentEncoding, contentDisposition, freshMetadata,
-                    request);
+                    request), identity, container, objectName, expiry);
         }
 
         Map<String, String> metadata = getUserMetadata(request);
@@ -852,10 +1250,95 @@ public final class ObjectResource extends BlobStoreResource {
             }
         }
 
-        try (InputStream is = copiedStream != null ? copiedStream : request.getInputStream()) {
-            BlobBuilder.PayloadBlobBuilder builder = blobStore.blobBuilder(objectName)
-                    .userMetadata(metadata)
-                    .payload(is);
+        ChecksumInputStream checksum = null;
+        if (checksumAlgorithm != null && copiedStream == null) {
+            ChecksumAlgorithm algorithm = ChecksumAlgorithm.fromName(checksumAlgorithm);
+            if (algorithm == null) {
+                return badRequest();
+            }
+            if (expectedChecksum != null) {
+                // known up front, so it can be stored even when the body is
+                // streamed to the backend; the stream holds the last byte back
+                // until the body is verified, so a mismatch aborts the put.
+                // Without it, the body is spooled to disk below, which is the
+                // one case where checksumming costs extra buffering
+                metadata.put(CHECKSUM_METADATA, algorithm.getName() + " " + expectedChecksum.toLowerCase());
+            }
+            checksum = new ChecksumInputStream(request.getInputStream(), algorithm, expectedChecksum,
+                    value -> metadata.put(CHECKSUM_METADATA, algorithm.getName() + " " + value));
+        } else if (expectedChecksum != null) {
+            return badRequest();
+        }
+        InputStream body = checksum != null ? checksum : request.getInputStream();
+
+        WriteBehindJournal journal = ((BounceResourceConfig) application).getWriteBehindJournal();
+        if (copiedStream == null && objectManifest == null && identity != null &&
+                journal.shouldJournal(container, writeBehind)) {
+            return recordDeleteAt(putObjectWriteBehind(journal, identity, container, objectName, metadata,
+                    contentLengthParam == null ? -1 : contentLength, contentMD5, contentType,
+                    contentDisposition, contentEncoding, body, checksum), identity, container, objectName, expiry);
+        }
+        // a direct upload supersedes any pending write-behind upload
+        ((BounceResourceConfig) application).getObjectTracker().replacing(identity, container, objectName);
+        BlobMetadata replaced = replacedObject(identity, blobStore, container, objectName);
+
+        DedupStore dedup = ((BounceResourceConfig) application).getDedupStore();
+        if (copiedStream == null && objectManifest == null && identity != null && dedup.shouldDedup(container)) {
+            return recordDeleteAt(recordObject(putObjectDeduplicated(dedup, blobStore, identity, container,
+                    objectName, metadata, contentLengthParam == null ? -1 : contentLength, contentMD5, contentType,
+                    contentDisposition, contentEncoding, body, checksum), identity, blobStore, container, objectName,
+                    replaced), identity, container, objectName, expiry);
+        }
+
+        FrameCompression compression = ((BounceResourceConfig) application).getFrameCompression();
+        File spool = null;
+        File bodySpool = null;
+        try (InputStream is = copiedStream != null ? copiedStream : body) {
+            FrameCompression.Spooled spooled = null;
+            if (copiedStream == null && objectManifest == null && compression.shouldCompress(container)) {
+                spool = File.createTempFile("swiftproxy-", ".frames");
+                spooled = compression.spool(is, spool);
+                if (spooled.isCompressed()) {
+                    FrameCompression.Info info = spooled.getInfo();
+                    if (contentLengthParam != null && info.getLength() != contentLength) {
+                        return badRequest();
+                    }
+                    if (contentMD5 != null && !contentMD5.toString().equals(info.getETag())) {
+                        // Unprocessable Entity
+                        throw new ClientErrorException("ETag mismatch", 422);
+                    }
+                    metadata.put(FrameCompression.COMPRESSION_METADATA, info.toString());
+                }
+            }
+            boolean spooledForChecksum = false;
+            if ((spooled == null || !spooled.isCompressed()) && checksum != null &&
+                    !metadata.containsKey(CHECKSUM_METADATA)) {
+                // the checksum is only known once the body has been read, and
+                // it has to go into the metadata of the same put, so the body
+                // is spooled first the way compressed uploads are; this
+                // includes bodies whose first frame did not compress
+                bodySpool = File.createTempFile("swiftproxy-", ".body");
+                long length;
+                try (OutputStream out = new FileOutputStream(bodySpool)) {
+                    length = ByteStreams.copy(spooled == null ? is : spooled.getRawStream(), out);
+                }
+                if (contentLengthParam != null && length != contentLength) {
+                    return badRequest();
+                }
+                spooledForChecksum = true;
+            }
+            BlobBuilder.PayloadBlobBuilder builder;
+            if (spooledForChecksum) {
+                builder = blobStore.blobBuilder(objectName).userMetadata(metadata).payload(bodySpool)
+                        .contentLength(bodySpool.length());
+            } else if (spooled == null) {
+                builder = blobStore.blobBuilder(objectName).userMetadata(metadata).payload(is);
+            } else if (spooled.isCompressed()) {
+                builder = blobStore.blobBuilder(objectName).userMetadata(metadata).payload(spool)
+                        .contentLength(spooled.getStoredLength());
+            } else {
+                builder = blobStore.blobBuilder(objectName).userMetadata(metadata).payload(spooled.getRawStream());
+            }
             if (contentDisposition != null) {
                 builder.contentDisposition(contentDisposition);
             }
@@ -865,10 +1348,10 @@ public final class ObjectResource extends BlobStoreResource {
             if (contentType != null) {
                 builder.contentType(contentType.toString());
             }
-            if (contentLengthParam != null) {
+            if (contentLengthParam != null && (spooled == null || !spooled.isCompressed())) {
                 builder.contentLength(contentLength);
             }
-            if (contentMD5 != null) {
+            if (contentMD5 != null && (spooled == null || !spooled.isCompressed())) {
                 builder.contentMD5(contentMD5);
             }
             try {
@@ -876,6 +1359,9 @@ public final class ObjectResource extends BlobStoreResource {
                 try {
                     remoteETag = blobStore.putBlob(container, builder.build());
                 } catch (HttpResponseException e) {
+                    if (checksum != null && checksum.isMismatch()) {
+                        throw checksumMismatch(checksum);
+                    }
                     HttpResponse response = e.getResponse();
                     if (response == null) {
                         throw e;
@@ -888,19 +1374,140 @@ public final class ObjectResource extends BlobStoreResource {
                     } else {
                         throw new ClientErrorException(response.getStatusLine(), code, e.getCause());
                     }
+                } catch (RuntimeException e) {
+                    if (checksum != null && checksum.isMismatch()) {
+                        throw checksumMismatch(checksum);
+                    }
+                    throw e;
                 }
                 BlobMetadata meta = blobStore.blobMetadata(container, objectName);
-                return Response.status(Response.Status.CREATED).header(HttpHeaders.ETAG, remoteETag)
+                if (spooled != null && spooled.isCompressed()) {
+                    remoteETag = spooled.getInfo().getETag();
+                }
+                // before materializing, since recording drops the copy of
+                // the object that was replaced
+                recordObject(identity, blobStore, container, objectName, meta, replaced);
+                if ("put".equals(multiPartManifest)) {
+                    SLOMaterializer materializer = ((BounceResourceConfig) application).getSLOMaterializer();
+                    if (materializer.shouldMaterialize(container, materialize)) {
+                        materializer.submit(blobStore, identity, container, objectName,
+                                metadata.get(STATIC_OBJECT_MANIFEST));
+                    }
+                }
+                return recordDeleteAt(addChecksumHeaders(Response.status(Response.Status.CREATED), metadata)
+                        .header(HttpHeaders.ETAG, remoteETag)
                         .header(HttpHeaders.LAST_MODIFIED, meta.getLastModified())
                         .header(HttpHeaders.CONTENT_LENGTH, 0)
                         .header(HttpHeaders.CONTENT_TYPE, contentType)
-                        .header(HttpHeaders.DATE, new Date()).build();
+                        .header(HttpHeaders.DATE, new Date()).build(), identity, container, objectName, expiry);
             } catch (ContainerNotFoundException e) {
                 return notFound();
             }
         } catch (IOException e) {
+            if (checksum != null && checksum.isMismatch()) {
+                throw checksumMismatch(checksum);
+            }
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        } finally {
+            if (spool != null && !spool.delete()) {
+                logger.warn("failed to delete {}", spool);
+            }
+            if (bodySpool != null && !bodySpool.delete()) {
+                logger.warn("failed to delete {}", bodySpool);
+            }
+        }
+    }
+
+    private static ClientErrorException checksumMismatch(ChecksumInputStream checksum) {
+        // Unprocessable Entity
+        return new ClientErrorException(checksum.getAlgorithm().getName() + " mismatch", 422);
+    }
+
+    private Response putObjectDeduplicated(DedupStore dedup, BlobStore blobStore, String identity,
+                                           String container, String objectName, Map<String, String> metadata,
+                                           long contentLength, HashCode contentMD5, MediaType contentType,
+                                           String contentDisposition, String contentEncoding, InputStream body,
+                                           ChecksumInputStream checksum) {
+        DedupStore.Recipe recipe;
+        try (InputStream is = body) {
+            recipe = dedup.write(blobStore, identity, is);
+        } catch (IOException e) {
+            if (checksum != null && checksum.isMismatch()) {
+                throw checksumMismatch(checksum);
+            }
+            logger.error("failed to store chunks of " + container + "/" + objectName, e);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+        if (contentLength != -1 && recipe.getLength() != contentLength) {
+            return badRequest();
+        }
+        if (contentMD5 != null && !contentMD5.toString().equals(recipe.getETag())) {
+            // Unprocessable Entity
+            throw new ClientErrorException("ETag mismatch", 422);
+        }
+
+        metadata.put(DedupStore.DEDUP_METADATA, recipe.getMetadata());
+        byte[] body = recipe.toBytes();
+        BlobBuilder.PayloadBlobBuilder builder = blobStore.blobBuilder(objectName)
+                .userMetadata(metadata)
+                .payload(body)
+                .contentLength(body.length);
+        if (contentDisposition != null) {
+            builder.contentDisposition(contentDisposition);
+        }
+        if (contentEncoding != null) {
+            builder.contentEncoding(contentEncoding);
+        }
+        if (contentType != null) {
+            builder.contentType(contentType.toString());
+        }
+        try {
+            blobStore.putBlob(container, builder.build());
+        } catch (ContainerNotFoundException e) {
+            return notFound();
+        }
+
+        BlobMetadata meta = blobStore.blobMetadata(container, objectName);
+        return addChecksumHeaders(Response.status(Response.Status.CREATED), metadata)
+                .header(HttpHeaders.ETAG, recipe.getETag())
+                .header(HttpHeaders.LAST_MODIFIED, meta.getLastModified())
+                .header(HttpHeaders.CONTENT_LENGTH, 0)
+                .header(HttpHeaders.CONTENT_TYPE, contentType)
+                .header(HttpHeaders.DATE, new Date()).build();
+    }
+
+    private Response putObjectWriteBehind(WriteBehindJournal journal, String identity, String container,
+                                          String objectName, Map<String, String> metadata, long contentLength,
+                                          HashCode contentMD5, MediaType contentType, String contentDisposition,
+                                          String contentEncoding, InputStream body,
+                                          ChecksumInputStream checksum) {
+        WriteBehindJournal.Header header = new WriteBehindJournal.Header();
+        header.userMetadata = metadata;
+        header.contentType = contentType == null ? null : contentType.toString();
+        header.contentDisposition = contentDisposition;
+        header.contentEncoding = contentEncoding;
+
+        WriteBehindJournal.Record record;
+        try (InputStream is = body) {
+            record = journal.append(identity, container, objectName, is, contentLength, contentMD5, header);
+        } catch (IOException e) {
+            if (checksum != null && checksum.isMismatch()) {
+                throw checksumMismatch(checksum);
+            }
+            logger.error("failed to journal " + container + "/" + objectName, e);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         }
+        if (record == null) {
+            // Unprocessable Entity
+            throw new ClientErrorException("ETag mismatch", 422);
+        }
+
+        return addChecksumHeaders(Response.status(Response.Status.CREATED), metadata)
+                .header(HttpHeaders.ETAG, header.etag)
+                .header(HttpHeaders.LAST_MODIFIED, new Date(header.timestamp))
+                .header(HttpHeaders.CONTENT_LENGTH, 0)
+                .header(HttpHeaders.CONTENT_TYPE, contentType)
+                .header(HttpHeaders.DATE, new Date()).build();
     }
 
     @HEAD
@@ -913,8 +1520,19 @@ public final class ObjectResource extends BlobStoreResource {
             return badRequest();
         }
 
+        String identity = ((BounceResourceConfig) application).getIdentity(authToken);
+        if (getObjectExpirer().isExpired(identity, container, objectName)) {
+            return notFound();
+        }
         BlobStore blobStore = getBlobStore(authToken).get(container, objectName);
-        return headObject(blobStore, authToken, container, objectName, multiPartManifest);
+        WriteBehindJournal.Record record = ((BounceResourceConfig) application).getWriteBehindJournal().lookup(
+                identity, container, objectName);
+        if (record != null) {
+            return addDeleteAtHeader(addJournaledObjectHeaders(Response.ok(), record.getHeader(),
+                    record.getHeader().length).build(), identity, container, objectName);
+        }
+        return addDeleteAtHeader(headObject(blobStore, authToken, container, objectName, multiPartManifest),
+                identity, container, objectName);
     }
 
     private Response headObject(BlobStore blobStore, String authToken,
@@ -950,6 +1568,18 @@ public final class ObjectResource extends BlobStoreResource {
                             Optional.of(overwriteSizeAndETag(sizeAndEtag.getFirst(), sizeAndEtag.getSecond())))
                             .build();
                 }
+            } else if (meta.getUserMetadata().containsKey(DedupStore.DEDUP_METADATA)) {
+                DedupStore.Recipe recipe = DedupStore.Recipe.parse(
+                        meta.getUserMetadata().get(DedupStore.DEDUP_METADATA));
+                return addObjectHeaders(Response.ok(), meta,
+                        Optional.of(overwriteSizeAndETag(recipe.getLength(), recipe.getETag())))
+                        .build();
+            } else if (meta.getUserMetadata().containsKey(FrameCompression.COMPRESSION_METADATA)) {
+                FrameCompression.Info info = FrameCompression.Info.parse(
+                        meta.getUserMetadata().get(FrameCompression.COMPRESSION_METADATA), meta.getETag());
+                return addObjectHeaders(Response.ok(), meta,
+                        Optional.of(overwriteSizeAndETag(info.getLength(), info.getETag())))
+                        .build();
             }
         }
 
@@ -966,7 +1596,8 @@ public final class ObjectResource extends BlobStoreResource {
                                  @NotNull @PathParam("container") String container,
                                  @NotNull @Encoded @PathParam("object") String objectName,
                                  @QueryParam("multipart-manifest") String multipartManifest,
-                                 @HeaderParam("X-Auth-Token") String authToken) throws IOException {
+                                 @HeaderParam("X-Auth-Token") String authToken,
+                                 @Context HttpHeaders headers) throws IOException {
         if (objectName.length() > InfoResource.CONFIG.swift.max_object_name_length) {
             return badRequest();
         }
@@ -975,8 +1606,14 @@ public final class ObjectResource extends BlobStoreResource {
         if (!store.containerExists(container)) {
             return Response.status(Response.Status.NOT_FOUND).build();
         }
+        String identity = ((BounceResourceConfig) application).getIdentity(authToken);
+        boolean journaled = ((BounceResourceConfig) application).getObjectTracker().replacing(identity, container,
+                objectName);
         BlobMetadata meta = store.blobMetadata(container, objectName);
         if (meta == null) {
+            if (journaled) {
+                return Response.noContent().build();
+            }
             return Response.status(Response.Status.NOT_FOUND).build();
         }
 
@@ -986,22 +1623,62 @@ public final class ObjectResource extends BlobStoreResource {
                 return notFound();
             }
             ManifestEntry[] entries = readSLOManifest(blob.getPayload().openStream());
-            Arrays.stream(entries).parallel().forEach(e -> store.removeBlob(e.container, e.object));
+            return deleteStaticLargeObject(store, identity, container, objectName, meta, entries, headers);
         }
         store.removeBlob(container, objectName);
+        ((BounceResourceConfig) application).getObjectTracker().deleted(identity, store, container, objectName,
+                meta);
 
         return Response.noContent()
                 .type(meta.getContentMetadata().getContentType())
                 .build();
     }
 
+    /**
+     * Deletes the segments of a static large object and then its manifest,
+     * reporting the outcome in the Swift bulk delete format.  Segments are
+     * grouped by container and go through the shared deleter, so concurrent
+     * manifest deletes share one throughput budget.  If any segment fails
+     * the manifest is kept, so that the delete can be retried.
+     */
+    private Response deleteStaticLargeObject(BlobStore store, String identity, String container,
+                                             String objectName, BlobMetadata meta, ManifestEntry[] entries,
+                                             HttpHeaders headers) {
+        BounceResourceConfig config = (BounceResourceConfig) application;
+        AccountResource.BulkDeleteResult result = new AccountResource.BulkDeleteResult();
+        return config.getBulkResponder().respond(BulkResponder.selectFormat(headers), result,
+                Response.Status.BAD_GATEWAY, () -> {
+                    BlobDeleter.Deletion deletion = config.getBlobDeleter().newDeletion(store, identity, result);
+                    Map<String, List<ManifestEntry>> byContainer = Arrays.stream(entries).collect(
+                            Collectors.groupingBy(e -> e.container, LinkedHashMap::new, Collectors.toList()));
+                    byContainer.forEach((segmentContainer, segments) ->
+                            segments.forEach(e -> deletion.delete(segmentContainer, e.object)));
+                    deletion.await();
+                    if (result.hasErrors()) {
+                        return;
+                    }
+                    deletion.delete(container, objectName);
+                    deletion.await();
+                });
+    }
+
     private Map<String, Object> overwriteSizeAndETag(long size, String etag) {
         return ImmutableMap.of(HttpHeaders.CONTENT_LENGTH, size,
                 HttpHeaders.ETAG, etag);
     }
 
-    private Response.ResponseBuilder addObjectHeaders(Response.ResponseBuilder responseBuilder, BlobMetadata metaData,
-                                                      Optional<Map<String, Object>> overwrites) {
+    private static Response.ResponseBuilder addChecksumHeaders(Response.ResponseBuilder responseBuilder,
+                                                               Map<String, String> userMetadata) {
+        String checksum = userMetadata.get(CHECKSUM_METADATA);
+        if (checksum != null) {
+            String[] data = checksum.split(" ", 2);
+            responseBuilder.header(CHECKSUM_ALGORITHM_HEADER, data[0]).header(CHECKSUM_HEADER, data[1]);
+        }
+        return responseBuilder;
+    }
+
+    Response.ResponseBuilder addObjectHeaders(Response.ResponseBuilder responseBuilder, BlobMetadata metaData,
+                                              Optional<Map<String, Object>> overwrites) {
         Map<String, String> userMetadata = metaData.getUserMetadata();
         userMetadata.entrySet().stream()
                 .filter(entry -> !RESERVED_METADATA.contains(entry.getKey()))
@@ -1009,6 +1686,7 @@ public final class ObjectResource extends BlobStoreResource {
         if (userMetadata.containsKey(DYNAMIC_OBJECT_MANIFEST)) {
             responseBuilder.header(DYNAMIC_OBJECT_MANIFEST, userMetadata.get(DYNAMIC_OBJECT_MANIFEST));
         }
+        addChecksumHeaders(responseBuilder, userMetadata);
 
         String contentType = Strings.isNullOrEmpty(metaData.getContentMetadata().getContentType()) ?
                 MediaType.APPLICATION_OCTET_STREAM : metaData.getContentMetadata().getContentType();
@@ -1035,7 +1713,7 @@ public final class ObjectResource extends BlobStoreResource {
         return responseBuilder;
     }
 
-    private class HttpRangeInputStream extends InputStream {
+    class HttpRangeInputStream extends InputStream {
         private final InputStream in;
         private final Iterator<Range> ranges;
         private final long size;
@@ -1137,7 +1815,7 @@ public final class ObjectResource extends BlobStoreResource {
         }
     }
 
-    private class ManifestObjectInputStream extends InputStream {
+    class ManifestObjectInputStream extends InputStream {
         private final PeekingIterator<ManifestEntry> entries;
         private final BlobStore blobStore;
         private Response currentResp;
@@ -1199,7 +1877,8 @@ public final class ObjectResource extends BlobStoreResource {
 
             ManifestEntry entry = entries.next();
             logger.info("opening {}/{}", entry.container, entry.object);
-            Response resp = getObject(blobStore, entry.container, entry.object, GetOptions.NONE, null, false);
+            Response resp = getObject(blobStore, null, entry.container, entry.object, GetOptions.NONE, null,
+                    false);
             if (!resp.getStatusInfo().getFamily().equals(Response.Status.Family.SUCCESSFUL)) {
                 resp.close();
                 throw new ClientErrorException(Response.Status.CONFLICT);
@@ -1280,7 +1959,7 @@ public final class ObjectResource extends BlobStoreResource {
         }
     }
 
-    private static class ManifestEntry {
+    static class ManifestEntry {
         @JsonProperty String etag;
         @JsonProperty long size_bytes;
         String container;
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static java.util.Objects.requireNonNull;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.javax.annotation.Nullable;
+
+/**
+ * Records every write and delete of an object, whichever path makes it:
+ * object PUT, COPY and DELETE, bulk deletes, static large object deletes,
+ * archive extraction, container purges, the expirer and write-behind
+ * uploads.  The state the proxy keeps about objects, the listing index,
+ * the usage counters, the expiry deadlines and the materialized copies of
+ * static large objects, is updated here so that no path can leave it
+ * behind the backend.  Objects written without an identity, by requests
+ * that are not tied to an account, are only checked for materialized
+ * copies.
+ */
+public final class ObjectTracker {
+    private final BounceResourceConfig config;
+
+    public ObjectTracker(BounceResourceConfig config) {
+        this.config = requireNonNull(config);
+    }
+
+    private boolean isCounted(String identity, String container) {
+        return config.getUsageTracker().getContainerUsage(identity, container) != null;
+    }
+
+    /**
+     * Drops any pending write-behind upload of an object that a request is
+     * about to write or delete directly, so that it cannot land afterwards.
+     *
+     * @return whether there was a pending upload
+     */
+    boolean replacing(String identity, String container, String object) {
+        return config.getWriteBehindJournal().discard(identity, container, object);
+    }
+
+    /**
+     * Returns the object that a write is about to replace, if the usage of
+     * its container is counted, so that an overwrite is not counted as a
+     * new object.
+     */
+    @Nullable
+    public BlobMetadata replaced(String identity, BlobStore blobStore, String container, String object) {
+        if (identity == null || !isCounted(identity, container)) {
+            return null;
+        }
+        return blobStore.blobMetadata(container, object);
+    }
+
+    /**
+     * Records an object that was just written, looking its metadata up only
+     * if anything needs it.
+     */
+    public void written(String identity, BlobStore blobStore, String container, String object,
+                        @Nullable BlobMetadata replaced) {
+        config.getSLOMaterializer().objectChanged(blobStore, identity, container, object, replaced);
+        if (identity == null ||
+                (!config.getListingIndex().isIndexed(container) && !isCounted(identity, container))) {
+            return;
+        }
+        record(identity, container, object, blobStore.blobMetadata(container, object), replaced);
+    }
+
+    /**
+     * Records an object that a request just wrote without asking for a
+     * deadline, which drops any deadline left by the object it replaced.
+     */
+    void writtenWithoutDeadline(String identity, BlobStore blobStore, String container, String object,
+                                @Nullable BlobMetadata replaced) {
+        if (identity != null) {
+            config.getObjectExpirer().remove(identity, container, object);
+        }
+        written(identity, blobStore, container, object, replaced);
+    }
+
+    /** Records an object that was just written, or that is gone again if meta is null. */
+    public void written(String identity, BlobStore blobStore, String container, String object,
+                        @Nullable BlobMetadata meta, @Nullable BlobMetadata replaced) {
+        config.getSLOMaterializer().objectChanged(blobStore, identity, container, object, replaced);
+        record(identity, container, object, meta, replaced);
+    }
+
+    private void record(String identity, String container, String object, @Nullable BlobMetadata meta,
+                        @Nullable BlobMetadata replaced) {
+        if (identity == null) {
+            return;
+        }
+        if (meta == null) {
+            config.getListingIndex().remove(identity, container, object);
+        } else {
+            config.getListingIndex().put(identity, container, meta);
+        }
+        config.getUsageTracker().add(identity, container, (meta == null ? 0 : 1) - (replaced == null ? 0 : 1),
+                size(meta) - size(replaced));
+    }
+
+    /** Records an object that was just deleted; meta is what it was, if known. */
+    void deleted(String identity, BlobStore blobStore, String container, String object,
+                 @Nullable BlobMetadata meta) {
+        config.getSLOMaterializer().objectChanged(blobStore, identity, container, object, meta);
+        if (identity == null) {
+            return;
+        }
+        config.getListingIndex().remove(identity, container, object);
+        config.getObjectExpirer().remove(identity, container, object);
+        if (meta != null) {
+            config.getUsageTracker().add(identity, container, -1, -size(meta));
+        }
+    }
+
+    /** Records a container that was just created, or that already existed if created is false. */
+    void containerCreated(String identity, String container, boolean created) {
+        if (identity == null) {
+            return;
+        }
+        if (created) {
+            config.getUsageTracker().containerCreated(identity, container);
+        } else {
+            config.getUsageTracker().track(identity, container);
+        }
+    }
+
+    /** Records a container that was just deleted, along with whatever was left in it. */
+    void containerDeleted(String identity, String container) {
+        if (identity == null) {
+            return;
+        }
+        config.getListingIndex().drop(identity, container);
+        config.getUsageTracker().containerDeleted(identity, container);
+        config.getObjectExpirer().removeContainer(identity, container);
+        config.getWriteBehindJournal().discardContainer(identity, container);
+        config.getTempUrlKeys().containerDeleted(identity, container);
+    }
+
+    private static long size(@Nullable BlobMetadata meta) {
+        return meta == null ? 0 : ObjectResource.logicalSize(meta);
+    }
+}
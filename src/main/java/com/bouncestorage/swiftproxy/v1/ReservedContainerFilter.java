@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Refuses client requests on the containers the proxy keeps its own data
+ * in, such as the chunks of deduplicated objects, whether the container is
+ * named by the path or by a copy header.  Bulk deletes and archive
+ * extraction name containers in their bodies and check them themselves.
+ */
+@Provider
+@PreMatching
+public final class ReservedContainerFilter implements ContainerRequestFilter {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Context
+    private Application application;
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        BounceResourceConfig config = (BounceResourceConfig) application;
+
+        // /v1/{account}/{container}[/{object}]
+        String path = request.getUriInfo().getPath(true);
+        String[] parts = (path.startsWith("/") ? path.substring(1) : path).split("/", 4);
+        if (parts.length >= 3 && parts[0].equals("v1") && config.isReservedContainer(parts[2])) {
+            abort(request, parts[2]);
+            return;
+        }
+
+        for (String header : new String[]{"Destination", "X-Copy-From"}) {
+            String container = copyContainer(request.getHeaderString(header));
+            if (container != null && config.isReservedContainer(container)) {
+                abort(request, container);
+                return;
+            }
+        }
+    }
+
+    /** Returns the container of a {@code [/]container/object} copy header. */
+    private static String copyContainer(String value) {
+        if (value == null) {
+            return null;
+        }
+        String path = value.startsWith("/") ? value.substring(1) : value;
+        int separatorIndex = path.indexOf('/');
+        return separatorIndex < 0 ? path : path.substring(0, separatorIndex);
+    }
+
+    private void abort(ContainerRequestContext request, String container) {
+        logger.debug("rejecting {} {}: {} is reserved", request.getMethod(), request.getUriInfo().getPath(),
+                container);
+        request.abortWith(Response.status(Response.Status.FORBIDDEN).build());
+    }
+}
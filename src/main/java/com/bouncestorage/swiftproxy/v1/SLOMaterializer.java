@@ -0,0 +1,480 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.bouncestorage.swiftproxy.Utils.eTagsEqual;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.bouncestorage.swiftproxy.DedupStore;
+import com.bouncestorage.swiftproxy.FrameCompression;
+import com.bouncestorage.swiftproxy.SwiftProxy;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Concatenates the segments of static large objects into a single backend
+ * blob in the background, so that later GETs of the manifest are served by
+ * one backend request instead of one request per segment.
+ *
+ * A copy is only served while it matches the segments it was made from.
+ * The proxy remembers the segments of the copies it made or checked since it
+ * started, and the {@link ObjectTracker} reports every write and delete, so
+ * that writing a segment makes the next GET check the segments again, and
+ * replacing or deleting a manifest removes its copy.  Copies that the proxy
+ * has not seen since it started are checked before they are first served;
+ * those are also the only copies that a manifest overwritten by a plain
+ * object can leave behind, if the object it replaced was not looked up.
+ */
+public final class SLOMaterializer {
+    public static final String MATERIALIZE_HEADER = "X-Static-Large-Object-Materialize";
+    static final String MATERIALIZED_METADATA = "x-static-large-object-materialized";
+    private static final String DEFAULT_CONTAINER = "swiftproxy-materialized";
+    private static final int MAX_FINISHED_JOBS = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Set<String> containers;
+    private final String materializedContainer;
+    private final ExecutorService executor;
+    private final FrameCompression compression;
+    private final DedupStore dedup;
+    private final Map<String, Job> pendingJobs = new ConcurrentHashMap<>();
+    private final Deque<Job> finishedJobs = new ConcurrentLinkedDeque<>();
+    // copies known to match their segments, and the copies using each segment
+    private final Map<String, Materialized> materialized = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> manifestsBySegment = new ConcurrentHashMap<>();
+
+    public enum State {
+        QUEUED, RUNNING, DONE, STALE, FAILED
+    }
+
+    public SLOMaterializer(Properties properties, FrameCompression compression, DedupStore dedup) {
+        this.compression = requireNonNull(compression);
+        this.dedup = requireNonNull(dedup);
+        containers = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(
+                properties.getProperty(SwiftProxy.PROPERTY_SLO_MATERIALIZE, "")));
+        materializedContainer = properties.getProperty(SwiftProxy.PROPERTY_SLO_MATERIALIZE_CONTAINER,
+                DEFAULT_CONTAINER);
+        int threads = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_SLO_MATERIALIZE_THREADS, "2"));
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("slo-materializer-%d").setDaemon(true).build());
+    }
+
+    boolean shouldMaterialize(String container, boolean requested) {
+        return requested || containers.contains("*") || containers.contains(container);
+    }
+
+    public String getMaterializedContainer() {
+        return materializedContainer;
+    }
+
+    static String materializedName(String container, String object) {
+        return container + "/" + object;
+    }
+
+    private static String key(String identity, String container, String object) {
+        return identity + " " + materializedName(container, object);
+    }
+
+    void submit(BlobStore blobStore, String identity, String container, String object, String manifestValue) {
+        Job job = new Job(blobStore, identity, container, object, manifestValue);
+        String key = key(identity, container, object);
+        Job previous = pendingJobs.put(key, job);
+        if (previous != null) {
+            // a newer manifest supersedes the queued one
+            previous.state = State.STALE;
+        }
+        logger.debug("queueing materialization of {}/{}", container, object);
+        executor.execute(() -> run(key, job));
+    }
+
+    /**
+     * Returns whether the materialized copy of a manifest still matches its
+     * segments, checking them if the copy is not known to.  A copy that does
+     * not match is removed, along with the manifest's marker.
+     */
+    boolean isCurrent(BlobStore blobStore, String identity, String container, String object,
+                      String manifestValue) throws IOException {
+        String key = key(identity, container, object);
+        Materialized copy = materialized.get(key);
+        if (identity != null && copy != null && copy.manifestValue.equals(manifestValue)) {
+            return true;
+        }
+
+        Blob manifest = blobStore.getBlob(container, object);
+        if (manifest == null) {
+            return false;
+        }
+        List<ObjectResource.ManifestEntry> entries;
+        try (InputStream is = manifest.getPayload().openStream()) {
+            entries = Arrays.asList(ObjectResource.readSLOManifest(is));
+        }
+        if (!manifestValue.equals(manifest.getMetadata().getUserMetadata().get(
+                ObjectResource.STATIC_OBJECT_MANIFEST))) {
+            return false;
+        }
+        // remembered before checking, so that a segment written meanwhile
+        // makes the check fail
+        copy = remember(blobStore, identity, container, object, manifestValue, entries);
+        for (ObjectResource.ManifestEntry entry : entries) {
+            BlobMetadata meta = blobStore.blobMetadata(entry.container, entry.object);
+            if (meta == null || ObjectResource.logicalSize(meta) != entry.size_bytes ||
+                    !eTagsEqual(ObjectResource.logicalETag(meta), entry.etag)) {
+                logger.debug("segment {} of materialized {}/{} changed", entry, container, object);
+                forget(key, copy);
+                unmark(blobStore, container, object, manifestValue);
+                return false;
+            }
+        }
+        if (identity == null) {
+            // not tracked, so it is checked on every GET
+            forget(key, copy);
+            return true;
+        }
+        return materialized.get(key) == copy;
+    }
+
+    /**
+     * Records a write or delete of an object.  The copy of a manifest it
+     * replaced is removed, and the copies it is a segment of are checked
+     * again before they are served.
+     *
+     * @param previous the object that was replaced or deleted, if known
+     */
+    void objectChanged(BlobStore blobStore, String identity, String container, String object,
+                       @Nullable BlobMetadata previous) {
+        String key = key(identity, container, object);
+        Set<String> manifests = manifestsBySegment.get(key);
+        if (manifests != null) {
+            new ArrayList<>(manifests).forEach(manifest -> forget(manifest, materialized.get(manifest)));
+        }
+        Materialized copy = materialized.get(key);
+        if (copy != null) {
+            forget(key, copy);
+            removeCopy(copy.blobStore, container, object);
+        } else if (previous != null && previous.getUserMetadata().containsKey(MATERIALIZED_METADATA)) {
+            removeCopy(blobStore, container, object);
+        }
+    }
+
+    public List<Job> getJobs() {
+        List<Job> jobs = new ArrayList<>(pendingJobs.values());
+        jobs.addAll(finishedJobs);
+        return jobs;
+    }
+
+    /** Returns the jobs of the manifests written by identity. */
+    public List<Job> getJobs(String identity) {
+        return getJobs().stream()
+                .filter(job -> identity != null && identity.equals(job.identity))
+                .collect(Collectors.toList());
+    }
+
+    public int getQueueDepth() {
+        return pendingJobs.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run(String key, Job job) {
+        if (job.state == State.STALE) {
+            finish(key, job);
+            return;
+        }
+        job.state = State.RUNNING;
+        job.started = Instant.now();
+        try {
+            job.state = materialize(job);
+        } catch (Throwable e) {
+            logger.error(String.format("failed to materialize %s/%s", job.container, job.object), e);
+            job.state = State.FAILED;
+            job.error = e.toString();
+        } finally {
+            job.finished = Instant.now();
+            finish(key, job);
+        }
+    }
+
+    private void finish(String key, Job job) {
+        pendingJobs.remove(key, job);
+        finishedJobs.addFirst(job);
+        while (finishedJobs.size() > MAX_FINISHED_JOBS) {
+            finishedJobs.pollLast();
+        }
+    }
+
+    private State materialize(Job job) throws IOException {
+        BlobStore blobStore = job.blobStore;
+        Blob manifest = blobStore.getBlob(job.container, job.object);
+        if (manifest == null || !job.manifestValue.equals(
+                manifest.getMetadata().getUserMetadata().get(ObjectResource.STATIC_OBJECT_MANIFEST))) {
+            return State.STALE;
+        }
+
+        ObjectResource.ManifestEntry[] entries;
+        try (InputStream is = manifest.getPayload().openStream()) {
+            entries = ObjectResource.readSLOManifest(is);
+        }
+        job.size = Long.parseLong(job.manifestValue.split(" ", 2)[0]);
+
+        String key = key(job.identity, job.container, job.object);
+        Materialized copy = remember(blobStore, job.identity, job.container, job.object, job.manifestValue,
+                Arrays.asList(entries));
+        String name = materializedName(job.container, job.object);
+        blobStore.createContainerInLocation(null, materializedContainer);
+        try (InputStream is = new SegmentsInputStream(compression, dedup, blobStore, Arrays.asList(entries))) {
+            Blob blob = blobStore.blobBuilder(name)
+                    .payload(is)
+                    .contentLength(job.size)
+                    .build();
+            blobStore.putBlob(materializedContainer, blob, PutOptions.Builder.multipart());
+        }
+
+        // only mark the manifest if neither it nor a segment was replaced
+        // while we were copying
+        BlobMetadata meta = blobStore.blobMetadata(job.container, job.object);
+        if (meta == null || !job.manifestValue.equals(
+                meta.getUserMetadata().get(ObjectResource.STATIC_OBJECT_MANIFEST)) ||
+                materialized.get(key) != copy) {
+            forget(key, copy);
+            blobStore.removeBlob(materializedContainer, name);
+            return State.STALE;
+        }
+        Map<String, String> newMetadata = new HashMap<>(meta.getUserMetadata());
+        newMetadata.put(MATERIALIZED_METADATA, job.manifestValue);
+        blobStore.copyBlob(job.container, job.object, job.container, job.object,
+                CopyOptions.builder().userMetadata(newMetadata).build());
+        logger.info("materialized {}/{} ({} bytes)", job.container, job.object, job.size);
+        return State.DONE;
+    }
+
+    private Materialized remember(BlobStore blobStore, String identity, String container, String object,
+                                  String manifestValue, List<ObjectResource.ManifestEntry> entries) {
+        String key = key(identity, container, object);
+        Materialized copy = new Materialized(blobStore, manifestValue, entries.stream()
+                .map(entry -> key(identity, entry.container, entry.object))
+                .collect(Collectors.toList()));
+        materialized.put(key, copy);
+        for (String segment : copy.segments) {
+            manifestsBySegment.computeIfAbsent(segment, k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        return copy;
+    }
+
+    private void forget(String key, @Nullable Materialized copy) {
+        if (copy == null || !materialized.remove(key, copy)) {
+            return;
+        }
+        for (String segment : copy.segments) {
+            manifestsBySegment.computeIfPresent(segment, (k, manifests) -> {
+                manifests.remove(key);
+                return manifests.isEmpty() ? null : manifests;
+            });
+        }
+    }
+
+    private void removeCopy(BlobStore blobStore, String container, String object) {
+        try {
+            blobStore.removeBlob(materializedContainer, materializedName(container, object));
+        } catch (ContainerNotFoundException e) {
+            logger.debug("materialized copy of {}/{} already gone", container, object);
+        }
+    }
+
+    /** Removes a copy that no longer matches its segments and the marker pointing to it. */
+    private void unmark(BlobStore blobStore, String container, String object, String manifestValue) {
+        removeCopy(blobStore, container, object);
+        BlobMetadata meta = blobStore.blobMetadata(container, object);
+        if (meta == null || !manifestValue.equals(meta.getUserMetadata().get(MATERIALIZED_METADATA))) {
+            return;
+        }
+        Map<String, String> newMetadata = new HashMap<>(meta.getUserMetadata());
+        newMetadata.remove(MATERIALIZED_METADATA);
+        blobStore.copyBlob(container, object, container, object,
+                CopyOptions.builder().userMetadata(newMetadata).build());
+    }
+
+    /** A copy known to match the segments it was made from. */
+    private static final class Materialized {
+        private final BlobStore blobStore;
+        private final String manifestValue;
+        private final List<String> segments;
+
+        Materialized(BlobStore blobStore, String manifestValue, List<String> segments) {
+            this.blobStore = requireNonNull(blobStore);
+            this.manifestValue = requireNonNull(manifestValue);
+            this.segments = requireNonNull(segments);
+        }
+    }
+
+    public static final class Job {
+        @JsonProperty
+        final String container;
+        @JsonProperty
+        final String object;
+        @JsonProperty
+        volatile State state = State.QUEUED;
+        @JsonProperty
+        volatile long size = -1;
+        @JsonProperty
+        volatile String error;
+        @JsonSerialize(using = ToStringSerializer.class)
+        @JsonProperty
+        final Instant submitted = Instant.now();
+        @JsonSerialize(using = ToStringSerializer.class)
+        @JsonProperty
+        volatile Instant started;
+        @JsonSerialize(using = ToStringSerializer.class)
+        @JsonProperty
+        volatile Instant finished;
+        private final BlobStore blobStore;
+        private final String identity;
+        private final String manifestValue;
+
+        Job(BlobStore blobStore, String identity, String container, String object, String manifestValue) {
+            this.blobStore = requireNonNull(blobStore);
+            this.identity = identity;
+            this.container = requireNonNull(container);
+            this.object = requireNonNull(object);
+            this.manifestValue = requireNonNull(manifestValue);
+        }
+    }
+
+    /**
+     * Reads the segments of a manifest one after another, verifying that each
+     * segment still matches the size and ETag recorded in the manifest.  The
+     * manifest describes segments as clients see them, so compressed and
+     * deduplicated segments are compared by their original size and ETag and
+     * read decoded.
+     */
+    private static final class SegmentsInputStream extends InputStream {
+        private final FrameCompression compression;
+        private final DedupStore dedup;
+        private final BlobStore blobStore;
+        private final Iterator<ObjectResource.ManifestEntry> entries;
+        private InputStream current;
+
+        SegmentsInputStream(FrameCompression compression, DedupStore dedup, BlobStore blobStore,
+                            Iterable<ObjectResource.ManifestEntry> entries) {
+            this.compression = requireNonNull(compression);
+            this.dedup = requireNonNull(dedup);
+            this.blobStore = requireNonNull(blobStore);
+            this.entries = requireNonNull(entries).iterator();
+        }
+
+        private boolean nextSegment() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            if (!entries.hasNext()) {
+                return false;
+            }
+
+            ObjectResource.ManifestEntry entry = entries.next();
+            Blob blob = blobStore.getBlob(entry.container, entry.object);
+            if (blob == null) {
+                throw new IOException("missing segment " + entry);
+            }
+            BlobMetadata meta = blob.getMetadata();
+            if (meta.getUserMetadata().containsKey(ObjectResource.STATIC_OBJECT_MANIFEST) ||
+                    meta.getUserMetadata().containsKey(ObjectResource.DYNAMIC_OBJECT_MANIFEST)) {
+                throw new IOException("nested manifest " + entry);
+            }
+            if (ObjectResource.logicalSize(meta) != entry.size_bytes ||
+                    !eTagsEqual(ObjectResource.logicalETag(meta), entry.etag)) {
+                throw new IOException("segment changed " + entry);
+            }
+            current = blob.getPayload().openStream();
+            String dedupData = meta.getUserMetadata().get(DedupStore.DEDUP_METADATA);
+            String compressionInfo = meta.getUserMetadata().get(FrameCompression.COMPRESSION_METADATA);
+            if (dedupData != null) {
+                // the body is only the recipe, which parse reads and closes
+                DedupStore.Recipe recipe = DedupStore.Recipe.parse(dedupData, current);
+                current = dedup.read(blobStore, recipe, 0, recipe.getLength() - 1);
+            } else if (compressionInfo != null) {
+                current = compression.decode(current, FrameCompression.Info.parse(compressionInfo, meta.getETag()));
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (current != null || nextSegment()) {
+                int res = current.read(b, off, len);
+                if (res != -1) {
+                    return res;
+                }
+                if (!nextSegment()) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+}
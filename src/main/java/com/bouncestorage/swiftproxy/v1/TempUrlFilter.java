@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy.v1;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+import com.google.common.collect.ImmutableList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Authorizes object requests that carry a Swift TempURL signature instead of
+ * an auth token.  The signature is checked against the keys cached by
+ * {@link TempUrlKeys}, so a valid URL costs no backend round trip; the
+ * request then continues with an internal token of the account.
+ */
+@Provider
+@PreMatching
+public final class TempUrlFilter implements ContainerRequestFilter {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Context
+    private Application application;
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        MultivaluedMap<String, String> query = request.getUriInfo().getQueryParameters();
+        String signature = first(query, "temp_url_sig", "signature");
+        String expires = first(query, "temp_url_expires", "expires");
+        if (signature == null || expires == null || request.getHeaderString("X-Auth-Token") != null) {
+            return;
+        }
+
+        String method = request.getMethod();
+        Collection<String> methods;
+        if (method.equals(HttpMethod.HEAD)) {
+            // a URL signed for GET or PUT may also be used to HEAD the object
+            methods = ImmutableList.of(HttpMethod.HEAD, HttpMethod.GET, HttpMethod.PUT);
+        } else if (method.equals(HttpMethod.GET) || method.equals(HttpMethod.PUT)) {
+            methods = ImmutableList.of(method);
+        } else {
+            abort(request, "method not allowed with a temp url");
+            return;
+        }
+
+        // /v1/{account}/{container}/{object}
+        String path = "/" + request.getUriInfo().getPath(true);
+        String[] parts = path.split("/", 5);
+        if (parts.length != 5 || !parts[1].equals("v1") || parts[2].isEmpty() || parts[3].isEmpty() ||
+                parts[4].isEmpty()) {
+            abort(request, "temp urls are only valid for objects");
+            return;
+        }
+        String account = parts[2];
+        String container = parts[3];
+        String object = parts[4];
+
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(expires);
+        } catch (NumberFormatException e) {
+            abort(request, "invalid temp_url_expires");
+            return;
+        }
+        if (expiresAt < System.currentTimeMillis() / 1000) {
+            abort(request, "temp url expired");
+            return;
+        }
+
+        String prefix = query.getFirst("temp_url_prefix");
+        String signed;
+        if (prefix != null) {
+            if (!object.startsWith(prefix)) {
+                abort(request, "object outside of the temp url prefix");
+                return;
+            }
+            signed = "prefix:/v1/" + account + "/" + container + "/" + prefix;
+        } else {
+            signed = path;
+        }
+
+        if (method.equals(HttpMethod.PUT) && (request.getHeaderString("X-Copy-From") != null ||
+                request.getHeaderString("X-Object-Manifest") != null ||
+                query.containsKey("multipart-manifest"))) {
+            // these would reach objects the URL was not signed for
+            request.abortWith(Response.status(Response.Status.BAD_REQUEST).build());
+            return;
+        }
+
+        BounceResourceConfig config = (BounceResourceConfig) application;
+        String identity = account.startsWith("AUTH_") ? account.substring("AUTH_".length()) : account;
+        List<String> keys = config.getTempUrlKeys().getKeys(identity, container);
+        if (keys.isEmpty() || !TempUrlKeys.matches(keys, methods, expires, signed, signature)) {
+            abort(request, "temp url signature mismatch");
+            return;
+        }
+
+        String token = config.getTempUrlToken(identity);
+        if (token == null) {
+            abort(request, "no blob store for " + identity);
+            return;
+        }
+        request.getHeaders().putSingle("X-Auth-Token", token);
+    }
+
+    private static String first(MultivaluedMap<String, String> query, String name, String legacyName) {
+        String value = query.getFirst(name);
+        return value != null ? value : query.getFirst(legacyName);
+    }
+
+    private void abort(ContainerRequestContext request, String reason) {
+        logger.debug("rejecting {} {}: {}", request.getMethod(), request.getUriInfo().getPath(), reason);
+        request.abortWith(Response.status(Response.Status.UNAUTHORIZED).build());
+    }
+}
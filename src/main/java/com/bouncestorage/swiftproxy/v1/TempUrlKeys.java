@@ -0,0 +1,270 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.ws.rs.core.HttpHeaders;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+import com.bouncestorage.swiftproxy.SwiftProxy;
+import com.bouncestorage.swiftproxy.Utils;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The TempURL keys of accounts and containers.  Keys are set with the
+ * usual {@code X-Account-Meta-Temp-URL-Key} and
+ * {@code X-Container-Meta-Temp-URL-Key} headers (and their {@code -2}
+ * variants) and kept as metadata of empty objects in the
+ * {@value #METADATA_CONTAINER} container of the account, since the backends
+ * have nowhere else to put them.  The keys of an account and all of its
+ * containers are loaded together and cached per account, so that a TempURL
+ * naming a container without keys, which anyone can send, costs no backend
+ * request either.  Changes made through this proxy invalidate the cache at
+ * once, changes made through other nodes show up after
+ * {@code swiftproxy.temp-url.key-ttl}.  The keys of a container are dropped
+ * along with it.
+ */
+public final class TempUrlKeys {
+    public static final String METADATA_CONTAINER = "swiftproxy-metadata";
+    private static final String KEYS_OBJECT = "temp-url-keys";
+    private static final List<String> KEY_NAMES = ImmutableList.of("temp-url-key", "temp-url-key-2");
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver;
+    // identity -> key object name -> keys
+    private final LoadingCache<String, Map<String, List<String>>> keys;
+
+    public TempUrlKeys(Properties properties,
+                       Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver) {
+        this.resolver = requireNonNull(resolver);
+        keys = CacheBuilder.newBuilder()
+                .expireAfterWrite(Long.parseLong(properties.getProperty(
+                        SwiftProxy.PROPERTY_TEMP_URL_KEY_TTL, "60")), TimeUnit.SECONDS)
+                .maximumSize(100000)
+                .build(new CacheLoader<String, Map<String, List<String>>>() {
+                    @Override
+                    public Map<String, List<String>> load(String identity) {
+                        return read(identity);
+                    }
+                });
+    }
+
+    private static String objectName(@Nullable String container) {
+        // container names cannot contain a slash, so this never collides
+        return container == null ? KEYS_OBJECT : KEYS_OBJECT + "/" + container;
+    }
+
+    /** The keys that may sign URLs for objects in this container, account keys first. */
+    List<String> getKeys(String identity, String container) {
+        Map<String, List<String>> account = keys.getUnchecked(identity);
+        List<String> all = new ArrayList<>(account.getOrDefault(objectName(null), ImmutableList.of()));
+        all.addAll(account.getOrDefault(objectName(container), ImmutableList.of()));
+        return all;
+    }
+
+    /** Lists the key objects of an account, and only looks up the ones that exist. */
+    private Map<String, List<String>> read(String identity) {
+        BounceResourceConfig.AuthenticatedBlobStore blobStores = resolver.apply(identity);
+        if (blobStores == null) {
+            return ImmutableMap.of();
+        }
+        BlobStore blobStore = blobStores.get(METADATA_CONTAINER);
+        ImmutableMap.Builder<String, List<String>> builder = ImmutableMap.builder();
+        try {
+            for (StorageMetadata sm : Utils.crawlBlobStore(blobStore, METADATA_CONTAINER,
+                    new ListContainerOptions().prefix(KEYS_OBJECT))) {
+                String name = sm.getName();
+                if (sm.getType() != StorageType.BLOB ||
+                        !(name.equals(KEYS_OBJECT) || name.startsWith(KEYS_OBJECT + "/"))) {
+                    continue;
+                }
+                BlobMetadata meta = blobStore.blobMetadata(METADATA_CONTAINER, name);
+                if (meta == null) {
+                    continue;
+                }
+                List<String> found = new ArrayList<>();
+                for (String keyName : KEY_NAMES) {
+                    String key = meta.getUserMetadata().get(keyName);
+                    if (key != null && !key.isEmpty()) {
+                        found.add(key);
+                    }
+                }
+                if (!found.isEmpty()) {
+                    builder.put(name, ImmutableList.copyOf(found));
+                }
+            }
+        } catch (ContainerNotFoundException e) {
+            return ImmutableMap.of();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Applies the Temp-URL-Key headers of an account or container POST, with
+     * {@code kind} being "Account" or "Container".  Returns whether there
+     * were any.
+     */
+    boolean update(BlobStore blobStore, String identity, @Nullable String container, String kind,
+                   HttpHeaders headers) {
+        Map<String, String> changes = new HashMap<>();
+        for (String name : KEY_NAMES) {
+            String value = headers.getHeaderString("X-" + kind + "-Meta-" + name);
+            if (value != null) {
+                changes.put(name, value);
+            }
+            if (headers.getHeaderString("X-Remove-" + kind + "-Meta-" + name) != null) {
+                changes.put(name, "");
+            }
+        }
+        if (changes.isEmpty()) {
+            return false;
+        }
+
+        String object = objectName(container);
+        Map<String, String> metadata = new HashMap<>();
+        blobStore.createContainerInLocation(null, METADATA_CONTAINER);
+        BlobMetadata current = blobStore.blobMetadata(METADATA_CONTAINER, object);
+        if (current != null) {
+            metadata.putAll(current.getUserMetadata());
+        }
+        changes.forEach((name, value) -> {
+            if (value.isEmpty()) {
+                metadata.remove(name);
+            } else {
+                metadata.put(name, value);
+            }
+        });
+        if (metadata.isEmpty()) {
+            blobStore.removeBlob(METADATA_CONTAINER, object);
+        } else {
+            blobStore.putBlob(METADATA_CONTAINER, blobStore.blobBuilder(object)
+                    .userMetadata(metadata)
+                    .payload(new byte[0])
+                    .build());
+        }
+        keys.invalidate(identity);
+        logger.debug("updated temp url keys of {}/{}", identity, container);
+        return true;
+    }
+
+    /**
+     * Drops the keys of a container that was just deleted, so that a
+     * container created later under the same name does not inherit them.
+     */
+    void containerDeleted(String identity, String container) {
+        BounceResourceConfig.AuthenticatedBlobStore blobStores = resolver.apply(identity);
+        if (blobStores != null) {
+            try {
+                blobStores.get(METADATA_CONTAINER).removeBlob(METADATA_CONTAINER, objectName(container));
+            } catch (ContainerNotFoundException e) {
+                // no keys were ever set in this account
+            } catch (RuntimeException e) {
+                logger.warn("failed to drop the temp url keys of {}/{}", identity, container, e);
+            }
+        }
+        keys.invalidate(identity);
+    }
+
+    /**
+     * Checks a TempURL signature, either hex encoded or as
+     * {@code <digest>:<base64>}, against every key.  HMAC-SHA1 and
+     * HMAC-SHA256 signatures are accepted, told apart by their length.
+     */
+    static boolean matches(Collection<String> keys, Collection<String> methods, String expires,
+                           String path, String signature) {
+        String algorithm;
+        byte[] expected;
+        try {
+            int colon = signature.indexOf(':');
+            if (colon >= 0) {
+                algorithm = hmacAlgorithm(signature.substring(0, colon));
+                expected = Base64.getUrlDecoder().decode(
+                        signature.substring(colon + 1).replace('+', '-').replace('/', '_').replace("=", ""));
+            } else {
+                expected = BaseEncoding.base16().lowerCase().decode(signature.toLowerCase());
+                algorithm = expected.length == 20 ? "HmacSHA1" : expected.length == 32 ? "HmacSHA256" : null;
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (algorithm == null) {
+            return false;
+        }
+        for (String key : keys) {
+            for (String method : methods) {
+                byte[] body = (method + "\n" + expires + "\n" + path).getBytes(StandardCharsets.UTF_8);
+                if (MessageDigest.isEqual(hmac(algorithm, key, body), expected)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String hmacAlgorithm(String digest) {
+        switch (digest) {
+            case "sha1":
+                return "HmacSHA1";
+            case "sha256":
+                return "HmacSHA256";
+            default:
+                return null;
+        }
+    }
+
+    private static byte[] hmac(String algorithm, String key, byte[] body) {
+        try {
+            Mac mac = Mac.getInstance(algorithm);
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), algorithm));
+            return mac.doFinal(body);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static java.util.Objects.requireNonNull;
+
+import static com.google.common.base.Throwables.propagate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import com.bouncestorage.swiftproxy.BounceResourceConfig;
+import com.bouncestorage.swiftproxy.SwiftProxy;
+import com.bouncestorage.swiftproxy.Utils;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.ContainerNotFoundException;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the object count and bytes used of every account and container in
+ * memory, so that HEAD requests are answered without listing anything.
+ * Counters are adjusted by the {@link ObjectTracker} as objects are written
+ * and deleted through the proxy, and corrected by a rate-limited crawl of
+ * the backend, which also picks up writes made behind the proxy's back.
+ * Each container is recounted as a task of its own on a dedicated pool, so
+ * that a large container neither holds up the others nor the snapshots.
+ * Bytes are the sizes clients see, as reported in container listings, not
+ * the stored sizes of compressed or deduplicated objects.  The proxy's own
+ * containers are left out, so that deduplicated chunks are not counted
+ * twice.  Counters are snapshotted periodically so that a restart does not
+ * have to crawl everything before answering.  The containers of each
+ * account are kept sorted by name, which doubles as a cache for account
+ * listings.
+ */
+public final class UsageTracker {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Path file;
+    private final double rate;
+    private final long listingTtl;
+    private final Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver;
+    private final Predicate<String> encoded;
+    private final Predicate<String> reserved;
+    private final ScheduledExecutorService executor;
+    private final ExecutorService reconciler;
+    private final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+    private final Map<String, AccountUsage> accounts = new ConcurrentHashMap<>();
+
+    public UsageTracker(Properties properties,
+                        Function<String, BounceResourceConfig.AuthenticatedBlobStore> resolver,
+                        Predicate<String> encoded, Predicate<String> reserved) {
+        this.resolver = requireNonNull(resolver);
+        this.encoded = requireNonNull(encoded);
+        this.reserved = requireNonNull(reserved);
+        String path = properties.getProperty(SwiftProxy.PROPERTY_USAGE_FILE);
+        file = path == null ? null : Paths.get(path);
+        rate = Double.parseDouble(properties.getProperty(SwiftProxy.PROPERTY_USAGE_RECONCILE_RATE, "10000"));
+        listingTtl = TimeUnit.SECONDS.toMillis(Long.parseLong(
+                properties.getProperty(SwiftProxy.PROPERTY_ACCOUNT_LISTING_TTL, "60")));
+        long persistInterval = Long.parseLong(
+                properties.getProperty(SwiftProxy.PROPERTY_USAGE_PERSIST_INTERVAL, "60"));
+        long reconcileInterval = Long.parseLong(
+                properties.getProperty(SwiftProxy.PROPERTY_USAGE_RECONCILE_INTERVAL, "3600"));
+        int threads = Integer.parseInt(properties.getProperty(SwiftProxy.PROPERTY_USAGE_RECONCILE_THREADS, "4"));
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("usage-tracker-%d").setDaemon(true).build());
+        reconciler = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("usage-reconcile-%d").setDaemon(true).build());
+
+        if (file != null) {
+            try {
+                recover();
+            } catch (IOException e) {
+                throw propagate(e);
+            }
+            executor.scheduleWithFixedDelay(this::persistQuietly, persistInterval, persistInterval,
+                    TimeUnit.SECONDS);
+        }
+        executor.scheduleWithFixedDelay(() -> accounts.forEach(this::scheduleReconcile),
+                reconcileInterval, reconcileInterval, TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        reconciler.shutdownNow();
+        persistQuietly();
+    }
+
+    /** Starts counting an identity's usage if it is not known yet. */
+    public void attach(String identity) {
+        AccountUsage account = account(identity);
+        if (account.reconciledAt == 0) {
+            scheduleReconcile(identity, account);
+        }
+    }
+
+    /** Adjusts the usage of a container after a write or delete through the proxy. */
+    void add(String identity, String container, long objects, long bytes) {
+        AccountUsage account = account(identity);
+        Usage usage = account.containers.computeIfAbsent(container, k -> new Usage());
+        usage.objects.add(objects);
+        usage.bytes.add(bytes);
+        account.objects.add(objects);
+        account.bytes.add(bytes);
+    }
+
+    /** Records a container that was just created, and so is empty. */
+    void containerCreated(String identity, String container) {
+        containerDeleted(identity, container);
+        Usage usage = new Usage();
+        usage.reconciledAt = System.currentTimeMillis();
+        account(identity).containers.putIfAbsent(container, usage);
+    }
+
+    /** Starts counting a container that is known to exist, unless it is counted already. */
+    void track(String identity, String container) {
+        AccountUsage account = account(identity);
+        Usage usage = account.containers.computeIfAbsent(container, k -> new Usage());
+        if (usage.reconciledAt == 0) {
+            scheduleReconcile(identity, account, container, usage, null);
+        }
+    }
+
+    void containerDeleted(String identity, String container) {
+        AccountUsage account = account(identity);
+        Usage usage = account.containers.remove(container);
+        if (usage != null) {
+            account.objects.add(-usage.objects.sum());
+            account.bytes.add(-usage.bytes.sum());
+        }
+    }
+
+    /** Returns the usage of a container, or null if it has not been counted yet. */
+    @Nullable
+    Usage getContainerUsage(String identity, String container) {
+        Usage usage = account(identity).containers.get(container);
+        return usage == null || usage.reconciledAt == 0 ? null : usage;
+    }
+
+    /**
+     * Returns the usage of an account, or null if it has not been counted
+     * yet, in which case counting it is started.
+     */
+    @Nullable
+    AccountUsage getAccountUsage(String identity) {
+        AccountUsage account = account(identity);
+        if (account.reconciledAt == 0) {
+            scheduleReconcile(identity, account);
+            return null;
+        }
+        return account;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("accounts", accounts.size());
+        stats.put("containers", accounts.values().stream().mapToInt(a -> a.containers.size()).sum());
+        stats.put("unreconciled_accounts", accounts.values().stream().filter(a -> a.reconciledAt == 0).count());
+        return stats;
+    }
+
+    private AccountUsage account(String identity) {
+        return accounts.computeIfAbsent(identity, k -> new AccountUsage());
+    }
+
+    private void scheduleReconcile(String identity, AccountUsage account) {
+        if (account.reconciling.compareAndSet(false, true)) {
+            reconciler.execute(() -> reconcile(identity, account));
+        }
+    }
+
+    /**
+     * Recounts a container unless it is being recounted already, and then
+     * runs done, if any.  Returns false if nothing was scheduled.
+     */
+    private boolean scheduleReconcile(String identity, AccountUsage account, String container, Usage usage,
+                                      @Nullable Runnable done) {
+        if (!usage.reconciling.compareAndSet(false, true)) {
+            return false;
+        }
+        reconciler.execute(() -> {
+            try {
+                BounceResourceConfig.AuthenticatedBlobStore blobStore = resolver.apply(identity);
+                if (blobStore != null) {
+                    reconcile(account, container, blobStore.get(container));
+                }
+            } finally {
+                usage.reconciling.set(false);
+                if (done != null) {
+                    done.run();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns the containers of an account in name order, listing them from
+     * the backend first if the cached list is older than its time to live.
+     */
+    NavigableMap<String, Usage> getContainers(String identity, BlobStore blobStore) {
+        AccountUsage account = account(identity);
+        if (System.currentTimeMillis() - account.listedAt > listingTtl) {
+            refreshContainers(identity, account, blobStore, true);
+        }
+        return Collections.unmodifiableNavigableMap(account.containers);
+    }
+
+    /**
+     * Brings the container set of an account up to date, and, with
+     * countNew, starts counting the containers that are new to it.
+     */
+    private Set<String> refreshContainers(String identity, AccountUsage account, BlobStore blobStore,
+                                          boolean countNew) {
+        long started = System.currentTimeMillis();
+        Set<String> names = blobStore.list().stream()
+                .map(StorageMetadata::getName)
+                .filter(name -> !reserved.test(name))
+                .collect(Collectors.toSet());
+        // containers created while listing may be missing from it
+        account.containers.entrySet().stream()
+                .filter(e -> !names.contains(e.getKey()) && e.getValue().created < started)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList())
+                .forEach(name -> containerDeleted(identity, name));
+        for (String name : names) {
+            Usage usage = account.containers.computeIfAbsent(name, k -> new Usage());
+            if (countNew && usage.reconciledAt == 0) {
+                scheduleReconcile(identity, account, name, usage, null);
+            }
+        }
+        account.listedAt = started;
+        return names;
+    }
+
+    /**
+     * Brings the container set of an account up to date and recounts each of
+     * them.  The account counts as reconciled once every recount is done.
+     */
+    private void reconcile(String identity, AccountUsage account) {
+        BounceResourceConfig.AuthenticatedBlobStore blobStore = resolver.apply(identity);
+        if (blobStore == null) {
+            logger.debug("cannot count the usage of {} without credentials", identity);
+            account.reconciling.set(false);
+            return;
+        }
+        long started = System.currentTimeMillis();
+        Set<String> names;
+        try {
+            names = refreshContainers(identity, account, blobStore.get(), false);
+        } catch (RuntimeException e) {
+            logger.warn("failed to count the usage of {}", identity, e);
+            account.reconciling.set(false);
+            return;
+        }
+        AtomicInteger remaining = new AtomicInteger(names.size() + 1);
+        Runnable counted = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                account.reconciledAt = started;
+                account.reconciling.set(false);
+            }
+        };
+        for (String name : names) {
+            Usage usage = account.containers.get(name);
+            // a container already being recounted is as good as done
+            if (usage == null || !scheduleReconcile(identity, account, name, usage, counted)) {
+                counted.run();
+            }
+        }
+        counted.run();
+    }
+
+    /**
+     * Recounts a container.  Writes made while it is crawled may be counted
+     * twice if the crawl sees them, which the next recount corrects.
+     */
+    private void reconcile(AccountUsage account, String container, BlobStore blobStore) {
+        Usage usage = account.containers.get(container);
+        if (usage == null) {
+            return;
+        }
+        RateLimiter limiter = limiters.computeIfAbsent(blobStore.getContext().unwrap().getId(),
+                provider -> RateLimiter.create(rate));
+        long started = System.currentTimeMillis();
+        long objectsBefore = usage.objects.sum();
+        long bytesBefore = usage.bytes.sum();
+        long objects = 0;
+        long bytes = 0;
+        boolean isEncoded = encoded.test(container);
+        try {
+            for (StorageMetadata meta : Utils.crawlBlobStore(blobStore, container,
+                    new ListContainerOptions().recursive())) {
+                limiter.acquire();
+                objects++;
+                bytes += ObjectResource.logicalSize(ObjectResource.detailedMetadata(blobStore, container, meta,
+                        isEncoded));
+            }
+        } catch (ContainerNotFoundException e) {
+            if (account.containers.remove(container, usage)) {
+                account.objects.add(-usage.objects.sum());
+                account.bytes.add(-usage.bytes.sum());
+            }
+            return;
+        } catch (RuntimeException e) {
+            logger.warn("failed to count the usage of {}", container, e);
+            return;
+        }
+        if (account.containers.get(container) != usage) {
+            return;
+        }
+        usage.objects.add(objects - objectsBefore);
+        usage.bytes.add(bytes - bytesBefore);
+        account.objects.add(objects - objectsBefore);
+        account.bytes.add(bytes - bytesBefore);
+        usage.reconciledAt = started;
+    }
+
+    private void recover() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        Map<String, AccountRecord> records = MAPPER.readValue(file.toFile(),
+                new TypeReference<Map<String, AccountRecord>>() { });
+        records.forEach((identity, record) -> {
+            AccountUsage account = account(identity);
+            record.containers.forEach((container, c) -> {
+                Usage usage = new Usage();
+                usage.objects.add(c.objects);
+                usage.bytes.add(c.bytes);
+                usage.reconciledAt = c.reconciledAt;
+                account.containers.put(container, usage);
+                account.objects.add(c.objects);
+                account.bytes.add(c.bytes);
+            });
+            account.reconciledAt = record.reconciledAt;
+        });
+        logger.info("recovered the usage of {} accounts", records.size());
+    }
+
+    private void persistQuietly() {
+        if (file == null) {
+            return;
+        }
+        Map<String, AccountRecord> records = new HashMap<>();
+        accounts.forEach((identity, account) -> {
+            AccountRecord record = new AccountRecord();
+            record.reconciledAt = account.reconciledAt;
+            account.containers.forEach((container, usage) -> {
+                ContainerRecord c = new ContainerRecord();
+                c.objects = usage.objects.sum();
+                c.bytes = usage.bytes.sum();
+                c.reconciledAt = usage.reconciledAt;
+                record.containers.put(container, c);
+            });
+            records.put(identity, record);
+        });
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, MAPPER.writeValueAsBytes(records));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("failed to save usage to {}", file, e);
+        }
+    }
+
+    /** The object count and bytes used of a container. */
+    static class Usage {
+        final long created = System.currentTimeMillis();
+        final LongAdder objects = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final AtomicBoolean reconciling = new AtomicBoolean();
+        volatile long reconciledAt;
+
+        long getObjectCount() {
+            return objects.sum();
+        }
+
+        long getBytesUsed() {
+            return bytes.sum();
+        }
+    }
+
+    /** The totals of an account, kept alongside those of its containers. */
+    static final class AccountUsage extends Usage {
+        final ConcurrentNavigableMap<String, Usage> containers = new ConcurrentSkipListMap<>();
+        volatile long listedAt;
+
+        int getContainerCount() {
+            return containers.size();
+        }
+    }
+
+    static final class AccountRecord {
+        @JsonProperty("reconciled_at")
+        long reconciledAt;
+        @JsonProperty
+        Map<String, ContainerRecord> containers = new HashMap<>();
+    }
+
+    static final class ContainerRecord {
+        @JsonProperty
+        long objects;
+        @JsonProperty
+        long bytes;
+        @JsonProperty("reconciled_at")
+        long reconciledAt;
+    }
+}
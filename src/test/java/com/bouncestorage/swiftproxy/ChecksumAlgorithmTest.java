@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.io.ByteStreams;
+
+import org.junit.Test;
+
+public final class ChecksumAlgorithmTest {
+    private static String digest(ChecksumAlgorithm algorithm, String input) {
+        byte[] bytes = input.getBytes(StandardCharsets.US_ASCII);
+        ChecksumAlgorithm.Digest digest = algorithm.newDigest();
+        digest.update(bytes, 0, bytes.length);
+        return digest.getValue();
+    }
+
+    @Test
+    public void testKnownValues() {
+        assertThat(digest(ChecksumAlgorithm.CRC32C, "123456789")).isEqualTo("e3069283");
+        assertThat(digest(ChecksumAlgorithm.XXHASH64, "")).isEqualTo("ef46db3751d8e999");
+        assertThat(digest(ChecksumAlgorithm.XXHASH64, "abc")).isEqualTo("44bc2cf5ad770999");
+        assertThat(digest(ChecksumAlgorithm.MD5, "abc")).isEqualTo("900150983cd24fb0d6963f7d28e17f72");
+    }
+
+    @Test
+    public void testStreamingMatchesOneShot() {
+        byte[] data = new byte[1000];
+        new Random(0).nextBytes(data);
+        for (ChecksumAlgorithm algorithm : ChecksumAlgorithm.values()) {
+            ChecksumAlgorithm.Digest whole = algorithm.newDigest();
+            whole.update(data, 0, data.length);
+            ChecksumAlgorithm.Digest pieces = algorithm.newDigest();
+            for (int off = 0; off < data.length; off += 7) {
+                pieces.update(data, off, Math.min(7, data.length - off));
+            }
+            assertThat(pieces.getValue()).isEqualTo(whole.getValue());
+        }
+    }
+
+    @Test
+    public void testInputStreamMismatch() throws IOException {
+        AtomicReference<String> value = new AtomicReference<>();
+        InputStream ok = new ChecksumInputStream(new ByteArrayInputStream("abc".getBytes(StandardCharsets.US_ASCII)),
+                ChecksumAlgorithm.XXHASH64, "44BC2CF5AD770999", value::set);
+        ByteStreams.toByteArray(ok);
+        assertThat(value.get()).isEqualTo("44bc2cf5ad770999");
+
+        ChecksumInputStream bad = new ChecksumInputStream(
+                new ByteArrayInputStream("abd".getBytes(StandardCharsets.US_ASCII)),
+                ChecksumAlgorithm.XXHASH64, "44bc2cf5ad770999", value::set);
+        try {
+            ByteStreams.toByteArray(bad);
+            fail("expected checksum mismatch");
+        } catch (IOException e) {
+            assertThat(bad.isMismatch()).isTrue();
+        }
+    }
+
+    @Test
+    public void testInputStreamHoldsBackLastByte() throws IOException {
+        byte[] data = new byte[1000];
+        new Random(0).nextBytes(data);
+        ChecksumAlgorithm.Digest digest = ChecksumAlgorithm.CRC32C.newDigest();
+        digest.update(data, 0, data.length);
+        String expected = digest.getValue();
+
+        // a consumer that stops at the content length gets everything when
+        // the body matches, in whatever sizes it reads
+        for (int size : new int[]{1, 2, 7, 4096}) {
+            InputStream ok = new ChecksumInputStream(new ByteArrayInputStream(data),
+                    ChecksumAlgorithm.CRC32C, expected, value -> { });
+            byte[] out = new byte[data.length];
+            int n = 0;
+            while (n < data.length) {
+                int r = ok.read(out, n, Math.min(size, data.length - n));
+                assertThat(r).isPositive();
+                n += r;
+            }
+            assertThat(out).isEqualTo(data);
+        }
+
+        // but never sees the last byte of a body that does not match
+        byte[] corrupt = data.clone();
+        corrupt[0] ^= 1;
+        InputStream bad = new ChecksumInputStream(new ByteArrayInputStream(corrupt),
+                ChecksumAlgorithm.CRC32C, expected, value -> { });
+        byte[] out = new byte[data.length];
+        int n = 0;
+        try {
+            while (n < data.length) {
+                n += bad.read(out, n, data.length - n);
+            }
+            fail("expected checksum mismatch");
+        } catch (IOException e) {
+            assertThat(n).isLessThan(data.length);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bouncestorage.swiftproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class UtilsTest {
+    private static final String CONTAINER = "crawl";
+
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private ExecutorService executor;
+    private List<String> names;
+
+    @Before
+    public void setUp() {
+        context = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, CONTAINER);
+        executor = Executors.newCachedThreadPool();
+        // several pages, half of them under one deep prefix
+        names = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            String name = (i % 2 == 0 ? "logs/2015-01-" + (i % 28) + "/" : "") + String.format("%05d", i * 7919 % 10007);
+            names.add(name);
+            blobStore.putBlob(CONTAINER, blobStore.blobBuilder(name).payload("").build());
+        }
+        names.sort(null);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        context.close();
+    }
+
+    private List<String> crawl(boolean ordered) {
+        try (Stream<StorageMetadata> stream = Utils.crawlBlobStoreParallel(blobStore, CONTAINER,
+                new ListContainerOptions(), executor, 4, ordered)) {
+            return stream.map(StorageMetadata::getName).collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testParallelCrawlOrdered() {
+        assertThat(crawl(true)).containsExactly(names.toArray(new String[0]));
+    }
+
+    @Test
+    public void testParallelCrawlUnordered() {
+        List<String> crawled = crawl(false);
+        assertThat(crawled).hasSize(names.size());
+        assertThat(crawled).containsOnly(names.toArray(new String[0]));
+    }
+
+    @Test
+    public void testSplitPoints() {
+        SortedSet<String> points = Utils.splitPoints("a/1/10", "a/1/19", "/0123456789a", 2);
+        assertThat(points).contains("a/1/2", "a/2", "a0");
+        assertThat(points.first()).isGreaterThan("a/1/19");
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import org.apache.commons.io.FileUtils;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class WriteBehindJournalTest {
+    private static final String IDENTITY = "foo";
+    private static final String CONTAINER = "container";
+    private static final String BLOB_NAME = "blob";
+    private final String path = Joiner.on("/").join(TestUtils.ACCOUNT_PATH, CONTAINER, BLOB_NAME);
+
+    private final AtomicBoolean uploading = new AtomicBoolean(true);
+    private BlobStore blobStore;
+    private Path directory;
+    private SwiftProxy proxy;
+    private WebTarget target;
+    private String authToken;
+
+    @Before
+    public void setUp() throws Exception {
+        blobStore = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class).getBlobStore();
+        directory = Files.createTempDirectory("swiftproxy-journal");
+        startProxy();
+
+        Response resp = target.path("/auth/v1.0").request()
+                .header("X-auth-user", IDENTITY)
+                .header("X-auth-key", IDENTITY)
+                .get();
+        authToken = resp.getHeaderString("x-auth-token");
+        assertThat(authToken).isNotNull();
+        resp = target.path(TestUtils.ACCOUNT_PATH + "/" + CONTAINER).request()
+                .header("x-auth-token", authToken)
+                .post(null);
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.NO_CONTENT.getStatusCode());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (proxy != null) {
+            proxy.stop();
+        }
+        blobStore.getContext().close();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        putObject(true, "foo");
+        awaitUploads();
+        assertThat(readBackend()).isEqualTo("foo");
+        assertThat(getObject()).isEqualTo("foo");
+    }
+
+    @Test
+    public void testServedFromJournal() throws Exception {
+        uploading.set(false);
+        putObject(true, "foo");
+        assertThat(getObject()).isEqualTo("foo");
+        assertThat(blobStore.blobExists(CONTAINER, BLOB_NAME)).isFalse();
+    }
+
+    @Test
+    public void testSupersededByPut() throws Exception {
+        uploading.set(false);
+        putObject(true, "foo");
+        putObject(false, "bar");
+        assertThat(getObject()).isEqualTo("bar");
+
+        releaseUploads();
+        awaitUploads();
+        assertThat(readBackend()).isEqualTo("bar");
+        assertThat(getObject()).isEqualTo("bar");
+    }
+
+    @Test
+    public void testSupersededByDelete() throws Exception {
+        uploading.set(false);
+        putObject(true, "foo");
+        Response resp = target.path(path).request().header("x-auth-token", authToken).delete();
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.NO_CONTENT.getStatusCode());
+        resp = target.path(path).request().header("x-auth-token", authToken).get();
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.NOT_FOUND.getStatusCode());
+
+        releaseUploads();
+        awaitUploads();
+        assertThat(blobStore.blobExists(CONTAINER, BLOB_NAME)).isFalse();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        uploading.set(false);
+        putObject(true, "foo");
+        proxy.stop();
+
+        startProxy();
+        assertThat(blobStore.blobExists(CONTAINER, BLOB_NAME)).isFalse();
+        releaseUploads();
+        awaitBackend();
+        assertThat(readBackend()).isEqualTo("foo");
+    }
+
+    @Test
+    public void testReplayTruncatesTornRecord() throws Exception {
+        uploading.set(false);
+        putObject(true, "foo");
+        proxy.stop();
+
+        Path segment = segment();
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            // a record whose length was never committed: magic, the
+            // placeholder length and part of a body
+            ByteBuffer torn = ByteBuffer.allocate(16);
+            torn.putInt(0x53574a31).putLong(-1).put("torn".getBytes(StandardCharsets.UTF_8)).flip();
+            channel.write(torn);
+        }
+
+        startProxy();
+        assertThat(Files.size(segment)).isEqualTo(size);
+        releaseUploads();
+        awaitBackend();
+        assertThat(readBackend()).isEqualTo("foo");
+    }
+
+    private void startProxy() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(SwiftProxy.PROPERTY_ENDPOINT, "http://127.0.0.1:0");
+        properties.setProperty(SwiftProxy.PROPERTY_WRITE_BEHIND_DIR, directory.toString());
+        proxy = SwiftProxy.Builder.builder()
+                .overrides(properties)
+                .locator(this::locateBlobStore)
+                .build();
+        proxy.start();
+        Client c = ClientBuilder.newClient();
+        target = c.target(proxy.getEndpoint());
+    }
+
+    private Map.Entry<String, BlobStore> locateBlobStore(String identity, String container, String blob) {
+        if (!IDENTITY.equals(identity)) {
+            return null;
+        }
+        // uploaders look the blob store up without a container and park
+        // their records when there is none, while requests name one
+        if (container == null && !uploading.get()) {
+            return null;
+        }
+        return Maps.immutableEntry(IDENTITY, blobStore);
+    }
+
+    private void releaseUploads() {
+        uploading.set(true);
+        // retries the parked uploads
+        proxy.setBlobStoreLocator(this::locateBlobStore);
+    }
+
+    private Path segment() throws Exception {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "journal-*.log")) {
+            return stream.iterator().next();
+        }
+    }
+
+    private void putObject(boolean writeBehind, String data) {
+        Response resp = target.path(path).request()
+                .header("x-auth-token", authToken)
+                .header(WriteBehindJournal.WRITE_BEHIND_HEADER, writeBehind)
+                .put(Entity.entity(data.getBytes(StandardCharsets.UTF_8), MediaType.APPLICATION_OCTET_STREAM));
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.CREATED.getStatusCode());
+    }
+
+    private String getObject() {
+        Response resp = target.path(path).request().header("x-auth-token", authToken).get();
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+        return resp.readEntity(String.class);
+    }
+
+    private String readBackend() throws Exception {
+        Blob blob = blobStore.getBlob(CONTAINER, BLOB_NAME);
+        assertThat(blob).isNotNull();
+        try (InputStream is = blob.getPayload().openStream()) {
+            return new String(ByteStreams.toByteArray(is), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void awaitUploads() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            Response resp = target.path("/admin/write-behind").request()
+                    .header("x-auth-token", authToken)
+                    .get();
+            Map<?, ?> stats = new ObjectMapper().readValue(resp.readEntity(String.class), Map.class);
+            if (((Number) stats.get("queue_depth")).intValue() == 0) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("journal was not drained");
+    }
+
+    private void awaitBackend() throws Exception {
+        for (int i = 0; i < 100 && !blobStore.blobExists(CONTAINER, BLOB_NAME); i++) {
+            Thread.sleep(100);
+        }
+    }
+}
@@ -18,8 +18,11 @@ package com.bouncestorage.swiftproxy.v1;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
@@ -33,6 +36,8 @@ import com.bouncestorage.swiftproxy.SwiftProxy;
 import com.bouncestorage.swiftproxy.TestUtils;
 import com.google.common.base.Joiner;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -70,10 +75,26 @@ public final class AccountResourceTest {
         assertThat(entries).containsOnly(new AccountResource.ContainerEntry(CONTAINER));
     }
 
+    @Test
+    public void testDelimiter() throws Exception {
+        String authToken = null;
+        for (String container : new String[]{"a-1", "a-2", "b", "c-1"}) {
+            authToken = TestUtils.createContainer(target, container);
+        }
+
+        String listing = target.path(TestUtils.ACCOUNT_PATH)
+                .queryParam("delimiter", "-")
+                .request()
+                .header("X-Auth-Token", authToken)
+                .get(String.class);
+        assertThat(listing).isEqualTo("a-\nb\nc-\n");
+    }
+
     @Test
     public void testHead() throws Exception {
         Response response = target.path(TestUtils.ACCOUNT_PATH).queryParam("format", "json").request().head();
         assertThat(response.getStatus()).isEqualTo(Response.Status.NO_CONTENT.getStatusCode());
+        assertThat(response.getHeaderString("X-Trans-Id")).startsWith("tx");
     }
 
     @Test
@@ -94,6 +115,55 @@ public final class AccountResourceTest {
         assertThat(result.numberNotFound).isEqualTo(1);
     }
 
+    @Test
+    public void testBulkDeleteMissingObject() throws Exception {
+        String authToken = TestUtils.createContainer(target, CONTAINER);
+        Response response = target.path(TestUtils.ACCOUNT_PATH + "/" + CONTAINER + "/present")
+                .request()
+                .header("X-Auth-Token", authToken)
+                .put(Entity.entity("foo".getBytes(StandardCharsets.UTF_8), MediaType.APPLICATION_OCTET_STREAM));
+        assertThat(response.getStatus()).isEqualTo(Response.Status.CREATED.getStatusCode());
+
+        String[] removeObjects = {"/" + CONTAINER + "/present", "/" + CONTAINER + "/missing"};
+        response = target.path(TestUtils.ACCOUNT_PATH)
+                .queryParam("bulk-delete", "")
+                .request()
+                .header("X-Auth-Token", authToken)
+                .post(Entity.entity(Joiner.on("\n").join(removeObjects), MediaType.TEXT_PLAIN));
+        assertThat(response.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+        AccountResource.BulkDeleteResult result = response.readEntity(AccountResource.BulkDeleteResult.class);
+        assertThat(result.numberDeleted).isEqualTo(1);
+        assertThat(result.numberNotFound).isEqualTo(1);
+    }
+
+    @Test
+    public void testExtractArchive() throws Exception {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(archive))) {
+            for (String name : new String[]{"c1/a", "c1/dir/b", "./c2/c"}) {
+                byte[] data = name.getBytes(StandardCharsets.UTF_8);
+                TarArchiveEntry entry = new TarArchiveEntry(name);
+                entry.setSize(data.length);
+                tar.putArchiveEntry(entry);
+                tar.write(data);
+                tar.closeArchiveEntry();
+            }
+        }
+
+        String authToken = TestUtils.getAuthToken(target);
+        Response response = target.path(TestUtils.ACCOUNT_PATH)
+                .queryParam("extract-archive", "tar.gz")
+                .request()
+                .header("X-Auth-Token", authToken)
+                .put(Entity.entity(archive.toByteArray(), MediaType.APPLICATION_OCTET_STREAM));
+        assertThat(response.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+        ArchiveExtractor.Result result = response.readEntity(ArchiveExtractor.Result.class);
+        assertThat(result.numberFilesCreated).isEqualTo(3);
+        assertThat(result.errors).isEmpty();
+        assertThat(listContainers(Optional.of(authToken))).containsOnly(
+                new AccountResource.ContainerEntry("c1"), new AccountResource.ContainerEntry("c2"));
+    }
+
     List<AccountResource.ContainerEntry> listContainers() throws Exception {
         return listContainers(Optional.empty());
     }
@@ -16,10 +16,16 @@
 
 package com.bouncestorage.swiftproxy.v1;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 import java.io.InputStream;
 import java.net.URI;
 import java.util.Properties;
 
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Response;
+
 import com.bouncestorage.swiftproxy.SwiftProxy;
 import com.bouncestorage.swiftproxy.TestUtils;
 import com.google.common.io.Resources;
@@ -75,4 +81,31 @@ public final class AuthResourceTest {
                 .build(BlobStoreContext.class);
         context.getBlobStore().list();
     }
+
+    @Test
+    public void testStatelessTokenAcceptedByAnotherProxy() throws Exception {
+        properties.setProperty(SwiftProxy.PROPERTY_TOKEN_KEYS, "k1:0123456789abcdef0123456789abcdef");
+        SwiftProxy issuer = SwiftProxy.Builder.builder().overrides(properties).build();
+        SwiftProxy other = SwiftProxy.Builder.builder().overrides(properties).build();
+        issuer.start();
+        other.start();
+        try {
+            Client client = ClientBuilder.newClient();
+            String token = TestUtils.getAuthToken(client.target(issuer.getEndpoint()));
+            assertThat(token).startsWith("AUTH_tks");
+
+            Response response = client.target(other.getEndpoint()).path(TestUtils.ACCOUNT_PATH).request()
+                    .header("X-Auth-Token", token)
+                    .get();
+            assertThat(response.getStatusInfo().getFamily()).isEqualTo(Response.Status.Family.SUCCESSFUL);
+
+            response = client.target(other.getEndpoint()).path(TestUtils.ACCOUNT_PATH).request()
+                    .header("X-Auth-Token", token.substring(0, token.length() - 4) + "AAAA")
+                    .get();
+            assertThat(response.getStatus()).isEqualTo(Response.Status.UNAUTHORIZED.getStatusCode());
+        } finally {
+            issuer.stop();
+            other.stop();
+        }
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.bouncestorage.swiftproxy.SwiftProxy;
+
+import org.apache.commons.io.FileUtils;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ListingIndexTest {
+    private static final String IDENTITY = "foo";
+    private static final String CONTAINER = "container";
+
+    private final AtomicBoolean reachable = new AtomicBoolean(true);
+    private BlobStore blobStore;
+    private Path directory;
+    private ListingIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        blobStore = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class).getBlobStore();
+        blobStore.createContainerInLocation(null, CONTAINER);
+        directory = Files.createTempDirectory("swiftproxy-listing");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (index != null) {
+            index.shutdown();
+        }
+        blobStore.getContext().close();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void testMarkers() throws Exception {
+        putBlobs("a", "b", "c", "d", "e");
+        startIndex("300", "10000");
+
+        assertThat(list(null, null, null, null, 100)).containsExactly("a", "b", "c", "d", "e");
+        assertThat(list("b", null, null, null, 100)).containsExactly("c", "d", "e");
+        assertThat(list(null, "d", null, null, 100)).containsExactly("a", "b", "c");
+        assertThat(list("a", "d", null, null, 100)).containsExactly("b", "c");
+        assertThat(list("bb", null, null, null, 100)).containsExactly("c", "d", "e");
+        assertThat(list("b", null, null, null, 2)).containsExactly("c", "d");
+        assertThat(list("e", null, null, null, 100)).isEmpty();
+    }
+
+    @Test
+    public void testPrefixAndDelimiter() throws Exception {
+        putBlobs("a", "b/1", "b/2", "b/3", "b/c/1", "c", "d/1", "e");
+        startIndex("300", "10000");
+
+        assertThat(list(null, null, "b/", null, 100)).containsExactly("b/1", "b/2", "b/3", "b/c/1");
+        assertThat(list("b/1", null, "b/", null, 100)).containsExactly("b/2", "b/3", "b/c/1");
+        // a marker before the prefix starts at the prefix
+        assertThat(list("a", null, "b/", null, 100)).containsExactly("b/1", "b/2", "b/3", "b/c/1");
+        assertThat(list(null, null, null, "/", 100)).containsExactly("a", "c", "e");
+        assertThat(list(null, null, "b/", "/", 100)).containsExactly("b/1", "b/2", "b/3");
+        assertThat(list("b/1", "b/3", "b/", "/", 100)).containsExactly("b/2");
+        assertThat(list(null, null, "b/", "/", 2)).containsExactly("b/1", "b/2");
+    }
+
+    @Test
+    public void testDeltaOverSegment() throws Exception {
+        putBlobs("a", "b", "c");
+        startIndex("300", "10000");
+
+        putBlobs("bb");
+        index.put(IDENTITY, CONTAINER, blobStore.blobMetadata(CONTAINER, "bb"));
+        blobStore.removeBlob(CONTAINER, "b");
+        index.remove(IDENTITY, CONTAINER, "b");
+        blobStore.putBlob(CONTAINER, blobStore.blobBuilder("c").payload("changed").build());
+        index.put(IDENTITY, CONTAINER, blobStore.blobMetadata(CONTAINER, "c"));
+
+        assertThat(list(null, null, null, null, 100)).containsExactly("a", "bb", "c");
+        assertThat(list("a", null, null, null, 1)).containsExactly("bb");
+        assertThat(list(null, "c", "b", null, 100)).containsExactly("bb");
+        Iterator<ListingIndex.Entry> it = index.list(IDENTITY, CONTAINER, "bb", null, null, null, 100);
+        ListingIndex.Entry entry = it.next();
+        assertThat(entry.name).isEqualTo("c");
+        assertThat(entry.size).isEqualTo("changed".length());
+        assertThat(it.hasNext()).isFalse();
+        assertThat(index.getStats().get("delta_entries")).isEqualTo(3);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        putBlobs("a", "b");
+        startIndex("300", "2");
+
+        putBlobs("c", "d");
+        index.put(IDENTITY, CONTAINER, blobStore.blobMetadata(CONTAINER, "c"));
+        index.put(IDENTITY, CONTAINER, blobStore.blobMetadata(CONTAINER, "d"));
+        blobStore.removeBlob(CONTAINER, "a");
+        index.remove(IDENTITY, CONTAINER, "a");
+
+        for (int i = 0; i < 100 && !index.getStats().get("delta_entries").equals(0); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(index.getStats().get("delta_entries")).isEqualTo(0);
+        assertThat(list(null, null, null, null, 100)).containsExactly("b", "c", "d");
+    }
+
+    @Test
+    public void testReusedAfterCleanShutdown() throws Exception {
+        putBlobs("a", "b");
+        startIndex("300", "10000");
+        putBlobs("c");
+        index.put(IDENTITY, CONTAINER, blobStore.blobMetadata(CONTAINER, "c"));
+        index.shutdown();
+
+        // the reopened index cannot reconcile but is still fresh
+        reachable.set(false);
+        index = newIndex("300", "10000");
+        assertThat(list(null, null, null, null, 100)).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    public void testStaleFallback() throws Exception {
+        putBlobs("a");
+        reachable.set(false);
+        index = newIndex("1", "10000");
+        assertThat(index.list(IDENTITY, CONTAINER, null, null, null, null, 100)).isNull();
+        assertThat(index.getStats().get("stale_indexes")).isEqualTo(1);
+
+        reachable.set(true);
+        awaitFresh();
+        assertThat(list(null, null, null, null, 100)).containsExactly("a");
+
+        reachable.set(false);
+        Thread.sleep(1500);
+        assertThat(index.list(IDENTITY, CONTAINER, null, null, null, null, 100)).isNull();
+        assertThat(index.getStats().get("stale_indexes")).isEqualTo(1);
+    }
+
+    @Test
+    public void testNotIndexed() throws Exception {
+        startIndex("300", "10000");
+        assertThat(index.list(IDENTITY, "other", null, null, null, null, 100)).isNull();
+        assertThat(index.getStats().get("indexes")).isEqualTo(1);
+    }
+
+    private ListingIndex newIndex(String maxStaleness, String compactThreshold) {
+        Properties properties = new Properties();
+        properties.setProperty(SwiftProxy.PROPERTY_LISTING_INDEX_CONTAINERS, CONTAINER);
+        properties.setProperty(SwiftProxy.PROPERTY_LISTING_INDEX_DIR, directory.toString());
+        properties.setProperty(SwiftProxy.PROPERTY_LISTING_INDEX_MAX_STALENESS, maxStaleness);
+        properties.setProperty(SwiftProxy.PROPERTY_LISTING_INDEX_COMPACT_THRESHOLD, compactThreshold);
+        return new ListingIndex(properties,
+                identity -> reachable.get() ? (container, key) -> blobStore : null, container -> false);
+    }
+
+    private void startIndex(String maxStaleness, String compactThreshold) throws Exception {
+        index = newIndex(maxStaleness, compactThreshold);
+        awaitFresh();
+    }
+
+    private void awaitFresh() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            if (index.list(IDENTITY, CONTAINER, null, null, null, null, 1) != null) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("listing index was not reconciled");
+    }
+
+    private void putBlobs(String... names) {
+        for (String name : names) {
+            blobStore.putBlob(CONTAINER, blobStore.blobBuilder(name).payload(name).build());
+        }
+    }
+
+    private List<String> list(String marker, String endMarker, String prefix, String delimiter, long limit) {
+        Iterator<ListingIndex.Entry> it = index.list(IDENTITY, CONTAINER, marker, endMarker, prefix, delimiter,
+                limit);
+        assertThat(it).isNotNull();
+        List<String> names = new ArrayList<>();
+        it.forEachRemaining(entry -> names.add(entry.name));
+        return names;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bouncestorage.swiftproxy.v1;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.bouncestorage.swiftproxy.SwiftProxy;
+import com.bouncestorage.swiftproxy.TestUtils;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Maps;
+
+import org.apache.commons.io.FileUtils;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ObjectExpirerTest {
+    private static final String IDENTITY = "foo";
+    private static final String CONTAINER = "container";
+    private static final String BLOB_NAME = "blob";
+    private final String path = Joiner.on("/").join(TestUtils.ACCOUNT_PATH, CONTAINER, BLOB_NAME);
+
+    private BlobStore blobStore;
+    private Path directory;
+    private SwiftProxy proxy;
+    private WebTarget target;
+    private String authToken;
+
+    @Before
+    public void setUp() throws Exception {
+        blobStore = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class).getBlobStore();
+        blobStore.createContainerInLocation(null, CONTAINER);
+        directory = Files.createTempDirectory("swiftproxy-expiry");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (proxy != null) {
+            proxy.stop();
+        }
+        blobStore.getContext().close();
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void testDeleteAtInPast() throws Exception {
+        startProxy("60");
+        Response resp = putObject("X-Delete-At", now() - 10);
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.BAD_REQUEST.getStatusCode());
+        assertThat(blobStore.blobExists(CONTAINER, BLOB_NAME)).isFalse();
+    }
+
+    @Test
+    public void testNegativeDeleteAfter() throws Exception {
+        startProxy("60");
+        Response resp = putObject("X-Delete-After", -1);
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.BAD_REQUEST.getStatusCode());
+        assertThat(blobStore.blobExists(CONTAINER, BLOB_NAME)).isFalse();
+
+        assertThat(putObject(null, 0).getStatus()).isEqualTo(Response.Status.CREATED.getStatusCode());
+        resp = request().header("X-Delete-After", -1).post(null);
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.BAD_REQUEST.getStatusCode());
+        assertThat(request().head().getHeaderString(ObjectExpirer.DELETE_AT_HEADER)).isNull();
+    }
+
+    @Test
+    public void testDeleteAt() throws Exception {
+        startProxy("60");
+        long deleteAt = now() + 3600;
+        assertThat(putObject("X-Delete-At", deleteAt).getStatus()).isEqualTo(
+                Response.Status.CREATED.getStatusCode());
+
+        Response resp = request().head();
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+        assertThat(resp.getHeaderString(ObjectExpirer.DELETE_AT_HEADER)).isEqualTo(String.valueOf(deleteAt));
+        resp = request().get();
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+        assertThat(resp.getHeaderString(ObjectExpirer.DELETE_AT_HEADER)).isEqualTo(String.valueOf(deleteAt));
+    }
+
+    @Test
+    public void testNotFoundAfterDeadline() throws Exception {
+        startProxy("60");
+        assertThat(putObject("X-Delete-After", 1).getStatus()).isEqualTo(
+                Response.Status.CREATED.getStatusCode());
+        assertThat(request().get().getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+
+        Thread.sleep(2100);
+        assertThat(request().get().getStatus()).isEqualTo(Response.Status.NOT_FOUND.getStatusCode());
+        assertThat(request().head().getStatus()).isEqualTo(Response.Status.NOT_FOUND.getStatusCode());
+        // answered from the deadline before the reaper got to the object
+        assertThat(blobStore.blobExists(CONTAINER, BLOB_NAME)).isTrue();
+    }
+
+    @Test
+    public void testReap() throws Exception {
+        startProxy("1");
+        assertThat(putObject("X-Delete-After", 1).getStatus()).isEqualTo(
+                Response.Status.CREATED.getStatusCode());
+        for (int i = 0; i < 100 && blobStore.blobExists(CONTAINER, BLOB_NAME); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(blobStore.blobExists(CONTAINER, BLOB_NAME)).isFalse();
+        for (int i = 0; i < 100 && bucketCount() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(bucketCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPostClearsDeadline() throws Exception {
+        startProxy("60");
+        assertThat(putObject("X-Delete-After", 3600).getStatus()).isEqualTo(
+                Response.Status.CREATED.getStatusCode());
+        assertThat(request().head().getHeaderString(ObjectExpirer.DELETE_AT_HEADER)).isNotNull();
+
+        Response resp = request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.ACCEPTED.getStatusCode());
+        assertThat(request().head().getHeaderString(ObjectExpirer.DELETE_AT_HEADER)).isNull();
+    }
+
+    @Test
+    public void testPostMovesDeadline() throws Exception {
+        startProxy("60");
+        assertThat(putObject("X-Delete-After", 3600).getStatus()).isEqualTo(
+                Response.Status.CREATED.getStatusCode());
+        long deleteAt = now() + 7200;
+        Response resp = request().header("X-Delete-At", deleteAt).post(null);
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.ACCEPTED.getStatusCode());
+        assertThat(request().head().getHeaderString(ObjectExpirer.DELETE_AT_HEADER)).isEqualTo(
+                String.valueOf(deleteAt));
+    }
+
+    @Test
+    public void testPutClearsDeadline() throws Exception {
+        startProxy("60");
+        assertThat(putObject("X-Delete-After", 3600).getStatus()).isEqualTo(
+                Response.Status.CREATED.getStatusCode());
+        assertThat(putObject(null, 0).getStatus()).isEqualTo(Response.Status.CREATED.getStatusCode());
+        assertThat(request().head().getHeaderString(ObjectExpirer.DELETE_AT_HEADER)).isNull();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        startProxy("60");
+        long deleteAt = now() + 3600;
+        assertThat(putObject("X-Delete-At", deleteAt).getStatus()).isEqualTo(
+                Response.Status.CREATED.getStatusCode());
+        proxy.stop();
+        assertThat(bucketCount()).isEqualTo(1);
+
+        startProxy("60");
+        assertThat(request().head().getHeaderString(ObjectExpirer.DELETE_AT_HEADER)).isEqualTo(
+                String.valueOf(deleteAt));
+    }
+
+    @Test
+    public void testReplayAcrossBuckets() throws Exception {
+        startProxy("60");
+        long deleteAt = now() + 7200;
+        assertThat(putObject("X-Delete-After", 3600).getStatus()).isEqualTo(
+                Response.Status.CREATED.getStatusCode());
+        // the cancel lands in the first bucket and the new deadline in another
+        assertThat(request().header("X-Delete-At", deleteAt).post(null).getStatus()).isEqualTo(
+                Response.Status.ACCEPTED.getStatusCode());
+        proxy.stop();
+        assertThat(bucketCount()).isEqualTo(2);
+
+        startProxy("60");
+        assertThat(request().head().getHeaderString(ObjectExpirer.DELETE_AT_HEADER)).isEqualTo(
+                String.valueOf(deleteAt));
+    }
+
+    @Test
+    public void testReplayCancel() throws Exception {
+        startProxy("60");
+        assertThat(putObject("X-Delete-After", 3600).getStatus()).isEqualTo(
+                Response.Status.CREATED.getStatusCode());
+        assertThat(request().post(null).getStatus()).isEqualTo(Response.Status.ACCEPTED.getStatusCode());
+        proxy.stop();
+
+        startProxy("60");
+        assertThat(request().head().getHeaderString(ObjectExpirer.DELETE_AT_HEADER)).isNull();
+    }
+
+    private void startProxy(String bucketSeconds) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(SwiftProxy.PROPERTY_ENDPOINT, "http://127.0.0.1:0");
+        properties.setProperty(SwiftProxy.PROPERTY_EXPIRY_DIR, directory.toString());
+        properties.setProperty(SwiftProxy.PROPERTY_EXPIRY_BUCKET_SECONDS, bucketSeconds);
+        proxy = SwiftProxy.Builder.builder()
+                .overrides(properties)
+                .locator((identity, container, blob) ->
+                        IDENTITY.equals(identity) ? Maps.immutableEntry(IDENTITY, blobStore) : null)
+                .build();
+        proxy.start();
+        Client c = ClientBuilder.newClient();
+        target = c.target(proxy.getEndpoint());
+
+        Response resp = target.path("/auth/v1.0").request()
+                .header("X-auth-user", IDENTITY)
+                .header("X-auth-key", IDENTITY)
+                .get();
+        authToken = resp.getHeaderString("x-auth-token");
+        assertThat(authToken).isNotNull();
+    }
+
+    private Invocation.Builder request() {
+        return target.path(path).request().header("x-auth-token", authToken);
+    }
+
+    private Response putObject(String header, long value) {
+        Invocation.Builder builder = request();
+        if (header != null) {
+            builder.header(header, value);
+        }
+        return builder.put(Entity.entity("foo".getBytes(StandardCharsets.UTF_8),
+                MediaType.APPLICATION_OCTET_STREAM));
+    }
+
+    private int bucketCount() throws Exception {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.bucket")) {
+            for (Path ignored : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long now() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+}
@@ -18,6 +18,19 @@ package com.bouncestorage.swiftproxy.v1;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
@@ -25,10 +38,19 @@ import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import com.bouncestorage.swiftproxy.FrameCompression;
 import com.bouncestorage.swiftproxy.SwiftProxy;
 import com.bouncestorage.swiftproxy.TestUtils;
 import com.google.common.base.Joiner;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -36,11 +58,13 @@ import org.junit.Test;
 public final class ObjectResourceTest {
     private static final String CONTAINER = "test-container";
     private static final String BLOB_NAME = "blob";
+    private static final int FRAME_SIZE = 1024;
     private final String path;
 
     private SwiftProxy proxy;
     private WebTarget target;
     private String authToken;
+    private BlobStore backend;
 
     public ObjectResourceTest() {
         String[] parts = {TestUtils.ACCOUNT_PATH, CONTAINER, BLOB_NAME};
@@ -61,6 +85,9 @@ public final class ObjectResourceTest {
         if (proxy != null) {
             proxy.stop();
         }
+        if (backend != null) {
+            backend.getContext().close();
+        }
     }
 
     @Test
@@ -93,6 +120,255 @@ public final class ObjectResourceTest {
         assertThat(resp.getMediaType().toString()).isEqualTo(MediaType.APPLICATION_OCTET_STREAM);
     }
 
+    @Test
+    public void testTempUrl() throws Exception {
+        String data = "foo";
+        putObject(target.path(path), data.getBytes());
+        Response resp = target.path(TestUtils.ACCOUNT_PATH).request()
+                .header("x-auth-token", authToken)
+                .header("X-Account-Meta-Temp-URL-Key", "secret")
+                .post(Entity.text(""));
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.NO_CONTENT.getStatusCode());
+
+        // temp urls name the account the auth endpoint hands out
+        String objectPath = "/v1/AUTH_test:tester/" + CONTAINER + "/" + BLOB_NAME;
+        long expires = System.currentTimeMillis() / 1000 + 60;
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec("secret".getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+        String signature = BaseEncoding.base16().lowerCase().encode(mac.doFinal(
+                ("GET\n" + expires + "\n" + objectPath).getBytes(StandardCharsets.UTF_8)));
+
+        resp = target.path(objectPath)
+                .queryParam("temp_url_sig", signature)
+                .queryParam("temp_url_expires", expires)
+                .request().get();
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+        assertThat(resp.readEntity(String.class)).isEqualTo(data);
+
+        resp = target.path(objectPath)
+                .queryParam("temp_url_sig", signature)
+                .queryParam("temp_url_expires", expires + 1)
+                .request().get();
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.UNAUTHORIZED.getStatusCode());
+
+        // a GET signature does not allow overwriting the object
+        resp = target.path(objectPath)
+                .queryParam("temp_url_sig", signature)
+                .queryParam("temp_url_expires", expires)
+                .request().put(Entity.entity("bar".getBytes(), MediaType.APPLICATION_OCTET_STREAM));
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.UNAUTHORIZED.getStatusCode());
+    }
+
+    @Test
+    public void testDeleteStaticLargeObject() throws Exception {
+        String segmentPath = TestUtils.ACCOUNT_PATH + "/" + CONTAINER + "/segment";
+        Response resp = target.path(segmentPath).request()
+                .header("x-auth-token", authToken)
+                .put(Entity.entity("foo".getBytes(), MediaType.APPLICATION_OCTET_STREAM));
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.CREATED.getStatusCode());
+        String manifest = "[{\"path\": \"/" + CONTAINER + "/segment\", " +
+                "\"etag\": \"acbd18db4cc2f85cedef654fccc4a4d8\", \"size_bytes\": 3}]";
+        resp = target.path(path).queryParam("multipart-manifest", "put").request()
+                .header("x-auth-token", authToken)
+                .put(Entity.entity(manifest, MediaType.APPLICATION_JSON));
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.CREATED.getStatusCode());
+        assertThat(headContainer().getHeaderString("X-Container-Object-Count")).isEqualTo("2");
+
+        resp = target.path(path).queryParam("multipart-manifest", "delete").request(MediaType.APPLICATION_JSON)
+                .header("x-auth-token", authToken)
+                .delete();
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+        AccountResource.BulkDeleteResult result = resp.readEntity(AccountResource.BulkDeleteResult.class);
+        assertThat(result.numberDeleted).isEqualTo(2);
+
+        // the segment and the manifest are both gone from the container's usage
+        resp = headContainer();
+        assertThat(resp.getHeaderString("X-Container-Object-Count")).isEqualTo("0");
+        assertThat(resp.getHeaderString("X-Container-Bytes-Used")).isEqualTo("0");
+    }
+
+    @Test
+    public void testMaterializedCopyNotServedAfterSegmentWrite() throws Exception {
+        String segmentPath = TestUtils.ACCOUNT_PATH + "/" + CONTAINER + "/segment";
+        Response resp = target.path(segmentPath).request()
+                .header("x-auth-token", authToken)
+                .put(Entity.entity("foo".getBytes(), MediaType.APPLICATION_OCTET_STREAM));
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.CREATED.getStatusCode());
+        String manifest = "[{\"path\": \"/" + CONTAINER + "/segment\", " +
+                "\"etag\": \"acbd18db4cc2f85cedef654fccc4a4d8\", \"size_bytes\": 3}]";
+        resp = target.path(path).queryParam("multipart-manifest", "put").request()
+                .header("x-auth-token", authToken)
+                .header(SLOMaterializer.MATERIALIZE_HEADER, true)
+                .put(Entity.entity(manifest, MediaType.APPLICATION_JSON));
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.CREATED.getStatusCode());
+        for (int i = 0; i < 100 && !target.path("/admin/slo-materializer").request()
+                .header("x-auth-token", authToken).get(String.class).contains("DONE"); i++) {
+            Thread.sleep(100);
+        }
+        resp = target.path(path).request().header("x-auth-token", authToken).get();
+        assertThat(resp.readEntity(String.class)).isEqualTo("foo");
+
+        resp = target.path(segmentPath).request()
+                .header("x-auth-token", authToken)
+                .put(Entity.entity("bar".getBytes(), MediaType.APPLICATION_OCTET_STREAM));
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.CREATED.getStatusCode());
+        // the manifest no longer matches its segment, so the copy must not
+        // be served in its place
+        resp = target.path(path).request().header("x-auth-token", authToken).get();
+        assertThat(resp.readEntity(String.class)).isNotEqualTo("foo");
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        putObject(target.path(path), "foo".getBytes());
+
+        String metrics = target.path("/metrics").request().get(String.class);
+        // requests are recorded once their response is written, which may
+        // be after the client has read it, so only check the setup request
+        assertThat(metrics).contains("swiftproxy_request_duration_seconds_count{resource=\"ContainerResource\"," +
+                "handler=\"putContainer\",method=\"PUT\",status=\"201\"}");
+        assertThat(metrics).contains("swiftproxy_backend_duration_seconds_count{operation=\"putBlob\"}");
+    }
+
+    @Test
+    public void testCompressedFrameFormat() throws Exception {
+        startCompressingProxy();
+        byte[] data = compressibleData(FRAME_SIZE * 5 / 2);
+        putObject(target.path(path), data);
+
+        Blob blob = backend.getBlob(CONTAINER, BLOB_NAME);
+        String[] info = blob.getMetadata().getUserMetadata().get(FrameCompression.COMPRESSION_METADATA)
+                .split(" ");
+        assertThat(info).hasSize(5);
+        assertThat(info[0]).isEqualTo("deflate");
+        assertThat(Integer.parseInt(info[1])).isEqualTo(FRAME_SIZE);
+        assertThat(Long.parseLong(info[2])).isEqualTo(data.length);
+        assertThat(info[3]).isEqualTo(Hashing.md5().hashBytes(data).toString());
+        long indexOffset = Long.parseLong(info[4]);
+
+        byte[] stored;
+        try (InputStream is = blob.getPayload().openStream()) {
+            stored = ByteStreams.toByteArray(is);
+        }
+        // each frame is its type, its stored length and its bytes
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stored));
+        List<Long> offsets = new ArrayList<>();
+        long offset = 0;
+        for (int i = 0; i < 3; i++) {
+            offsets.add(offset);
+            int type = in.readByte();
+            int length = in.readInt();
+            byte[] frame = new byte[length];
+            in.readFully(frame);
+            // the data compresses, so every frame is deflated
+            assertThat(type).isEqualTo(1);
+            Inflater inflater = new Inflater();
+            inflater.setInput(frame);
+            byte[] inflated = new byte[FRAME_SIZE];
+            int n = inflater.inflate(inflated);
+            inflater.end();
+            int start = i * FRAME_SIZE;
+            assertThat(Arrays.copyOf(inflated, n)).isEqualTo(
+                    Arrays.copyOfRange(data, start, Math.min(start + FRAME_SIZE, data.length)));
+            offset += 5 + length;
+        }
+
+        // followed by the seek index: the frame count and their offsets
+        assertThat(offset).isEqualTo(indexOffset);
+        assertThat(in.readInt()).isEqualTo(3);
+        for (long expected : offsets) {
+            assertThat(in.readLong()).isEqualTo(expected);
+        }
+        assertThat(in.read()).isEqualTo(-1);
+
+        Response resp = target.path(path).request().header("x-auth-token", authToken).get();
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+        assertThat(resp.getLength()).isEqualTo(data.length);
+        assertThat(resp.getHeaderString("ETag")).contains(info[3]);
+        assertThat(resp.readEntity(byte[].class)).isEqualTo(data);
+    }
+
+    @Test
+    public void testCompressedRangeAcrossFrames() throws Exception {
+        startCompressingProxy();
+        byte[] data = compressibleData(FRAME_SIZE * 4);
+        putObject(target.path(path), data);
+
+        // starts in the first frame and ends in the third
+        Response resp = target.path(path).request()
+                .header("x-auth-token", authToken)
+                .header("Range", "bytes=1000-2100")
+                .get();
+        assertThat(resp.getHeaderString("Content-Range")).isEqualTo("bytes 1000-2100/" + data.length);
+        assertThat(resp.getLength()).isEqualTo(1101);
+        assertThat(resp.readEntity(byte[].class)).isEqualTo(Arrays.copyOfRange(data, 1000, 2101));
+
+        // the last bytes, which sit right before the seek index
+        resp = target.path(path).request()
+                .header("x-auth-token", authToken)
+                .header("Range", "bytes=" + (data.length - 100) + "-" + (data.length - 1))
+                .get();
+        assertThat(resp.readEntity(byte[].class)).isEqualTo(
+                Arrays.copyOfRange(data, data.length - 100, data.length));
+    }
+
+    @Test
+    public void testCompressedRawFallback() throws Exception {
+        startCompressingProxy();
+        byte[] data = new byte[FRAME_SIZE * 2];
+        new Random(42).nextBytes(data);
+        putObject(target.path(path), data);
+
+        // a body whose first frame does not compress is stored as is
+        Blob blob = backend.getBlob(CONTAINER, BLOB_NAME);
+        assertThat(blob.getMetadata().getUserMetadata()).doesNotContainKey(FrameCompression.COMPRESSION_METADATA);
+        try (InputStream is = blob.getPayload().openStream()) {
+            assertThat(ByteStreams.toByteArray(is)).isEqualTo(data);
+        }
+
+        Response resp = target.path(path).request().header("x-auth-token", authToken).get();
+        assertThat(resp.getStatus()).isEqualTo(Response.Status.OK.getStatusCode());
+        assertThat(resp.readEntity(byte[].class)).isEqualTo(data);
+        resp = target.path(path).request()
+                .header("x-auth-token", authToken)
+                .header("Range", "bytes=1000-1100")
+                .get();
+        assertThat(resp.readEntity(byte[].class)).isEqualTo(Arrays.copyOfRange(data, 1000, 1101));
+    }
+
+    /** Replaces the proxy with one compressing CONTAINER into a backend the test can inspect. */
+    private void startCompressingProxy() throws Exception {
+        proxy.stop();
+        backend = ContextBuilder.newBuilder("transient").build(BlobStoreContext.class).getBlobStore();
+        Properties properties = new Properties();
+        properties.setProperty(SwiftProxy.PROPERTY_ENDPOINT, "http://127.0.0.1:0");
+        properties.setProperty(SwiftProxy.PROPERTY_COMPRESSION_CONTAINERS, CONTAINER);
+        properties.setProperty(SwiftProxy.PROPERTY_COMPRESSION_FRAME_SIZE, String.valueOf(FRAME_SIZE));
+        // the credential of the identity in swiftproxy.conf
+        proxy = SwiftProxy.Builder.builder()
+                .overrides(properties)
+                .locator((identity, container, blob) -> Maps.immutableEntry("testing", backend))
+                .build();
+        proxy.start();
+        target = ClientBuilder.newClient().target(proxy.getEndpoint());
+        authToken = TestUtils.createContainer(target, CONTAINER);
+    }
+
+    /** Returns bytes that compress well but do not repeat with the frame size, so a misplaced range shows. */
+    private static byte[] compressibleData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + i % 26 + i / 26 % 3);
+        }
+        return data;
+    }
+
+    Response headContainer() {
+        return target.path(TestUtils.ACCOUNT_PATH + "/" + CONTAINER).request()
+                .header("x-auth-token", authToken)
+                .head();
+    }
+
     Response putObject(WebTarget putTarget, byte[] data) throws Exception {
         Response resp = target.path(path).request()
                 .header("x-auth-token", authToken)